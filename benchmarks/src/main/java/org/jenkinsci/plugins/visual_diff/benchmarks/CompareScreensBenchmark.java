@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.visual_diff.benchmarks;
+
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.jenkinsci.plugins.visual_diff.ScreenshotCorpus;
+import org.jenkinsci.plugins.visual_diff.comparison.StructuralSimilarity;
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the SSIM comparison on generated screens
+ *
+ * The approved screen is decoded once into the raster cache, as with a baseline compared in every build; the
+ * build screen is decoded on every comparison.
+ *
+ * @author Marcel Erz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompareScreensBenchmark {
+
+    /**
+     * Kind of screens compared
+     */
+    @Param({ "identical", "smallDiff", "largeDiff", "tall" })
+    public String kind;
+
+    /**
+     * Folder of the generated screens
+     */
+    private File folder;
+
+    /**
+     * Comparison with default settings
+     */
+    private StructuralSimilarity comparison;
+
+    /**
+     * Listener discarding all output
+     */
+    private BuildListener listener;
+
+    /**
+     * Build screen
+     */
+    private FilePath screenPath;
+
+    /**
+     * Approved screen
+     */
+    private FilePath approvedPath;
+
+    /**
+     * Difference image
+     */
+    private FilePath diffPath;
+
+
+    /**
+     * Generates the screens
+     *
+     * @throws IOException
+     */
+    @Setup
+    public void setUp() throws IOException {
+        ScreenshotCorpus corpus = new ScreenshotCorpus().setScreens(1).setIdentical(0).setNoise(0.001f);
+
+        if (kind.equals("identical")) {
+            corpus.setIdentical(1);
+        } else if (kind.equals("smallDiff")) {
+            corpus.setDiffSize(16);
+        } else if (kind.equals("largeDiff")) {
+            corpus.setDiffSize(512);
+        } else {
+            corpus.setHeights(12000, 12000).setDiffSize(64);
+        }
+
+        folder = File.createTempFile("vdiff-benchmark", "");
+        folder.delete();
+
+        File approvedFolder = new File(folder, "approved");
+        File buildFolder = new File(folder, "build");
+        corpus.generate(approvedFolder, buildFolder);
+
+        approvedPath = new FilePath(new File(approvedFolder, corpus.getName(0)));
+        screenPath = new FilePath(new File(buildFolder, corpus.getName(0)));
+        diffPath = new FilePath(new File(folder, "diff.png"));
+
+        comparison = new StructuralSimilarity("*.png", false, "nothing", 1, false, false, 0, "", 1, false, false, "", 8, 0.98f, 0.9f);
+        listener = new StreamBuildListener(new NullOutputStream());
+    }
+
+    /**
+     * Removes the screens
+     *
+     * @throws IOException
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+
+    /**
+     * Compares the screens
+     *
+     * @return Result
+     * @throws Exception
+     */
+    @Benchmark
+    public ComparisonResult compareScreens() throws Exception {
+        return comparison.compareScreens(null, null, listener, screenPath, approvedPath, diffPath);
+    }
+}
@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.visual_diff.benchmarks;
+
+import hudson.util.XStream2;
+
+import org.jenkinsci.plugins.visual_diff.DataAction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading the screens of a build, as Jenkins does with build.xml
+ *
+ * @author Marcel Erz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataActionBenchmark {
+
+    /**
+     * Number of screens of the build
+     */
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    /**
+     * Serializer of Jenkins
+     */
+    private final XStream2 xstream = new XStream2();
+
+    /**
+     * Action of the build
+     */
+    private DataAction action;
+
+    /**
+     * Action as XML
+     */
+    private String xml;
+
+
+    /**
+     * Creates the action
+     */
+    @Setup
+    public void setUp() {
+        action = new DataAction();
+        action.complete(ScreenListBenchmark.createList(size));
+
+        xml = xstream.toXML(action);
+    }
+
+
+    /**
+     * Saves the action
+     *
+     * @return XML
+     */
+    @Benchmark
+    public String save() {
+        return xstream.toXML(action);
+    }
+
+    /**
+     * Loads the action
+     *
+     * @return Action
+     */
+    @Benchmark
+    public Object load() {
+        return xstream.fromXML(xml);
+    }
+}
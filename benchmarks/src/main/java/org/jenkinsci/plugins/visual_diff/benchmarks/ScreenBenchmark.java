@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.visual_diff.benchmarks;
+
+import org.jenkinsci.plugins.visual_diff.data.Screen;
+import org.jenkinsci.plugins.visual_diff.data.ScreenList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Category predicates of screens, called for every screen and category by the report
+ *
+ * @author Marcel Erz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenBenchmark {
+
+    /**
+     * Screens of all categories
+     */
+    private Screen[] screens;
+
+
+    /**
+     * Creates the screens
+     */
+    @Setup
+    public void setUp() {
+        ScreenList list = ScreenListBenchmark.createList(1024);
+        screens = list.toArray(new Screen[list.size()]);
+    }
+
+
+    /**
+     * Evaluates the predicates of the new screens
+     *
+     * @param blackhole Consumer of results
+     */
+    @Benchmark
+    public void newPredicates(Blackhole blackhole) {
+        for(Screen screen : screens) {
+            blackhole.consume(screen.isNewScreen());
+            blackhole.consume(screen.isNewAutoApprovedScreen());
+            blackhole.consume(screen.isNewUnApprovedScreen());
+        }
+    }
+
+    /**
+     * Evaluates the predicates of the existing screens
+     *
+     * @param blackhole Consumer of results
+     */
+    @Benchmark
+    public void existingPredicates(Blackhole blackhole) {
+        for(Screen screen : screens) {
+            blackhole.consume(screen.isExistingScreen());
+            blackhole.consume(screen.isExistingEqualScreen());
+            blackhole.consume(screen.isExistingDifferentBelowThresholdScreen());
+            blackhole.consume(screen.isExistingDifferentAboveThresholdScreen());
+            blackhole.consume(screen.isSkippedScreen());
+        }
+    }
+
+    /**
+     * Evaluates the image predicates
+     *
+     * @param blackhole Consumer of results
+     */
+    @Benchmark
+    public void imagePredicates(Blackhole blackhole) {
+        for(Screen screen : screens) {
+            blackhole.consume(screen.hasApprovedImage());
+            blackhole.consume(screen.hasBuildImage());
+            blackhole.consume(screen.hasDifferenceImage());
+            blackhole.consume(screen.isApproved());
+        }
+    }
+}
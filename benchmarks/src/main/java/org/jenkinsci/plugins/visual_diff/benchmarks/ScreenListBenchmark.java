@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.visual_diff.benchmarks;
+
+import net.sf.json.JSONArray;
+
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+import org.jenkinsci.plugins.visual_diff.data.Screen;
+import org.jenkinsci.plugins.visual_diff.data.ScreenList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries and serialization of screen lists as used by the report
+ *
+ * @author Marcel Erz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenListBenchmark {
+
+    /**
+     * Number of screens in the list
+     */
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    /**
+     * List of screens
+     */
+    private ScreenList list;
+
+    /**
+     * Names looked up in the list
+     */
+    private String[] names;
+
+    /**
+     * Index of the next name looked up
+     */
+    private int next = 0;
+
+
+    /**
+     * Creates the list
+     */
+    @Setup
+    public void setUp() {
+        list = createList(size);
+
+        Random random = new Random(1);
+        names = new String[1024];
+        for(int i = 0; i < names.length; i++) {
+            names[i] = getName(random.nextInt(size));
+        }
+    }
+
+
+    /**
+     * Looks up a screen by name
+     *
+     * @return Screen
+     */
+    @Benchmark
+    public Screen getScreenByName() {
+        next = (next + 1) % names.length;
+        return list.getScreenByName(names[next]);
+    }
+
+    /**
+     * Counts the screens of all categories
+     *
+     * @return Number of screens by category
+     */
+    @Benchmark
+    public int[] getCategoryCounts() {
+        return list.getCategoryCounts();
+    }
+
+    /**
+     * Gets the screens of one category
+     *
+     * @return Screens
+     */
+    @Benchmark
+    public Screen[] getDifferenceScreens() {
+        return list.getExistingDifferentAboveThresholdScreens();
+    }
+
+    /**
+     * Serializes the list for the report
+     *
+     * @return JSON
+     */
+    @Benchmark
+    public JSONArray toJSON() {
+        return list.toJSON();
+    }
+
+
+    /**
+     * Gets the name of a generated screen
+     *
+     * @param index Index of screen
+     * @return Name
+     */
+    public static String getName(int index) {
+        return "screen-" + index + ".png";
+    }
+
+    /**
+     * Creates a list with screens of all categories, in the mix of a typical build
+     *
+     * @param size Number of screens
+     * @return List
+     */
+    public static ScreenList createList(int size) {
+        ScreenList list = new ScreenList();
+        Random random = new Random(size);
+
+        for(int i = 0; i < size; i++) {
+            Screen screen = new Screen(getName(i));
+            int kind = random.nextInt(100);
+
+            if (kind < 5) {
+                screen.buildImage();
+                screen.newUnApprovedScreen();
+
+            } else if (kind < 7) {
+                screen.approvedImage();
+                screen.approve();
+
+            } else {
+                screen.buildImage();
+                screen.approvedImage();
+
+                if (kind < 85) {
+                    screen.existingEqualScreen();
+                    screen.approve();
+
+                } else if (kind < 92) {
+                    screen.existingDifferentBelowThresholdScreen();
+                    screen.setComparisonResult(new ComparisonResult(false));
+
+                } else {
+                    screen.existingDifferentAboveThresholdScreen();
+                    screen.setComparisonResult(new ComparisonResult(true));
+                }
+            }
+
+            list.add(screen);
+        }
+
+        return list;
+    }
+}
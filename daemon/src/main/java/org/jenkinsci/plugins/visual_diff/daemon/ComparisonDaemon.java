@@ -0,0 +1,422 @@
+package org.jenkinsci.plugins.visual_diff.daemon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Comparison service for the Visual-Diff plugin
+ *
+ * Keeps uploaded images by digest and runs perceptualdiff on request, so builds only send images the daemon
+ * has not seen yet. API:
+ *
+ * HEAD/GET /images/{digest} - Is the image stored? / Download the image
+ * PUT /images/{digest} - Upload an image; rejected when the content does not match the digest
+ * POST /compare?screen={digest}&amp;approved={digest} - Compares two stored images with the arguments in the
+ *      body (one per line). Responds with 404 and the missing digests (one per line) when an image is unknown,
+ *      otherwise with the difference image as body, the exit code in "X-Exit-Code" and the URL-encoded output
+ *      of the binary in "X-Output". Long output is cut to its end, where the binary prints the result.
+ *
+ * @author Marcel Erz
+ */
+public class ComparisonDaemon {
+
+    /**
+     * Options of perceptualdiff a client may pass
+     */
+    private static final Pattern OPTION = Pattern.compile("-(verbose|fov|threshold|gamma|luminance|luminanceonly|colorfactor|downsample)");
+
+    /**
+     * Values of options
+     */
+    private static final Pattern VALUE = Pattern.compile("[0-9]+(\\.[0-9]+)?");
+
+    /**
+     * Maximum number of characters of output sent in a header; servers reject large headers
+     */
+    private static final int OUTPUT_LIMIT = 1024;
+
+
+    /**
+     * Store of uploaded images
+     */
+    private final ImageStore store;
+
+    /**
+     * Path to perceptualdiff
+     */
+    private final String binaryPath;
+
+
+    /**
+     * Initializes the daemon
+     *
+     * @param store Store of uploaded images
+     * @param binaryPath Path to perceptualdiff
+     */
+    public ComparisonDaemon(ImageStore store, String binaryPath) {
+        this.store = store;
+        this.binaryPath = binaryPath;
+    }
+
+
+    /**
+     * Starts the daemon
+     *
+     * Options: --port (default 8085), --bind (default 127.0.0.1), --binary (default perceptualdiff),
+     * --store (default ./vdiff-store), --quota in MB (default 1024), --threads (default number of processors)
+     *
+     * @param args Command-line arguments
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+
+        int port = Integer.parseInt(_option(options, "--port", "8085"));
+        String bind = _option(options, "--bind", "127.0.0.1");
+        int threads = Integer.parseInt(_option(options, "--threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long quota = Long.parseLong(_option(options, "--quota", "1024")) * 1024 * 1024;
+
+        ImageStore store = new ImageStore(new File(_option(options, "--store", "vdiff-store")), quota);
+        ComparisonDaemon daemon = new ComparisonDaemon(store, _option(options, "--binary", "perceptualdiff"));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        server.createContext("/images/", daemon.new ImageHandler());
+        server.createContext("/compare", daemon.new CompareHandler());
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+
+        System.out.println("Visual-Diff comparison daemon listening on " + bind + ":" + port);
+    }
+
+    /**
+     * Gets a command-line option
+     *
+     * @param options Options given
+     * @param name Name of option
+     * @param defaultValue Value when not given
+     * @return Value
+     */
+    private static String _option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+
+    /**
+     * Sends a plain-text response
+     *
+     * @param exchange Exchange
+     * @param status HTTP status
+     * @param text Text
+     * @throws IOException
+     */
+    private static void _sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes("UTF-8");
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+
+        if (body.length > 0) {
+            exchange.getResponseBody().write(body);
+        }
+        exchange.close();
+    }
+
+    /**
+     * Sends a file
+     *
+     * @param exchange Exchange
+     * @param file File or null for an empty response
+     * @param withBody Send the content of the file?
+     * @throws IOException
+     */
+    private static void _sendFile(HttpExchange exchange, File file, boolean withBody) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+
+        if ((file == null) || !withBody) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, file.length());
+
+        InputStream input = new FileInputStream(file);
+        try {
+            _copy(input, exchange.getResponseBody());
+        } finally {
+            input.close();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Copies a stream
+     *
+     * @param input Source
+     * @param output Target
+     * @throws IOException
+     */
+    private static void _copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[65536];
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Parses the query of a request
+     *
+     * @param exchange Exchange
+     * @return Parameters
+     * @throws IOException
+     */
+    private static Map<String, String> _parseQuery(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+
+        for(String pair : query.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+                               URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Deletes a folder with all files in it
+     *
+     * @param folder Folder
+     */
+    private static void _delete(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+
+    /**
+     * Handles uploads and lookups of images
+     */
+    private class ImageHandler implements HttpHandler {
+
+        /**
+         * Handles a request
+         *
+         * @param exchange Exchange
+         * @throws IOException
+         */
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String digest = exchange.getRequestURI().getPath().substring("/images/".length());
+
+                if (!ImageStore.isValid(digest)) {
+                    _sendText(exchange, 400, "Invalid digest\n");
+
+                } else if ("PUT".equals(method)) {
+                    try {
+                        store.put(digest, exchange.getRequestBody());
+                        _sendText(exchange, 201, "");
+                    } catch (IOException e) {
+                        _sendText(exchange, 400, e.getMessage() + "\n");
+                    }
+
+                } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                    File file = store.acquire(digest);
+                    if (file == null) {
+                        _sendText(exchange, 404, "");
+                    } else {
+                        try {
+                            _sendFile(exchange, file, "GET".equals(method));
+                        } finally {
+                            store.release(digest);
+                        }
+                    }
+
+                } else {
+                    _sendText(exchange, 405, "");
+                }
+
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Handles comparisons
+     */
+    private class CompareHandler implements HttpHandler {
+
+        /**
+         * Handles a request
+         *
+         * @param exchange Exchange
+         * @throws IOException
+         */
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    _sendText(exchange, 405, "");
+                    return;
+                }
+
+                Map<String, String> parameters = _parseQuery(exchange);
+                List<String> arguments = _readArguments(exchange.getRequestBody());
+
+                if (arguments == null) {
+                    _sendText(exchange, 400, "Invalid arguments\n");
+                    return;
+                }
+
+                String screenDigest = parameters.get("screen");
+                String approvedDigest = parameters.get("approved");
+                if (!ImageStore.isValid(screenDigest) || !ImageStore.isValid(approvedDigest)) {
+                    _sendText(exchange, 400, "Invalid digest\n");
+                    return;
+                }
+
+                // Both images stay pinned until the comparison is sent, so uploads cannot evict them meanwhile
+                File screen = store.acquire(screenDigest);
+                File approved = store.acquire(approvedDigest);
+
+                try {
+                    if ((screen == null) || (approved == null)) {
+                        StringBuilder missing = new StringBuilder();
+                        if (screen == null) missing.append(screenDigest).append('\n');
+                        if (approved == null) missing.append(approvedDigest).append('\n');
+
+                        _sendText(exchange, 404, missing.toString());
+                        return;
+                    }
+
+                    _compare(exchange, arguments, screen, approved);
+
+                } finally {
+                    if (screen != null) store.release(screenDigest);
+                    if (approved != null) store.release(approvedDigest);
+                }
+
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Reads and validates the arguments of a comparison
+         *
+         * @param input Body of request
+         * @return Arguments or null when one is not allowed
+         * @throws IOException
+         */
+        private List<String> _readArguments(InputStream input) throws IOException {
+            List<String> arguments = new ArrayList<String>();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) continue;
+
+                // Passed to the binary without a shell, but only known options are accepted
+                if (!OPTION.matcher(line).matches() && !VALUE.matcher(line).matches()) {
+                    return null;
+                }
+                arguments.add(line);
+            }
+
+            return arguments;
+        }
+
+        /**
+         * Runs the comparison and sends the result
+         *
+         * @param exchange Exchange
+         * @param arguments Arguments of the binary
+         * @param screen Build screen
+         * @param approved Approved screen
+         * @throws IOException
+         */
+        private void _compare(HttpExchange exchange, List<String> arguments, File screen, File approved) throws IOException {
+            File folder = File.createTempFile("compare", "");
+            folder.delete();
+            folder.mkdirs();
+
+            try {
+                File diff = new File(folder, "diff.png");
+
+                List<String> command = new ArrayList<String>();
+                command.add(binaryPath);
+                command.addAll(arguments);
+                command.add("-output");
+                command.add(diff.getAbsolutePath());
+                command.add(approved.getAbsolutePath());
+                command.add(screen.getAbsolutePath());
+
+                ProcessBuilder builder = new ProcessBuilder(command);
+                builder.directory(folder);
+                builder.redirectErrorStream(true);
+
+                Process process = builder.start();
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                int exitCode;
+                try {
+                    process.getOutputStream().close();
+                    _copy(process.getInputStream(), output);
+                    exitCode = process.waitFor();
+                } catch (InterruptedException e) {
+                    process.destroy();
+                    _sendText(exchange, 503, "Interrupted\n");
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("X-Exit-Code", String.valueOf(exitCode));
+                String text = output.toString("UTF-8");
+                if (text.length() > OUTPUT_LIMIT) {
+                    text = "...\n" + text.substring(text.length() - OUTPUT_LIMIT);
+                }
+
+                exchange.getResponseHeaders().set("X-Output", URLEncoder.encode(text, "UTF-8"));
+                _sendFile(exchange, diff.exists() ? diff : null, true);
+
+            } finally {
+                _delete(folder);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.jenkinsci.plugins.visual_diff.daemon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Images uploaded to the daemon, stored by their MD5 digest
+ *
+ * Baselines stay in the store across builds, so they are uploaded only once. The least recently used images
+ * are evicted when the store exceeds its quota; images acquired by a running request are never evicted.
+ *
+ * @author Marcel Erz
+ */
+public class ImageStore {
+
+    /**
+     * Valid digests (lower-case MD5 in hex, as created by the plugin)
+     */
+    private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{32}");
+
+
+    /**
+     * Folder of the store
+     */
+    private final File folder;
+
+    /**
+     * Quota in bytes
+     */
+    private final long quota;
+
+    /**
+     * Current size of all images in bytes
+     */
+    private long size = 0;
+
+    /**
+     * Number of requests using each image, by digest
+     */
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+
+    /**
+     * Initializes the store
+     *
+     * @param folder Folder of the store
+     * @param quota Quota in bytes
+     */
+    public ImageStore(File folder, long quota) {
+        this.folder = folder;
+        this.quota = quota;
+
+        folder.mkdirs();
+        for(File file : _list()) {
+            size += file.length();
+        }
+    }
+
+
+    /**
+     * Is the digest valid?
+     *
+     * @param digest Digest
+     * @return True/False
+     */
+    public static boolean isValid(String digest) {
+        return (digest != null) && DIGEST.matcher(digest).matches();
+    }
+
+    /**
+     * Acquires a stored image, which is not evicted until released
+     *
+     * @param digest Digest of image
+     * @return File or null if not stored
+     */
+    public synchronized File acquire(String digest) {
+        if (!isValid(digest)) {
+            return null;
+        }
+
+        File file = new File(folder, digest);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Integer count = pins.get(digest);
+        pins.put(digest, (count == null) ? 1 : count + 1);
+
+        // Last modification time is the time of last use for LRU eviction
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Releases an acquired image
+     *
+     * @param digest Digest of image
+     */
+    public synchronized void release(String digest) {
+        Integer count = pins.get(digest);
+
+        if ((count == null) || (count <= 1)) {
+            pins.remove(digest);
+        } else {
+            pins.put(digest, count - 1);
+        }
+    }
+
+    /**
+     * Stores an image
+     *
+     * @param digest Expected digest of image
+     * @param input Content of image
+     * @throws IOException When the content does not match the digest
+     */
+    public void put(String digest, InputStream input) throws IOException {
+        if (!isValid(digest)) {
+            throw new IOException("Invalid digest " + digest);
+        }
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available");
+        }
+
+        // Written to a unique file first so concurrent comparisons never read a partial image
+        File temp = File.createTempFile(digest, ".tmp", folder);
+        try {
+            OutputStream output = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[65536];
+                int length;
+                while ((length = input.read(buffer)) != -1) {
+                    md5.update(buffer, 0, length);
+                    output.write(buffer, 0, length);
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!digest.equals(_hex(md5.digest()))) {
+                throw new IOException("Content does not match digest " + digest);
+            }
+
+            File file = new File(folder, digest);
+            if (_store(temp, file)) {
+                _added(file.length());
+            }
+
+        } finally {
+            temp.delete();
+        }
+    }
+
+
+    /**
+     * Moves an uploaded image into the store, unless it is stored already
+     *
+     * @param temp Uploaded image
+     * @param file Image in the store
+     * @return Was the image added?
+     * @throws IOException
+     */
+    private synchronized boolean _store(File temp, File file) throws IOException {
+        // Uploaded before or by a concurrent request, so it is accounted for already
+        if (file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+            return false;
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not store image " + file.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Accounts for a new image and evicts the least recently used ones when over quota
+     *
+     * @param bytes Size of the new image
+     */
+    private synchronized void _added(long bytes) {
+        size += bytes;
+
+        if (size <= quota) {
+            return;
+        }
+
+        File[] files = _list();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File left, File right) {
+                return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
+            }
+        });
+
+        // Evicts down to 90% of the quota to avoid evicting on every upload
+        for(int i = 0; (i < files.length) && (size > quota * 0.9); i++) {
+            if (pins.containsKey(files[i].getName())) continue;
+
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * Lists all stored images
+     *
+     * @return Images
+     */
+    private File[] _list() {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for(File file : files) {
+            if (isValid(file.getName())) files[count++] = file;
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Converts bytes to lower-case hex
+     *
+     * @param bytes Bytes
+     * @return Hex
+     */
+    private static String _hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for(byte value : bytes) {
+            sb.append(String.format("%02x", value & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -1,6 +1,5 @@
 package org.jenkinsci.plugins.visual_diff;
 
-import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Extension;
 import hudson.model.*;
@@ -9,18 +8,25 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.util.FormValidation;
 import org.apache.commons.lang.math.NumberUtils;
 import org.jenkinsci.plugins.visual_diff.comparison.ComparisonDescribable;
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
 import org.jenkinsci.plugins.visual_diff.data.Screen;
 import org.jenkinsci.plugins.visual_diff.data.ScreenList;
 import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.PerceptualHashIndex;
 import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.Recompressor;
 
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Builder
@@ -49,17 +55,40 @@ public class Builder extends hudson.tasks.Builder {
      */
     private final int numberOfMissing;
 
+    /**
+     * Project whose approved screens are used when a screen was not approved in this project
+     */
+    private final String parentBaseline;
+
+    /**
+     * Number of builds to keep build and approved screens for; 0 to keep them as long as the build
+     */
+    private final int keepImages;
+
+    /**
+     * Recompress the screens of the build in the background after comparison?
+     */
+    private final boolean recompress;
+
 
     /**
      * Constructor for Builder
      *
      * @param comparisons List of comparisons
+     * @param markAs Mark build as...
+     * @param numberOfMissing Number of missing screens until build result changes
+     * @param parentBaseline Project whose approved screens are used when a screen was not approved in this project
+     * @param keepImages Number of builds to keep build and approved screens for
+     * @param recompress Recompress the screens of the build in the background after comparison?
      */
     @DataBoundConstructor
-    public Builder(List<ComparisonDescribable> comparisons, String markAs, int numberOfMissing) {
+    public Builder(List<ComparisonDescribable> comparisons, String markAs, int numberOfMissing, String parentBaseline, int keepImages, boolean recompress) {
         this.comparisons = comparisons;
         this.markAs = markAs;
         this.numberOfMissing = numberOfMissing;
+        this.parentBaseline = parentBaseline;
+        this.keepImages = keepImages;
+        this.recompress = recompress;
     }
 
 
@@ -90,6 +119,33 @@ public class Builder extends hudson.tasks.Builder {
         return numberOfMissing;
     }
 
+    /**
+     * Project whose approved screens are used when a screen was not approved in this project
+     *
+     * @return Name of project
+     */
+    public String getParentBaseline() {
+        return parentBaseline;
+    }
+
+    /**
+     * Number of builds to keep build and approved screens for
+     *
+     * @return Number of builds; 0 to keep them as long as the build
+     */
+    public int getKeepImages() {
+        return keepImages;
+    }
+
+    /**
+     * Recompress the screens of the build in the background after comparison?
+     *
+     * @return True/False
+     */
+    public boolean getRecompress() {
+        return recompress;
+    }
+
 
 
     /**
@@ -102,36 +158,81 @@ public class Builder extends hudson.tasks.Builder {
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
 
+        DataAction data = new DataAction();
+        BuildTimings timings = data.getTimings();
+
+        long start = System.currentTimeMillis();
+
         ProjectArtifacts projectArtifacts = new ProjectArtifacts(build.getProject());
         projectArtifacts.createFolders(listener);
 
+        // Branches only keep the screens they approved differently; fails the build if the parent is unknown
+        ProjectArtifacts parent = projectArtifacts.setParent(parentBaseline);
+        if (parent != null) {
+            listener.getLogger().println("Use approved screens of " + parentBaseline + " for screens not approved in this project.");
+        }
+
+        // Reviewers can open the report while the screens are still compared
+        build.addAction(data);
+        build.addAction(new CompareAction(build));
+
         BuildArtifacts buildArtifacts = new BuildArtifacts(build);
         buildArtifacts.createFolders(listener);
 
-        // Copy all approved screens
-        listener.getLogger().println("Copy approved screens...");
-        buildArtifacts.duplicateApprovedProjectScreen();
+        timings.record(BuildTimings.PHASE_FOLDERS, System.currentTimeMillis() - start);
+
+        // Compare against the current generation of approved screens
+        start = System.currentTimeMillis();
+        long generation = buildArtifacts.recordApprovedGeneration();
+        listener.getLogger().println("Compare with approved screens of generation " + generation + "...");
+        timings.record(BuildTimings.PHASE_DUPLICATE_APPROVED, System.currentTimeMillis() - start);
 
         // Run through all comparisons
-        DataAction data = new DataAction();
-        ScreenList completeList = data.getScreenList();
+        ScreenList completeList = new ScreenList();
+        List<ScreenList> lists = new ArrayList<ScreenList>();
         for(ComparisonDescribable comparison : comparisons) {
 
             // Process all screens
-            ScreenList list = comparison.processAll(build, launcher, listener);
+            ScreenList list = comparison.processAll(build, launcher, listener, timings, data);
+            lists.add(list);
             completeList.addAll(list);
         }
 
+        // Renamed screens are matched with the approved screens missing in all comparisons
+        PerceptualHashIndex missingIndex = null;
+        Set<String> matched = new HashSet<String>();
+        for(int i = 0; i < comparisons.size(); i++) {
+            ComparisonDescribable comparison = comparisons.get(i);
+            if (!Boolean.TRUE.equals(comparison.getDetectRenames())) continue;
+
+            if (missingIndex == null) {
+                missingIndex = ComparisonDescribable.indexMissingScreens(build, completeList);
+            }
+            comparison.matchRenamedScreens(build, launcher, listener, lists.get(i), completeList, missingIndex, matched);
+        }
+
+        // New screens are auto-approved once they are known not to be renamed
+        for(int i = 0; i < comparisons.size(); i++) {
+            comparisons.get(i).approveNewScreens(build, listener, lists.get(i));
+            comparisons.get(i).markResult(build, listener, lists.get(i));
+        }
+
         // Find missing screens
         listener.getLogger().println("Find missing screens...");
+        start = System.currentTimeMillis();
         int missingApprovedScreens = 0;
-        FilePath[] approvedScreens = projectArtifacts.getScreens();
-        for(FilePath approvedScreen : approvedScreens) {
+        Set<String> approvedScreens = buildArtifacts.getApprovedManifest().getNames();
 
-            String screenName = approvedScreen.getName();
+        // Approved screens that were matched to a renamed screen are not missing
+        Set<String> renamedScreens = new HashSet<String>();
+        for(Screen screen : completeList) {
+            if (screen.isRenamed()) renamedScreens.add(screen.getRenamedFrom());
+        }
+
+        for(String screenName : approvedScreens) {
 
             // Screen not found in build-lists
-            if (!completeList.hasScreenName(screenName)) {
+            if (!completeList.hasScreenName(screenName) && !renamedScreens.contains(screenName)) {
 
                 Screen newScreen = new Screen(screenName);
                 newScreen.approvedImage();
@@ -142,6 +243,7 @@ public class Builder extends hudson.tasks.Builder {
                 missingApprovedScreens++;
             }
         }
+        timings.record(BuildTimings.PHASE_MISSING, System.currentTimeMillis() - start);
 
         // Too many differences?
         if (missingApprovedScreens >= numberOfMissing) {
@@ -161,9 +263,17 @@ public class Builder extends hudson.tasks.Builder {
             }
         }
 
-        // Add all action
-        build.addAction(data);
-        build.addAction(new CompareAction(build));
+        // Print timings
+        listener.getLogger().println("Visual-Diff timings:");
+        listener.getLogger().print(timings.toTable());
+
+        // Replaces the screens in the order they completed
+        data.complete(completeList);
+
+        // Screens are only read by the report from now on
+        if (recompress && !Recompressor.submit(build)) {
+            listener.getLogger().println("Too many builds waiting for recompression; screens are kept as they are.");
+        }
 
         return true;
     }
@@ -231,6 +341,53 @@ public class Builder extends hudson.tasks.Builder {
         }
 
 
+        /**
+         * Will be called when parentBaseline field is validated
+         *
+         * @param value Value of field
+         * @param project Project being configured
+         * @return Validation result
+         * @throws IOException
+         * @throws InterruptedException
+         * @throws ServletException
+         */
+        public FormValidation doCheckParentBaseline(@QueryParameter String value, @AncestorInPath AbstractProject project)
+                throws IOException, InterruptedException, ServletException {
+
+            if ((value == null) || (value.trim().length() == 0))
+                return FormValidation.ok();
+
+            AbstractProject parent = Hudson.getInstance().getItem(value.trim(), project.getParent(), AbstractProject.class);
+
+            if (parent == null)
+                return FormValidation.error("No project with this name exists!");
+
+            if (parent == project)
+                return FormValidation.error("A project cannot be its own parent baseline.");
+
+            return FormValidation.ok();
+        }
+
+        /**
+         * Will be called when keepImages field is validated
+         *
+         * @param value Value of field
+         * @return Validation result
+         * @throws IOException
+         * @throws InterruptedException
+         * @throws ServletException
+         */
+        public FormValidation doCheckKeepImages(@QueryParameter String value)
+                throws IOException, InterruptedException, ServletException {
+
+            int number = NumberUtils.toInt(value, -1);
+
+            if (number < 0)
+                return FormValidation.error("Please enter zero or a positive number!");
+
+            return FormValidation.ok();
+        }
+
         /**
          * Will be called when numberOfMissing field is validated
          *
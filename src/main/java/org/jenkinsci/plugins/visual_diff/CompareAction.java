@@ -4,10 +4,18 @@ import hudson.FilePath;
 import hudson.model.*;
 import hudson.util.*;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
+import org.jenkinsci.plugins.visual_diff.data.Screen;
+import org.jenkinsci.plugins.visual_diff.data.ScreenList;
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
 import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
 import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
 
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.CategoryAxis;
 import org.jfree.chart.axis.CategoryLabelPositions;
@@ -23,8 +31,10 @@ import org.jfree.ui.RectangleEdge;
 import org.kohsuke.stapler.*;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.*;
 import java.util.List;
@@ -45,6 +55,26 @@ public class CompareAction implements Action, Serializable {
      */
     private static final long serialVersionUID = -5986348230372792726L;
 
+    /**
+     * Names of all charts; rendered once when the build completes
+     */
+    public static final String[] CHARTS = { "activeInactiveChart", "buildChart", "buildDetailsChart", "buildTimingsChart" };
+
+    /**
+     * Maximum time a progress request waits for new screens (in ms)
+     */
+    private static final long PROGRESS_TIMEOUT = 20 * 1000;
+
+    /**
+     * Width of charts
+     */
+    private static final int CHART_WIDTH = 300;
+
+    /**
+     * Height of charts
+     */
+    private static final int CHART_HEIGHT = 200;
+
 
     /**
      * Build of action
@@ -109,6 +139,29 @@ public class CompareAction implements Action, Serializable {
     }
 
 
+    /**
+     * Gets the build artifacts holding the images of a screen
+     *
+     * Screens inherited from a previous build refer to the images of that build.
+     *
+     * @param name Name of the screen
+     * @return Artifacts utilities
+     */
+    public BuildArtifacts getScreenArtifacts(String name) {
+        DataAction data = getData();
+        Screen screen = (data == null) ? null : data.getScreenList().getScreenByName(name);
+
+        if ((screen != null) && screen.isInherited()) {
+            AbstractBuild<?, ?> origin = build.getProject().getBuildByNumber(screen.getInheritedFrom());
+            if (origin != null) {
+                return new BuildArtifacts(origin);
+            }
+        }
+
+        return getBuildArtifacts();
+    }
+
+
     /**
      * Gets the data for current build
      *
@@ -119,6 +172,54 @@ public class CompareAction implements Action, Serializable {
     }
 
 
+    /**
+     * Are screens of the build still compared?
+     *
+     * @return True/False
+     */
+    public boolean isRunning() {
+        DataAction data = getData();
+        return build.isBuilding() && (data != null) && !data.isFinished();
+    }
+
+    /**
+     * Prints the screens completed after the given number of screens as JSON to response
+     *
+     * Waits until new screens were completed, so the report can poll without delay while the build is running.
+     *
+     * @param req Request
+     * @param rsp Response
+     * @param since Number of screens the report already shows
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void doProgress(StaplerRequest req, StaplerResponse rsp, @QueryParameter int since)
+            throws InterruptedException, IOException, ServletException {
+
+        JSONArray screens = new JSONArray();
+        int next = since;
+
+        if (isRunning()) {
+            List<Screen> list = getData().waitForScreens(since, PROGRESS_TIMEOUT);
+
+            // Screens are only appended until the final list replaces them; the report reloads then
+            for(Screen screen : list) {
+                screens.add(screen.toJSON());
+            }
+            next = Math.max(0, since) + list.size();
+        }
+
+        JSONObject progress = new JSONObject();
+        progress.put("screens", screens);
+        progress.put("next", next);
+        progress.put("finished", !isRunning());
+
+        rsp.setContentType("application/json; charset=utf-8");
+        rsp.getWriter().write(progress.toString());
+    }
+
+
     /**
      * Serves build screens
      *
@@ -129,8 +230,7 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doBuildScreens(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
-        DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, "Build-Screens");
-        dbs.serveFile(req, rsp, getBuildArtifacts().getBuildScreensPath(), "graph.gif", false);
+        serveFile(req, rsp, "Build-Screens", BuildArtifacts.BUILD_FOLDER);
     }
 
     /**
@@ -143,8 +243,7 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doBuildDiffs(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
-        DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, "Build-Diffs");
-        dbs.serveFile(req, rsp, getBuildArtifacts().getBuildDiffsPath(), "graph.gif", false);
+        serveFile(req, rsp, "Build-Diffs", BuildArtifacts.DIFF_FOLDER);
     }
 
     /**
@@ -157,8 +256,78 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doApprovedScreens(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
-        DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, "Approved-Screens");
-        dbs.serveFile(req, rsp, getBuildArtifacts().getApprovedScreensPath(), "graph.gif", false);
+        serveFile(req, rsp, "Approved-Screens", BuildArtifacts.APPROVED_FOLDER);
+    }
+
+    /**
+     * Serves a file of a folder and records the serving latency
+     *
+     * @param req Request
+     * @param rsp Response
+     * @param title Title of the folder
+     * @param folder Name of the folder in the build artifacts
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws ServletException
+     */
+    protected void serveFile(StaplerRequest req, StaplerResponse rsp, String title, String folder)
+            throws InterruptedException, IOException, ServletException {
+
+        long start = System.currentTimeMillis();
+        try {
+            String name = req.getRestOfPath();
+            if (name.startsWith("/")) name = name.substring(1);
+
+            // Approved screens are read from the generation the build compared against
+            if (BuildArtifacts.APPROVED_FOLDER.equals(folder)) {
+                if (!_isKnownScreen(name)) {
+                    rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+
+                FilePath path = getScreenArtifacts(name).getApprovedScreenPath(name);
+
+                if (!path.exists()) {
+                    rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                } else {
+                    rsp.serveFile(req, path.read(), path.lastModified(), path.length(), name);
+                }
+                return;
+            }
+
+            FilePath root = getScreenArtifacts(name).getPath().child(folder);
+
+            DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, title);
+            dbs.serveFile(req, rsp, root, "graph.gif", false);
+        } finally {
+            MetricsRegistry.get().observe(MetricsRegistry.SERVE_LATENCY + "{folder=\"" + folder + "\"}",
+                                          System.currentTimeMillis() - start);
+        }
+    }
+
+
+    /**
+     * Is the name one of a screen of the build or of the approved screens it compared against?
+     *
+     * Approved screens are resolved by name outside of the build folder, so only plain names that are known to the
+     * build are served.
+     *
+     * @param name Name of the screen
+     * @return True/False
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private boolean _isKnownScreen(String name) throws InterruptedException, IOException {
+        if ((name.length() == 0) || (name.indexOf('/') >= 0) || (name.indexOf('\\') >= 0) || name.equals("..")) {
+            return false;
+        }
+
+        DataAction data = getData();
+        if ((data != null) && data.getScreenList().hasScreenName(name)) {
+            return true;
+        }
+
+        return getBuildArtifacts().getApprovedManifest().hasScreen(name);
     }
 
 
@@ -171,8 +340,19 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doApprove(@QueryParameter String name) throws InterruptedException, IOException, ServletException {
-        getBuildArtifacts().getBuildScreenPath(name).copyTo(getProjectArtifacts().getScreenPath(name));
-        getData().getScreenList().getScreenByName(name).approve();
+        Screen screen = getData().getScreenList().getScreenByName(name);
+
+        // The approved screen of a renamed screen moves to the new name
+        Set<String> deleted = screen.isRenamed() ? Collections.singleton(screen.getRenamedFrom()) : Collections.<String>emptySet();
+
+        getProjectArtifacts().updateScreens(Collections.singletonMap(name, getScreenArtifacts(name).getBuildScreenPath(name)), deleted);
+
+        screen.approve();
+
+        // Charts of this and all newer builds show the changed counts; they are rendered again when served
+        getBuildArtifacts().writeSummary(getData().getSummary());
+        getProjectArtifacts().touchApprovedTime();
+        Trend.invalidate(build.getProject());
     }
 
 
@@ -185,7 +365,7 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doDelete(@QueryParameter String name) throws InterruptedException, IOException, ServletException {
-        getProjectArtifacts().getScreenPath(name).delete();
+        getProjectArtifacts().deleteScreen(name);
     }
 
     /**
@@ -196,11 +376,8 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doDeleteAll(@QueryParameter String name) throws InterruptedException, IOException, ServletException {
-        FilePath[] approvedScreens = getProjectArtifacts().getScreens();
-
-        for(FilePath approvedScreen : approvedScreens) {
-            approvedScreen.delete();
-        }
+        ProjectArtifacts projectArtifacts = getProjectArtifacts();
+        projectArtifacts.deleteScreens(projectArtifacts.getScreenNames());
     }
 
 
@@ -212,11 +389,23 @@ public class CompareAction implements Action, Serializable {
      * @return Chart
      */
     protected JFreeChart createScreensChart(CategoryDataset dataSet, String title) {
+        return createChart(dataSet, title, "Screens");
+    }
+
+    /**
+     * Creates a line chart
+     *
+     * @param dataSet Data-set for chart
+     * @param title Title of chart
+     * @param rangeLabel Label of the range axis
+     * @return Chart
+     */
+    protected JFreeChart createChart(CategoryDataset dataSet, String title, String rangeLabel) {
 
         JFreeChart chart = ChartFactory.createLineChart(
                 title, // chart-title
                 null, // unused
-                "Screens", // range axis label
+                rangeLabel, // range axis label
                 dataSet, // data
                 PlotOrientation.VERTICAL, // orientation
                 true, // include legend
@@ -253,6 +442,24 @@ public class CompareAction implements Action, Serializable {
         return chart;
     }
 
+    /**
+     * Gets the builds shown in the charts of this build
+     *
+     * @return Recent builds up to this build, oldest first
+     */
+    private List<AbstractBuild<?, ?>> _getChartBuilds() {
+        List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+
+        // Newer builds are left out, so the charts of a build never change once rendered
+        for(AbstractBuild<?, ?> currentBuild = build; (currentBuild != null) && (builds.size() < Trend.HISTORY);
+            currentBuild = currentBuild.getPreviousBuild()) {
+            builds.add(currentBuild);
+        }
+        Collections.reverse(builds);
+
+        return builds;
+    }
+
     /**
      * Create active/inactive data-set
      *
@@ -261,9 +468,7 @@ public class CompareAction implements Action, Serializable {
     protected CategoryDataset createActiveInactiveDataSet() throws InterruptedException, IOException {
         DefaultCategoryDataset ds = new DefaultCategoryDataset();
 
-        List<? extends AbstractBuild<?, ?>> builds = build.getProject().getBuilds();
-        for (ListIterator iterator = builds.listIterator(builds.size()); iterator.hasPrevious();) {
-            AbstractBuild<?, ?> currentBuild = (AbstractBuild<?, ?>)iterator.previous();
+        for(AbstractBuild<?, ?> currentBuild : _getChartBuilds()) {
 
             DataAction dataAction = currentBuild.getAction(DataAction.class);
             if (dataAction == null) continue;
@@ -271,8 +476,10 @@ public class CompareAction implements Action, Serializable {
             Integer number = currentBuild.number;
             String buildNumber = "#" + number;
 
-            ds.addValue(dataAction.getScreenList().getActiveScreens().length, "active", buildNumber);
-            ds.addValue(dataAction.getScreenList().getInactiveScreens().length, "inactive", buildNumber);
+            int[] counts = dataAction.getScreenList().getCategoryCounts();
+
+            ds.addValue(counts[ScreenList.ACTIVE], "active", buildNumber);
+            ds.addValue(counts[ScreenList.INACTIVE], "inactive", buildNumber);
         }
 
         return ds;
@@ -286,9 +493,7 @@ public class CompareAction implements Action, Serializable {
     protected CategoryDataset createBuildDataSet() throws InterruptedException, IOException {
         DefaultCategoryDataset ds = new DefaultCategoryDataset();
 
-        List<? extends AbstractBuild<?, ?>> builds = build.getProject().getBuilds();
-        for (ListIterator iterator = builds.listIterator(builds.size()); iterator.hasPrevious();) {
-            AbstractBuild<?, ?> currentBuild = (AbstractBuild<?, ?>)iterator.previous();
+        for(AbstractBuild<?, ?> currentBuild : _getChartBuilds()) {
 
             DataAction dataAction = currentBuild.getAction(DataAction.class);
             if (dataAction == null) continue;
@@ -296,9 +501,11 @@ public class CompareAction implements Action, Serializable {
             Integer number = currentBuild.number;
             String buildNumber = "#" + number;
 
-            ds.addValue(dataAction.getScreenList().getApprovedScreens().length, "approved", buildNumber);
-            ds.addValue(dataAction.getScreenList().getBuildScreens().length, "build", buildNumber);
-            ds.addValue(dataAction.getScreenList().getDifferenceScreens().length, "diff", buildNumber);
+            int[] counts = dataAction.getScreenList().getCategoryCounts();
+
+            ds.addValue(counts[ScreenList.APPROVED], "approved", buildNumber);
+            ds.addValue(counts[ScreenList.BUILD], "build", buildNumber);
+            ds.addValue(counts[ScreenList.DIFFERENCE], "diff", buildNumber);
         }
 
         return ds;
@@ -312,9 +519,7 @@ public class CompareAction implements Action, Serializable {
     protected CategoryDataset createBuildDetailsDataSet() throws InterruptedException, IOException {
         DefaultCategoryDataset ds = new DefaultCategoryDataset();
 
-        List<? extends AbstractBuild<?, ?>> builds = build.getProject().getBuilds();
-        for (ListIterator iterator = builds.listIterator(builds.size()); iterator.hasPrevious();) {
-            AbstractBuild<?, ?> currentBuild = (AbstractBuild<?, ?>)iterator.previous();
+        for(AbstractBuild<?, ?> currentBuild : _getChartBuilds()) {
 
             DataAction dataAction = currentBuild.getAction(DataAction.class);
             if (dataAction == null) continue;
@@ -322,19 +527,160 @@ public class CompareAction implements Action, Serializable {
             Integer number = currentBuild.number;
             String buildNumber = "#" + number;
 
-            ds.addValue(dataAction.getScreenList().getExistingScreens().length, "known", buildNumber);
-            ds.addValue(dataAction.getScreenList().getExistingEqualScreens().length, "known =", buildNumber);
-            ds.addValue(dataAction.getScreenList().getExistingDifferentBelowThresholdScreens().length, "known <", buildNumber);
-            ds.addValue(dataAction.getScreenList().getExistingDifferentAboveThresholdScreens().length, "known >", buildNumber);
+            int[] counts = dataAction.getScreenList().getCategoryCounts();
 
-            ds.addValue(dataAction.getScreenList().getNewScreens().length, "new", buildNumber);
-            ds.addValue(dataAction.getScreenList().getNewAutoApprovedScreens().length, "new auto", buildNumber);
-            ds.addValue(dataAction.getScreenList().getNewUnApprovedScreens().length, "new fail", buildNumber);
+            ds.addValue(counts[ScreenList.EXISTING], "known", buildNumber);
+            ds.addValue(counts[ScreenList.EXISTING_EQUAL], "known =", buildNumber);
+            ds.addValue(counts[ScreenList.EXISTING_DIFFERENT_BELOW_THRESHOLD], "known <", buildNumber);
+            ds.addValue(counts[ScreenList.EXISTING_DIFFERENT_ABOVE_THRESHOLD], "known >", buildNumber);
+
+            ds.addValue(counts[ScreenList.NEW], "new", buildNumber);
+            ds.addValue(counts[ScreenList.NEW_AUTO_APPROVED], "new auto", buildNumber);
+            ds.addValue(counts[ScreenList.NEW_UNAPPROVED], "new fail", buildNumber);
+
+            ds.addValue(counts[ScreenList.SKIPPED], "not compared", buildNumber);
         }
 
         return ds;
     }
 
+    /**
+     * Create build timings data-set
+     *
+     * @return Data-set
+     */
+    protected CategoryDataset createBuildTimingsDataSet() throws InterruptedException, IOException {
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+
+        for(AbstractBuild<?, ?> currentBuild : _getChartBuilds()) {
+
+            DataAction dataAction = currentBuild.getAction(DataAction.class);
+            if (dataAction == null) continue;
+
+            Integer number = currentBuild.number;
+            String buildNumber = "#" + number;
+
+            BuildTimings timings = dataAction.getTimings();
+
+            ds.addValue(timings.getPhase(BuildTimings.PHASE_FOLDERS), BuildTimings.PHASE_FOLDERS, buildNumber);
+            ds.addValue(timings.getPhase(BuildTimings.PHASE_DUPLICATE_APPROVED), BuildTimings.PHASE_DUPLICATE_APPROVED, buildNumber);
+            ds.addValue(timings.getPhase(BuildTimings.PHASE_ARCHIVE), BuildTimings.PHASE_ARCHIVE, buildNumber);
+            ds.addValue(timings.getPhase(BuildTimings.PHASE_COMPARE), BuildTimings.PHASE_COMPARE, buildNumber);
+            ds.addValue(timings.getPhase(BuildTimings.PHASE_MISSING), BuildTimings.PHASE_MISSING, buildNumber);
+
+            ds.addValue(timings.getAverageLatency(), "screen avg", buildNumber);
+            ds.addValue(timings.getMaxLatency(), "screen max", buildNumber);
+        }
+
+        return ds;
+    }
+
+
+    /**
+     * Creates a chart by name
+     *
+     * @param name Name of chart
+     * @return Chart or null if there is no chart with this name
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected JFreeChart createChart(String name) throws InterruptedException, IOException {
+        if ("activeInactiveChart".equals(name)) {
+            return createScreensChart(createActiveInactiveDataSet(), "Active/Inactive");
+
+        } else if ("buildChart".equals(name)) {
+            return createScreensChart(createBuildDataSet(), "Build Summary");
+
+        } else if ("buildDetailsChart".equals(name)) {
+            return createScreensChart(createBuildDetailsDataSet(), "Build Details");
+
+        } else if ("buildTimingsChart".equals(name)) {
+            return createChart(createBuildTimingsDataSet(), "Build Timings", "Time (ms)");
+        }
+
+        return null;
+    }
+
+    /**
+     * Renders a chart into the build
+     *
+     * @param name Name of chart
+     * @return Path of rendered chart
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public FilePath renderChart(String name) throws InterruptedException, IOException {
+        BuildArtifacts buildArtifacts = getBuildArtifacts();
+        FilePath path = buildArtifacts.getChartPath(name);
+
+        buildArtifacts.getChartsPath().mkdirs();
+
+        // Concurrent requests may render the same chart; the rename keeps the file complete
+        FilePath staged = buildArtifacts.getChartsPath().createTempFile(name, ".tmp");
+        OutputStream out = staged.write();
+        try {
+            ChartUtilities.writeChartAsPNG(out, createChart(name), CHART_WIDTH, CHART_HEIGHT);
+        } finally {
+            out.close();
+        }
+        staged.renameTo(path);
+
+        return path;
+    }
+
+    /**
+     * Renders all charts into the build
+     *
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void renderCharts() throws InterruptedException, IOException {
+        for(String name : CHARTS) {
+            renderChart(name);
+        }
+    }
+
+    /**
+     * Serves a chart rendered into the build; renders it first for builds of older versions and after approvals
+     *
+     * @param req Request
+     * @param rsp Response
+     * @param name Name of chart
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws ServletException
+     */
+    protected void serveChart(StaplerRequest req, StaplerResponse rsp, String name) throws InterruptedException, IOException, ServletException {
+        long start = System.currentTimeMillis();
+        try {
+            FilePath path = getBuildArtifacts().getChartPath(name);
+
+            // Modification times may be rounded to seconds, so a chart of the same second is rendered again
+            if (!path.exists() || (path.lastModified() <= getProjectArtifacts().getApprovedTime())) {
+                path = renderChart(name);
+            }
+
+            rsp.serveFile(req, path.read(), path.lastModified(), path.length(), name + ".png");
+        } finally {
+            MetricsRegistry.get().observe(MetricsRegistry.SERVE_LATENCY + "{folder=\"" + BuildArtifacts.CHARTS_FOLDER + "\"}",
+                                          System.currentTimeMillis() - start);
+        }
+    }
+
+
+    /**
+     * Prints the trend of all builds up to this build as JSON to response
+     *
+     * @param req Request
+     * @param rsp Response
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
+        rsp.setContentType("application/json; charset=utf-8");
+        rsp.getWriter().write(Trend.get(build));
+    }
 
     /**
      * Prints active/inactive chart to response
@@ -346,7 +692,7 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doActiveInactiveChart(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
-        ChartUtil.generateGraph(req, rsp, createScreensChart(createActiveInactiveDataSet(), "Active/Inactive"), 300, 200);
+        serveChart(req, rsp, "activeInactiveChart");
     }
 
     /**
@@ -359,7 +705,7 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doBuildChart(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
-        ChartUtil.generateGraph(req, rsp, createScreensChart(createBuildDataSet(), "Build Summary"), 300, 200);
+        serveChart(req, rsp, "buildChart");
     }
 
     /**
@@ -372,7 +718,19 @@ public class CompareAction implements Action, Serializable {
      * @throws ServletException
      */
     public void doBuildDetailsChart(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
-        ChartUtil.generateGraph(req, rsp, createScreensChart(createBuildDetailsDataSet(), "Build Details"), 300, 200);
+        serveChart(req, rsp, "buildDetailsChart");
     }
-}
 
+    /**
+     * Prints build-timings chart to response
+     *
+     * @param req Request
+     * @param rsp Response
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void doBuildTimingsChart(StaplerRequest req, StaplerResponse rsp) throws InterruptedException, IOException, ServletException {
+        serveChart(req, rsp, "buildTimingsChart");
+    }
+}
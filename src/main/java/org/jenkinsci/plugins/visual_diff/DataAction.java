@@ -1,9 +1,16 @@
 package org.jenkinsci.plugins.visual_diff;
 
 import hudson.model.*;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
+import org.jenkinsci.plugins.visual_diff.data.Screen;
 import org.jenkinsci.plugins.visual_diff.data.ScreenList;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Action to save build data
@@ -19,9 +26,30 @@ public class DataAction extends InvisibleAction implements Serializable {
 
 
     /**
-     * List of screens
+     * List of screens; replaced as a whole, so readers never see a list that is being modified. While the build is
+     * running, it is a snapshot of the published screens
      */
-    private ScreenList screenList = new ScreenList();
+    private volatile ScreenList screenList = new ScreenList();
+
+    /**
+     * Screens published while the build is running; only appended to, and only while holding the lock
+     */
+    private transient ScreenList published = null;
+
+    /**
+     * Number of published screens, readable without the lock
+     */
+    private transient volatile int publishedCount = 0;
+
+    /**
+     * Were all screens of the running build compared?
+     */
+    private transient volatile boolean finished = false;
+
+    /**
+     * Timings of the build
+     */
+    private BuildTimings timings = new BuildTimings();
 
 
     /**
@@ -30,7 +58,92 @@ public class DataAction extends InvisibleAction implements Serializable {
      * @return Screen list
      */
     public ScreenList getScreenList() {
-        return screenList;
+        ScreenList list = screenList;
+
+        // Readers of a running build take a copy once per change, publishers never copy
+        if (!finished && (list.size() < publishedCount)) {
+            synchronized (this) {
+                if (!finished && (published != null) && (screenList.size() < published.size())) {
+                    ScreenList snapshot = new ScreenList();
+                    snapshot.addAll(published);
+                    screenList = snapshot;
+                }
+                list = screenList;
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Were all screens of the running build compared?
+     *
+     * @return True/False; false for builds loaded from disk
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Adds completed screens while the build is still running
+     *
+     * @param screens Completed screens
+     */
+    public synchronized void publish(Collection<Screen> screens) {
+        if (published == null) {
+            published = new ScreenList();
+        }
+
+        published.addAll(screens);
+        publishedCount = published.size();
+        notifyAll();
+    }
+
+    /**
+     * Replaces the screens with the final list once all screens were compared
+     *
+     * @param screens All screens of the build
+     */
+    public synchronized void complete(ScreenList screens) {
+        screenList = screens;
+        finished = true;
+        published = null;
+        notifyAll();
+    }
+
+    /**
+     * Waits until more screens were published or all screens were compared
+     *
+     * @param since Number of screens already known
+     * @param timeout Maximum time to wait (in ms)
+     * @return Screens published after the known ones; empty once all screens were compared
+     * @throws InterruptedException
+     */
+    public synchronized List<Screen> waitForScreens(int since, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+
+        while ((publishedCount <= since) && !finished && (remaining > 0)) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        if (published == null) {
+            return new ArrayList<Screen>();
+        }
+
+        // Only the new screens are copied
+        int from = Math.max(0, Math.min(since, published.size()));
+        return new ArrayList<Screen>(published.subList(from, published.size()));
+    }
+
+    /**
+     * Gets the timings of the build
+     *
+     * @return Timings
+     */
+    public BuildTimings getTimings() {
+        return timings;
     }
 
     /**
@@ -41,5 +154,34 @@ public class DataAction extends InvisibleAction implements Serializable {
     public String getJSONData() {
         return screenList.toJSON().toString();
     }
-}
 
+    /**
+     * Gets the summary of the build, with the counts of all screen categories and the timings
+     *
+     * @return Summary
+     */
+    public JSONObject getSummary() {
+        JSONArray counts = new JSONArray();
+        for(int count : screenList.getCategoryCounts()) {
+            counts.add(count);
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("counts", counts);
+        summary.put("timings", timings.toJSON());
+
+        return summary;
+    }
+
+    /**
+     * Initializes fields missing in data of older versions
+     *
+     * @return Action
+     */
+    protected Object readResolve() {
+        if (timings == null) {
+            timings = new BuildTimings();
+        }
+        return this;
+    }
+}
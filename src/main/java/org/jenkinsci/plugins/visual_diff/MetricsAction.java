@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.visual_diff;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Root action serving the comparison metrics in the Prometheus text format
+ *
+ * @author Marcel Erz
+ */
+@Extension
+public class MetricsAction implements RootAction {
+
+    /**
+     * Gets the title of this action
+     *
+     * @return Title
+     */
+    public String getDisplayName() {
+        return "Visual-Diff Metrics";
+    }
+
+    /**
+     * No icon; the action is not listed in the side-panel
+     *
+     * @return Icon filename
+     */
+    public String getIconFileName() {
+        return null;
+    }
+
+    /**
+     * Gets the url for the action
+     *
+     * @return Url
+     */
+    public String getUrlName() {
+        return "vdiff-metrics";
+    }
+
+
+    /**
+     * Serves the metrics
+     *
+     * @param req Request
+     * @param rsp Response
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        Hudson.getInstance().checkPermission(Hudson.READ);
+
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+
+        PrintWriter writer = rsp.getWriter();
+        writer.print(MetricsRegistry.get().toPrometheus());
+        writer.flush();
+    }
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.visual_diff;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
+
+import java.io.IOException;
+
+/**
+ * Prepares the report when a build with visual-diff completes
+ *
+ * Charts and the summary are written into the build once, so reports opened right after a run serve static
+ * files instead of rendering charts on request threads.
+ *
+ * @author Marcel Erz
+ */
+@Extension
+public class ReportListener extends RunListener<AbstractBuild<?, ?>> {
+
+    /**
+     * Renders the charts and writes the summary of a completed build
+     *
+     * @param build Completed build
+     * @param listener Listener for console
+     */
+    @Override
+    public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+        CompareAction compareAction = build.getAction(CompareAction.class);
+        DataAction data = build.getAction(DataAction.class);
+        if ((compareAction == null) || (data == null)) {
+            return;
+        }
+
+        try {
+            new BuildArtifacts(build).writeSummary(data.getSummary());
+            compareAction.renderCharts();
+
+        } catch (IOException e) {
+            listener.getLogger().println("Could not prepare the Visual-Diff report: " + e.getMessage());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
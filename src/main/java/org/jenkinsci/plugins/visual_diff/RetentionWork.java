@@ -0,0 +1,181 @@
+package org.jenkinsci.plugins.visual_diff;
+
+import hudson.Extension;
+import hudson.model.*;
+
+import org.jenkinsci.plugins.visual_diff.data.Screen;
+import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.RateLimiter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Removes images of old builds and approved images no build refers to anymore
+ *
+ * Builds beyond the number of builds to keep images for lose their build and approved screens; differences and
+ * all data stay. Builds still referred to by screens inherited in newer builds keep their images. File operations
+ * are rate-limited so that running builds are not disturbed.
+ *
+ * @author Marcel Erz
+ */
+@Extension
+public class RetentionWork extends AsyncPeriodicWork {
+
+    /**
+     * Maximum number of files deleted per second
+     */
+    public static final long FILES_PER_SECOND = Long.getLong(RetentionWork.class.getName() + ".filesPerSecond", 100);
+
+
+    /**
+     * Initializes the periodic work
+     */
+    public RetentionWork() {
+        super("Visual-Diff retention");
+    }
+
+
+    /**
+     * Gets the time between two runs
+     *
+     * @return Period (in ms)
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    /**
+     * Applies the retention of all projects with visual-diff
+     *
+     * @param listener Listener for log
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        RateLimiter limiter = new RateLimiter(FILES_PER_SECOND);
+
+        // Branches refer to generations of their parent baseline
+        Map<String, List<AbstractProject<?, ?>>> children = new HashMap<String, List<AbstractProject<?, ?>>>();
+        List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
+
+        for(AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            if (_getBuilder(project) == null) continue;
+            projects.add(project);
+
+            String parent = new ProjectArtifacts(project).getParentName();
+            if (parent.length() == 0) continue;
+
+            if (!children.containsKey(parent)) {
+                children.put(parent, new ArrayList<AbstractProject<?, ?>>());
+            }
+            children.get(parent).add(project);
+        }
+
+        for(AbstractProject<?, ?> project : projects) {
+            Builder builder = _getBuilder(project);
+
+            if (builder.getKeepImages() > 0) {
+                _pruneBuilds(project, builder.getKeepImages(), limiter, listener);
+            }
+
+            // Generations only pruned or deleted builds referred to are not needed anymore
+            List<AbstractProject<?, ?>> branches = children.get(project.getFullName());
+            new ProjectArtifacts(project).collectGarbage(listener, (branches == null) ?
+                    Collections.<AbstractProject<?, ?>>emptyList() : branches);
+        }
+    }
+
+    /**
+     * Gets the visual-diff builder of a project
+     *
+     * @param project Project
+     * @return Builder or null if the project does not use visual-diff
+     */
+    private static Builder _getBuilder(AbstractProject<?, ?> project) {
+        if (!(project instanceof Project)) {
+            return null;
+        }
+
+        return ((Project<?, ?>)project).getBuildersList().get(Builder.class);
+    }
+
+    /**
+     * Removes the images of all builds beyond the number of builds to keep images for
+     *
+     * Builds up to the recorded pruned number are not loaded again, except for the ones kept for inherited screens.
+     *
+     * @param project Project
+     * @param keepImages Number of builds to keep images for
+     * @param limiter Limiter for file operations
+     * @param listener Listener for log
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void _pruneBuilds(AbstractProject<?, ?> project, int keepImages, RateLimiter limiter, TaskListener listener)
+            throws IOException, InterruptedException {
+
+        ProjectArtifacts projectArtifacts = new ProjectArtifacts(project);
+        int prunedNumber = projectArtifacts.getPrunedNumber();
+        int running = Integer.MAX_VALUE;
+
+        Set<Integer> inheritedFrom = new HashSet<Integer>();
+        Set<Integer> retained = new TreeSet<Integer>();
+        int index = 0;
+        long bytes = 0;
+        int builds = 0;
+
+        // Newest builds first
+        for(AbstractBuild<?, ?> build : projectArtifacts.getUnprunedBuilds()) {
+            boolean kept = (index++ < keepImages);
+
+            if (kept || build.isBuilding()) {
+                if (!kept) running = Math.min(running, build.getNumber());
+
+                // Retained builds stay listed when more builds keep their images
+                if (build.getNumber() <= prunedNumber) retained.add(build.getNumber());
+
+                // Images of inherited screens are stored with the build they were compared in
+                DataAction data = build.getAction(DataAction.class);
+                if (data != null) {
+                    for(Screen screen : data.getScreenList()) {
+                        if (screen.isInherited()) inheritedFrom.add(screen.getInheritedFrom());
+                    }
+                }
+                continue;
+            }
+
+            // Running builds are visited again on the next run
+            prunedNumber = Math.max(prunedNumber, Math.min(build.getNumber(), running - 1));
+
+            if (inheritedFrom.contains(build.getNumber())) {
+                retained.add(build.getNumber());
+                continue;
+            }
+
+            BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+            if (buildArtifacts.isPruned() || !buildArtifacts.getPath().exists()) {
+                continue;
+            }
+
+            bytes += buildArtifacts.pruneImages(limiter);
+            builds++;
+        }
+
+        projectArtifacts.setPruned(prunedNumber, retained);
+
+        if (builds > 0) {
+            listener.getLogger().println("Removed images of " + builds + " builds of " + project.getFullName() + " (" + bytes + " bytes).");
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.jenkinsci.plugins.visual_diff;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
+import org.jenkinsci.plugins.visual_diff.data.ScreenList;
+import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time-series of the screen counts and timings of the recent builds of a project
+ *
+ * The trend is columnar: one array of build numbers and one array of values per series, so the browser can draw
+ * all charts from a single small response. It is built from the summaries written when builds complete and kept in
+ * memory until a screen of the project is approved. Only the most recent builds are loaded, so projects with a
+ * long history do not load all build records.
+ *
+ * @author Marcel Erz
+ */
+public class Trend {
+
+    /**
+     * Number of trends kept in memory
+     */
+    private static final int CACHE_SIZE = 32;
+
+    /**
+     * Number of builds in a trend; can be changed with a system property
+     */
+    public static final int HISTORY = Integer.getInteger(Trend.class.getName() + ".history", 100);
+
+    /**
+     * Names of the screen category series, in the order of the categories of {@link ScreenList}
+     */
+    public static final String[] CATEGORY_SERIES = {
+            "approved", "build", "diff", "active", "inactive", "new", "new auto", "new fail",
+            "known", "known =", "known <", "known >", "not compared" };
+
+    /**
+     * Names of the build phase series
+     */
+    public static final String[] PHASE_SERIES = {
+            BuildTimings.PHASE_FOLDERS, BuildTimings.PHASE_DUPLICATE_APPROVED, BuildTimings.PHASE_ARCHIVE,
+            BuildTimings.PHASE_COMPARE, BuildTimings.PHASE_MISSING };
+
+    /**
+     * Trends as JSON by project and last build
+     */
+    private static final Map<String, String> CACHE = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+
+    /**
+     * Gets the trend up to a build
+     *
+     * @param build Last build of the trend
+     * @return Trend as JSON
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static String get(AbstractBuild<?, ?> build) throws InterruptedException, IOException {
+        String key = _getKey(build.getProject()) + build.getNumber();
+
+        synchronized (CACHE) {
+            String trend = CACHE.get(key);
+            if (trend != null) {
+                return trend;
+            }
+        }
+
+        String trend = create(build).toString();
+
+        // Running builds still change
+        if (!build.isBuilding()) {
+            synchronized (CACHE) {
+                CACHE.put(key, trend);
+            }
+        }
+
+        return trend;
+    }
+
+    /**
+     * Removes all trends of a project from memory
+     *
+     * @param project Project
+     */
+    public static void invalidate(AbstractProject<?, ?> project) {
+        String prefix = _getKey(project);
+
+        synchronized (CACHE) {
+            for(Iterator<String> iterator = CACHE.keySet().iterator(); iterator.hasNext();) {
+                if (iterator.next().startsWith(prefix)) iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Creates the trend of the builds up to a build
+     *
+     * @param build Last build of the trend
+     * @return Trend
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static JSONObject create(AbstractBuild<?, ?> build) throws InterruptedException, IOException {
+        // Walks back from the build, so older build records are not loaded
+        List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+        for(AbstractBuild<?, ?> currentBuild = build; (currentBuild != null) && (builds.size() < HISTORY);
+            currentBuild = currentBuild.getPreviousBuild()) {
+            builds.add(currentBuild);
+        }
+        Collections.reverse(builds);
+
+        JSONArray numbers = new JSONArray();
+        JSONArray[] categories = _createColumns(CATEGORY_SERIES.length);
+        JSONArray[] phases = _createColumns(PHASE_SERIES.length);
+        JSONArray averageLatencies = new JSONArray();
+        JSONArray maxLatencies = new JSONArray();
+
+        for(AbstractBuild<?, ?> currentBuild : builds) {
+            JSONObject summary = _getSummary(currentBuild);
+            if (summary == null) continue;
+
+            numbers.add(currentBuild.getNumber());
+
+            JSONArray counts = summary.getJSONArray("counts");
+            for(int i = 0; i < categories.length; i++) {
+                categories[i].add((i < counts.size()) ? counts.getInt(i) : 0);
+            }
+
+            JSONObject timings = summary.getJSONObject("timings");
+            JSONObject phaseList = timings.optJSONObject("phases");
+            for(int i = 0; i < phases.length; i++) {
+                phases[i].add(((phaseList == null) || !phaseList.has(PHASE_SERIES[i])) ? 0 : phaseList.getLong(PHASE_SERIES[i]));
+            }
+
+            averageLatencies.add(timings.optLong("averageLatency", 0));
+            maxLatencies.add(timings.optLong("maxLatency", 0));
+        }
+
+        JSONObject screens = new JSONObject();
+        for(int i = 0; i < categories.length; i++) {
+            screens.put(CATEGORY_SERIES[i], categories[i]);
+        }
+
+        JSONObject times = new JSONObject();
+        for(int i = 0; i < phases.length; i++) {
+            times.put(PHASE_SERIES[i], phases[i]);
+        }
+        times.put("screen avg", averageLatencies);
+        times.put("screen max", maxLatencies);
+
+        JSONObject trend = new JSONObject();
+        trend.put("builds", numbers);
+        trend.put("screens", screens);
+        trend.put("timings", times);
+
+        return trend;
+    }
+
+
+    /**
+     * Gets the key prefix of the trends of a project
+     *
+     * @param project Project
+     * @return Key prefix
+     */
+    private static String _getKey(AbstractProject<?, ?> project) {
+        return project.getFullName() + "#";
+    }
+
+    /**
+     * Creates empty columns
+     *
+     * @param count Number of columns
+     * @return Columns
+     */
+    private static JSONArray[] _createColumns(int count) {
+        JSONArray[] columns = new JSONArray[count];
+        for(int i = 0; i < count; i++) {
+            columns[i] = new JSONArray();
+        }
+        return columns;
+    }
+
+    /**
+     * Gets the summary of a build
+     *
+     * Builds of older versions have no summary file; it is created from the data of the build.
+     *
+     * @param build Build
+     * @return Summary or null if the build did not use visual-diff
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private static JSONObject _getSummary(AbstractBuild<?, ?> build) throws InterruptedException, IOException {
+        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+
+        FilePath path = buildArtifacts.getSummaryPath();
+        if (path.exists() && !build.isBuilding()) {
+            return JSONObject.fromObject(path.readToString());
+        }
+
+        DataAction data = build.getAction(DataAction.class);
+        if (data == null) {
+            return null;
+        }
+
+        JSONObject summary = data.getSummary();
+        if (!build.isBuilding() && buildArtifacts.getPath().exists()) {
+            buildArtifacts.writeSummary(summary);
+        }
+
+        return summary;
+    }
+}
@@ -5,15 +5,37 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
 
+import org.jenkinsci.plugins.visual_diff.DataAction;
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
 import org.jenkinsci.plugins.visual_diff.data.Screen;
 import org.jenkinsci.plugins.visual_diff.data.ScreenList;
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
+import org.jenkinsci.plugins.visual_diff.utils.AbstractArtifacts;
 import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.ImageStatistics;
+import org.jenkinsci.plugins.visual_diff.utils.ImageUtils;
+import org.jenkinsci.plugins.visual_diff.utils.MappedRaster;
+import org.jenkinsci.plugins.visual_diff.utils.PerceptualHashIndex;
+import org.jenkinsci.plugins.visual_diff.utils.PixelSource;
 import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.RasterCache;
+import org.jenkinsci.plugins.visual_diff.utils.TileIndex;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Comparison entry - describable
@@ -26,6 +48,17 @@ public abstract class ComparisonDescribable implements Serializable, Describable
     public static final String UNSTABLE = "unstable";
     public static final String NOTHING = "nothing";
 
+    /**
+     * Largest Hamming distance of perceptual hashes for a new screen to match a missing screen
+     */
+    public static final int RENAME_DISTANCE = 6;
+
+    /**
+     * Smallest difference of the mean luminance that the pre-filter considers; smaller shifts may be ignored by
+     * the perceptual comparison
+     */
+    public static final double PRE_FILTER_LUMINANCE = 64.0;
+
 
     /**
      * Path to screens
@@ -47,6 +80,46 @@ public abstract class ComparisonDescribable implements Serializable, Describable
      */
     private final int numberOfDifferences;
 
+    /**
+     * Stop comparing once the number of differences is reached
+     */
+    private final Boolean failFast;
+
+    /**
+     * Compare screens that are likely to fail first
+     */
+    private final Boolean prioritize;
+
+    /**
+     * Wall-clock budget for comparisons (in seconds, 0 for none)
+     */
+    private final int timeBudget;
+
+    /**
+     * Workspace path of a manifest listing the screens to compare
+     */
+    private final String manifestPath;
+
+    /**
+     * Number of screens compared in parallel
+     */
+    private final int threads;
+
+    /**
+     * Compare new screens with similar missing screens
+     */
+    private final Boolean detectRenames;
+
+    /**
+     * Skip the comparison of screens whose statistics differ widely
+     */
+    private final Boolean preFilter;
+
+    /**
+     * Label of the nodes to distribute comparisons to (empty to compare locally)
+     */
+    private final String shardLabel;
+
 
     /**
      * Comparison
@@ -55,16 +128,40 @@ public abstract class ComparisonDescribable implements Serializable, Describable
      * @param autoApprove Auto-approve
      * @param markAs Mark build as ...
      * @param numberOfDifferences Number of differences when build result changes
+     * @param failFast Stop comparing once the number of differences is reached
+     * @param prioritize Compare screens that are likely to fail first
+     * @param timeBudget Wall-clock budget for comparisons (in seconds, 0 for none)
+     * @param manifestPath Workspace path of a manifest listing the screens to compare
+     * @param threads Number of screens compared in parallel
+     * @param detectRenames Compare new screens with similar missing screens
+     * @param preFilter Skip the comparison of screens whose statistics differ widely
+     * @param shardLabel Label of the nodes to distribute comparisons to
      */
     @DataBoundConstructor
     public ComparisonDescribable(String screensPath,
                                  Boolean autoApprove,
                                  String markAs,
-                                 int numberOfDifferences) {
+                                 int numberOfDifferences,
+                                 Boolean failFast,
+                                 Boolean prioritize,
+                                 int timeBudget,
+                                 String manifestPath,
+                                 int threads,
+                                 Boolean detectRenames,
+                                 Boolean preFilter,
+                                 String shardLabel) {
         this.screensPath = screensPath;
         this.autoApprove = autoApprove;
         this.markAs = markAs;
         this.numberOfDifferences = numberOfDifferences;
+        this.failFast = failFast;
+        this.prioritize = prioritize;
+        this.timeBudget = timeBudget;
+        this.manifestPath = manifestPath;
+        this.threads = threads;
+        this.detectRenames = detectRenames;
+        this.preFilter = preFilter;
+        this.shardLabel = shardLabel;
     }
 
 
@@ -104,6 +201,78 @@ public abstract class ComparisonDescribable implements Serializable, Describable
         return numberOfDifferences;
     }
 
+    /**
+     * Stop comparing once the number of differences is reached
+     *
+     * @return Fail-fast
+     */
+    public Boolean getFailFast() {
+        return failFast;
+    }
+
+    /**
+     * Compare screens that are likely to fail first
+     *
+     * @return Prioritize
+     */
+    public Boolean getPrioritize() {
+        return prioritize;
+    }
+
+    /**
+     * Wall-clock budget for comparisons
+     *
+     * @return Time in seconds, 0 for none
+     */
+    public int getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Workspace path of a manifest listing the screens to compare
+     *
+     * @return Path or empty if all screens are compared
+     */
+    public String getManifestPath() {
+        return manifestPath;
+    }
+
+    /**
+     * Number of screens compared in parallel
+     *
+     * @return Number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Compare new screens with similar missing screens
+     *
+     * @return Detect renames
+     */
+    public Boolean getDetectRenames() {
+        return detectRenames;
+    }
+
+    /**
+     * Skip the comparison of screens whose statistics differ widely
+     *
+     * @return Pre-filter
+     */
+    public Boolean getPreFilter() {
+        return preFilter;
+    }
+
+    /**
+     * Label of the nodes to distribute comparisons to
+     *
+     * @return Label or empty to compare locally
+     */
+    public String getShardLabel() {
+        return shardLabel;
+    }
+
 
     /**
      * Processes all screens for comparison
@@ -117,42 +286,614 @@ public abstract class ComparisonDescribable implements Serializable, Describable
      */
     public ScreenList processAll(AbstractBuild build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
+        return processAll(build, launcher, listener, new BuildTimings());
+    }
+
+    /**
+     * Processes all screens for comparison
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param timings Timings to record phases and comparison latencies in
+     * @return List of screens that were processed
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ScreenList processAll(AbstractBuild build, Launcher launcher, BuildListener listener, BuildTimings timings)
+            throws InterruptedException, IOException {
+        return processAll(build, launcher, listener, timings, null);
+    }
+
+    /**
+     * Processes all screens for comparison
+     *
+     * New screens are not approved yet; see {@link #approveNewScreens}.
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param timings Timings to record phases and comparison latencies in
+     * @param progress Data of the build to publish every completed screen to, or null
+     * @return List of screens that were processed
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ScreenList processAll(AbstractBuild build, Launcher launcher, BuildListener listener, BuildTimings timings,
+                                 DataAction progress) throws InterruptedException, IOException {
 
         ScreenList screenList = new ScreenList();
         BuildArtifacts buildArtifacts = new BuildArtifacts(build);
 
-        listener.getLogger().println("Copy build results...");
-        buildArtifacts.archiveBuildResults(build.getWorkspace().list(screensPath));
+        FilePath[] buildFiles = build.getWorkspace().list(screensPath);
 
-        // Walk through all screens
-        listener.getLogger().println("Compare screens...");
-        FilePath[] buildResultPaths = buildArtifacts.getBuildScreens();
-        for(FilePath buildResultPath : buildResultPaths) {
-            screenList.add(processOne(build, launcher, listener, buildResultPath.getName()));
+        // Take over unchanged screens from the previous build
+        Set<String> manifest = _readManifest(build, listener);
+        if (manifest != null) {
+            buildFiles = _inheritScreens(build, listener, buildFiles, manifest, screenList);
+
+            if (progress != null) {
+                progress.publish(screenList);
+            }
         }
 
-        int failedScreens = (screenList.getExistingDifferentAboveThresholdScreens().length +
-                             screenList.getNewUnApprovedScreens().length);
+        if (Boolean.TRUE.equals(prioritize)) {
+            buildFiles = new ScreenScheduler(build).order(buildFiles);
+        }
+
+        // Copy and compare all screens
+        listener.getLogger().println("Copy and compare screens...");
+        long start = System.currentTimeMillis();
+
+        // Distribute comparisons over the nodes of the label; in-process engines would only copy images around
+        ShardRouter router = null;
+        int workers = threads;
+        boolean sharded = (shardLabel != null) && (shardLabel.trim().length() > 0);
+        if (sharded && !usesLauncher()) {
+            listener.getLogger().println("Comparison runs in-process. Compare on this node instead of " + shardLabel + "...");
+
+        } else if (sharded) {
+            router = new ShardRouter(build, listener, timings, shardLabel.trim());
+            listener.getLogger().println("Compare on " + router.getShardCount() + " nodes of " + shardLabel + "...");
+            workers = Math.max(1, threads) * Math.max(1, router.getShardCount());
+        }
+
+        ScreenPolicy policy = new ScreenPolicy(build, listener, buildArtifacts, timings, progress, start);
+        ComparisonPipeline pipeline = new ComparisonPipeline(this, build, launcher, listener, router, workers);
+        try {
+            screenList.addAll(Arrays.asList(pipeline.run(buildFiles, policy)));
+        } finally {
+            if (router != null) router.cleanUp();
+        }
+
+        if (policy.failFastSkipped > 0) {
+            listener.getLogger().println("Fail-fast: " + policy.failFastSkipped + " screens not compared.");
+        }
+        if (policy.budgetSkipped > 0) {
+            listener.getLogger().println("Time budget exceeded: " + policy.budgetSkipped + " screens not compared.");
+        }
+
+        long compareTime = System.currentTimeMillis() - start;
+        timings.record(BuildTimings.PHASE_ARCHIVE, pipeline.getTransferTime());
+        timings.recordBytes(BuildTimings.PHASE_ARCHIVE, pipeline.getTransferBytes());
+        timings.record(BuildTimings.PHASE_COMPARE, compareTime);
+        timings.recordBytes(BuildTimings.PHASE_COMPARE, pipeline.getOutputBytes());
+
+        if (compareTime > 0) {
+            MetricsRegistry.get().set(MetricsRegistry.SCREENS_PER_SECOND, (buildFiles.length * 1000.0) / compareTime);
+        }
+
+        return screenList;
+    }
+
+    /**
+     * Changes the build result when this comparison found too many differences
+     *
+     * Called once renamed screens were matched across all comparisons, since a matched screen is not new anymore.
+     *
+     * @param build Current build
+     * @param listener Listener for console
+     * @param screenList Screens of this comparison
+     */
+    public void markResult(AbstractBuild build, BuildListener listener, ScreenList screenList) {
+
+        int failedScreens = (screenList.countScreens(ScreenList.EXISTING_DIFFERENT_ABOVE_THRESHOLD) +
+                             screenList.countScreens(ScreenList.NEW_UNAPPROVED));
 
         // Too many differences?
         if (failedScreens >= numberOfDifferences) {
+            _markBuild(build, listener);
+        }
+    }
+
+    /**
+     * Changes the build result as requested, since too many differences were found
+     *
+     * @param build Current build
+     * @param listener Listener for console
+     */
+    private void _markBuild(AbstractBuild build, BuildListener listener) {
+
+        listener.getLogger().println("Too many differences.");
+
+        // Mark build as requested
+        if ((markAs != null) && markAs.equals(FAILED)) {
+            build.setResult(Result.FAILURE);
+
+        } else if ((markAs == null) || markAs.equals((UNSTABLE))) {
+
+            Result result = build.getResult();
+            if ((result == null) || result.isBetterThan(Result.UNSTABLE)) {
+                build.setResult(Result.UNSTABLE);
+            }
+        }
+    }
+
+    /**
+     * Reads the names of the screens to compare from the manifest
+     *
+     * @param build Current build
+     * @param listener Listener for console
+     * @return Names of screens, or null if all screens should be compared
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private Set<String> _readManifest(AbstractBuild build, BuildListener listener) throws InterruptedException, IOException {
+
+        if ((manifestPath == null) || (manifestPath.trim().length() == 0)) {
+            return null;
+        }
+
+        FilePath manifestFile = build.getWorkspace().child(manifestPath.trim());
+        if (!manifestFile.exists()) {
+            listener.getLogger().println("Manifest " + manifestPath + " not found. Compare all screens...");
+            return null;
+        }
+
+        Set<String> names = new HashSet<String>();
+        for(String line : manifestFile.readToString().split("\\r?\\n")) {
+            String name = line.trim();
+            if ((name.length() == 0) || name.startsWith("#")) continue;
+
+            // Entries may be paths; screens are identified by file name
+            names.add(name.substring(name.lastIndexOf('/') + 1));
+        }
+
+        listener.getLogger().println("Manifest lists " + names.size() + " screens to compare.");
+
+        return names;
+    }
+
+    /**
+     * Takes over all screens not listed in the manifest from the previous successful build
+     *
+     * The inherited screens keep their verdict and refer to the images of the build they were compared in;
+     * they are neither copied nor compared. Screens whose images were removed by the retention, and screens whose
+     * approved screen changed since, are compared again.
+     *
+     * @param build Current build
+     * @param listener Listener for console
+     * @param buildFiles All screens from the workspace
+     * @param manifest Names of screens to compare
+     * @param screenList List to add inherited screens to
+     * @return Screens that still need to be compared
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private FilePath[] _inheritScreens(AbstractBuild build, BuildListener listener, FilePath[] buildFiles,
+                                       Set<String> manifest, ScreenList screenList) throws InterruptedException, IOException {
+
+        AbstractBuild previous = (AbstractBuild)build.getPreviousSuccessfulBuild();
+        DataAction data = (previous == null) ? null : previous.getAction(DataAction.class);
+
+        if (data == null) {
+            listener.getLogger().println("No previous successful build with results. Compare all screens...");
+            return buildFiles;
+        }
+
+        if (new BuildArtifacts(previous).isPruned()) {
+            listener.getLogger().println("Images of build #" + previous.getNumber() + " were removed. Compare all screens...");
+            return buildFiles;
+        }
+
+        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+        List<FilePath> remaining = new ArrayList<FilePath>();
+        ScreenList previousList = data.getScreenList();
+        Map<Integer, BuildArtifacts> origins = new HashMap<Integer, BuildArtifacts>();
+
+        for(FilePath buildFile : buildFiles) {
+            String screenName = buildFile.getName();
+            Screen previousScreen = manifest.contains(screenName) ? null : previousList.getScreenByName(screenName);
+
+            if ((previousScreen == null) || previousScreen.isSkippedScreen() || !previousScreen.hasBuildImage()) {
+                remaining.add(buildFile);
+                continue;
+            }
+
+            int origin = previousScreen.isInherited() ? previousScreen.getInheritedFrom() : previous.getNumber();
+            BuildArtifacts originArtifacts = _getOriginArtifacts(build, origin, origins);
+            if (originArtifacts == null) {
+                remaining.add(buildFile);
+                continue;
+            }
+
+            // A verdict only holds for the approved screen it was reached with, e.g. not after a reviewer approved it
+            String originDigest = originArtifacts.getApprovedDigest(screenName);
+            String currentDigest = buildArtifacts.getApprovedDigest(screenName);
+            if ((originDigest == null) ? (currentDigest != null) : !originDigest.equals(currentDigest)) {
+                remaining.add(buildFile);
+                continue;
+            }
+
+            screenList.add(previousScreen.inherit(origin));
+        }
+
+        listener.getLogger().println("Inherited " + (buildFiles.length - remaining.size()) +
+                                     " screens from build #" + previous.getNumber() + ".");
+
+        return remaining.toArray(new FilePath[remaining.size()]);
+    }
+
+    /**
+     * Gets the artifacts of the build a screen was compared in, if it still has the images of its screens
+     *
+     * @param build Current build
+     * @param number Number of the build the screens were compared in
+     * @param origins Artifacts by build number, for builds already checked; null for deleted and pruned builds
+     * @return Artifacts or null for deleted and pruned builds
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private BuildArtifacts _getOriginArtifacts(AbstractBuild build, int number, Map<Integer, BuildArtifacts> origins)
+            throws InterruptedException, IOException {
+
+        if (!origins.containsKey(number)) {
+            AbstractBuild origin = (AbstractBuild)build.getProject().getBuildByNumber(number);
+            BuildArtifacts artifacts = (origin == null) ? null : new BuildArtifacts(origin);
+
+            origins.put(number, ((artifacts == null) || artifacts.isPruned()) ? null : artifacts);
+        }
+
+        return origins.get(number);
+    }
+
+    /**
+     * Approves all auto-approved screens of this comparison with a single new generation
+     *
+     * Called once renamed screens were matched, so a renamed screen is not approved as a new screen as well.
+     *
+     * @param build Current build
+     * @param listener Listener for console
+     * @param screenList Screens of this comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void approveNewScreens(AbstractBuild build, BuildListener listener, ScreenList screenList)
+            throws InterruptedException, IOException {
+
+        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+        Map<String, FilePath> approved = new HashMap<String, FilePath>();
+
+        for(Screen screen : screenList.getNewAutoApprovedScreens()) {
+            if (!screen.isInherited()) {
+                approved.put(screen.getImageName(), buildArtifacts.getBuildScreenPath(screen.getImageName()));
+            }
+        }
 
-            listener.getLogger().println("Too many differences.");
+        if (!approved.isEmpty()) {
+            new ProjectArtifacts(build.getProject()).approveScreens(approved);
+            listener.getLogger().println("Approved " + approved.size() + " new screens.");
+        }
+    }
+
+    /**
+     * Indexes the approved screens that are missing in all comparisons of the build by perceptual hash
+     *
+     * @param build Current build
+     * @param completeList Screens of all comparisons
+     * @return Index of missing screens
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static PerceptualHashIndex indexMissingScreens(AbstractBuild build, ScreenList completeList)
+            throws InterruptedException, IOException {
 
-            // Mark build as requested
-            if ((markAs != null) && markAs.equals(FAILED)) {
-                build.setResult(Result.FAILURE);
+        ProjectArtifacts projectArtifacts = new ProjectArtifacts(build.getProject());
+        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
 
-            } else if ((markAs == null) || markAs.equals((UNSTABLE))) {
+        PerceptualHashIndex index = new PerceptualHashIndex();
+        for(String approvedName : buildArtifacts.getApprovedManifest().getNames()) {
+            if (completeList.hasScreenName(approvedName) || !buildArtifacts.hasApprovedScreen(approvedName)) continue;
 
-                Result result = build.getResult();
-                if ((result == null) || result.isBetterThan(Result.UNSTABLE)) {
-                    build.setResult(Result.UNSTABLE);
+            TileIndex tileIndex = projectArtifacts.getTileIndex(approvedName);
+            if (tileIndex != null) {
+                index.add(tileIndex.getPerceptualHash(), approvedName);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Compares new screens with perceptually similar approved screens missing in the build
+     *
+     * With auto-approve, renamed screens that are equal or below threshold are approved under the new name, and the
+     * old name is deleted. Otherwise, the rename is left to a reviewer.
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param screenList Screens of this comparison
+     * @param completeList Screens of all comparisons
+     * @param index Index of the approved screens missing in all comparisons
+     * @param matched Names of missing screens already matched by any comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void matchRenamedScreens(AbstractBuild build, Launcher launcher, BuildListener listener, ScreenList screenList,
+                                    ScreenList completeList, PerceptualHashIndex index, Set<String> matched)
+            throws InterruptedException, IOException {
+
+        List<Screen> candidates = new ArrayList<Screen>();
+        for(Screen screen : screenList.getNewScreens()) {
+            if (!screen.isInherited()) candidates.add(screen);
+        }
+
+        if (candidates.isEmpty() || (index.size() == 0)) {
+            return;
+        }
+
+        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+        Map<String, FilePath> approved = new HashMap<String, FilePath>();
+        Set<String> deleted = new HashSet<String>();
+
+        for(Screen candidate : candidates) {
+            String screenName = candidate.getImageName();
+
+            TileIndex tileIndex = TileIndex.create(buildArtifacts.getBuildScreenPath(screenName));
+            if (tileIndex == null) continue;
+
+            String approvedName = index.findNearest(tileIndex.getPerceptualHash(), RENAME_DISTANCE, matched);
+            if (approvedName == null) continue;
+
+            matched.add(approvedName);
+            listener.getLogger().println("Screen " + screenName + " looks like missing screen " + approvedName + ". Compare with it...");
+
+            Screen screen = _compareRenamed(build, launcher, listener, screenName, approvedName);
+
+            screenList.set(screenList.indexOf(candidate), screen);
+            completeList.set(completeList.indexOf(candidate), screen);
+
+            // A rename is only taken over without a review when new screens are auto-approved and nothing changed
+            if (Boolean.TRUE.equals(autoApprove) && !screen.isExistingDifferentAboveThresholdScreen()) {
+                approved.put(screenName, buildArtifacts.getBuildScreenPath(screenName));
+                deleted.add(approvedName);
+                screen.approve();
+            }
+        }
+
+        if (!approved.isEmpty()) {
+            new ProjectArtifacts(build.getProject()).updateScreens(approved, deleted);
+            listener.getLogger().println("Approved " + approved.size() + " renamed screens.");
+        }
+    }
+
+    /**
+     * Compares a new screen with the approved screen it was renamed from
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param screenName Name of the new screen
+     * @param approvedName Name of the approved screen
+     * @return Screen info
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private Screen _compareRenamed(AbstractBuild build, Launcher launcher, BuildListener listener, String screenName,
+                                   String approvedName) throws InterruptedException, IOException {
+
+        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+        MetricsRegistry metrics = MetricsRegistry.get();
+
+        FilePath buildScreenPath = buildArtifacts.getBuildScreenPath(screenName);
+        FilePath approvedScreenPath = buildArtifacts.getApprovedScreenWritePath(screenName);
+        FilePath buildDiffPath = buildArtifacts.getBuildDiffPath(screenName);
+
+        // Compares against a build copy of the approved screen under the new name, so the report shows both
+        AbstractArtifacts.copy(buildArtifacts.getApprovedScreenPath(approvedName), approvedScreenPath);
+
+        long start = System.currentTimeMillis();
+        ComparisonResult result = compareScreens(build, launcher, listener, buildScreenPath, approvedScreenPath, buildDiffPath);
+
+        metrics.increment(MetricsRegistry.ENGINE_INVOCATIONS);
+        metrics.observe(MetricsRegistry.COMPARE_LATENCY, System.currentTimeMillis() - start);
+
+        Screen screen = new Screen(screenName);
+        screen.buildImage();
+        screen.approvedImage();
+        screen.renamedFrom(approvedName);
+        screen.setComparisonResult(result);
+
+        if (result.isDifferenceFound()) {
+            screen.existingDifferentAboveThresholdScreen();
+            listener.getLogger().println("Difference found in renamed screen " + screenName);
+
+        } else if (buildDiffPath.exists()) {
+            screen.existingDifferentBelowThresholdScreen();
+
+        } else {
+            screen.existingEqualScreen();
+        }
+
+        return screen;
+    }
+
+    /**
+     * Applies fail-fast and the time budget to the screens of the pipeline
+     */
+    private class ScreenPolicy implements ComparisonPipeline.Policy {
+
+        /**
+         * Current build
+         */
+        private final AbstractBuild build;
+
+        /**
+         * Listener for console
+         */
+        private final BuildListener listener;
+
+        /**
+         * Build artifacts
+         */
+        private final BuildArtifacts buildArtifacts;
+
+        /**
+         * Timings to record comparison latencies in
+         */
+        private final BuildTimings timings;
+
+        /**
+         * Data of the build to publish every completed screen to, or null
+         */
+        private final DataAction progress;
+
+        /**
+         * Time when the budget runs out
+         */
+        private final long deadline;
+
+        /**
+         * Number of failed screens
+         */
+        private int failed = 0;
+
+        /**
+         * Fail-fast reached?
+         */
+        private volatile boolean stopped = false;
+
+        /**
+         * Number of screens skipped by fail-fast
+         */
+        private int failFastSkipped = 0;
+
+        /**
+         * Number of screens skipped by the time budget
+         */
+        private int budgetSkipped = 0;
+
+        /**
+         * Screens found byte-identical after the deadline, until their worker takes the result
+         */
+        private final Set<String> identical = Collections.synchronizedSet(new HashSet<String>());
+
+
+        /**
+         * Initializes the policy
+         *
+         * @param build Current build
+         * @param listener Listener for console
+         * @param buildArtifacts Build artifacts
+         * @param timings Timings to record comparison latencies in
+         * @param progress Data of the build to publish every completed screen to, or null
+         * @param start Start of the comparison
+         */
+        private ScreenPolicy(AbstractBuild build, BuildListener listener, BuildArtifacts buildArtifacts,
+                             BuildTimings timings, DataAction progress, long start) {
+            this.build = build;
+            this.listener = listener;
+            this.buildArtifacts = buildArtifacts;
+            this.timings = timings;
+            this.progress = progress;
+            this.deadline = (timeBudget > 0) ? start + (timeBudget * 1000L) : Long.MAX_VALUE;
+        }
+
+
+        /**
+         * Decides if a screen is skipped, before it is transferred
+         *
+         * @param source Screen in the workspace
+         * @return Reason or null to compare
+         * @throws InterruptedException
+         * @throws IOException
+         */
+        public String getSkipReason(FilePath source) throws InterruptedException, IOException {
+
+            // Fail-fast reached
+            if (stopped) {
+                return Screen.SKIPPED_FAIL_FAST;
+            }
+
+            // Out of time; only byte-identical screens are still taken, since they need no comparison
+            if (System.currentTimeMillis() > deadline) {
+                String screenName = source.getName();
+                FilePath approvedScreen = buildArtifacts.getApprovedScreenPath(screenName);
+
+                if (!approvedScreen.exists() || (approvedScreen.length() != source.length()) ||
+                    !source.digest().equals(buildArtifacts.getApprovedDigest(screenName))) {
+                    return Screen.SKIPPED_TIME_BUDGET;
                 }
+                identical.add(screenName);
             }
+
+            return null;
         }
 
-        return screenList;
+        /**
+         * Was fail-fast reached?
+         *
+         * @return True/False
+         */
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        /**
+         * Passes on the identity check done for the time budget, so the screen is not hashed again
+         *
+         * @param screenName Name of screen
+         * @return True if found identical, null if not checked
+         */
+        public Boolean getIdentical(String screenName) {
+            return identical.remove(screenName) ? Boolean.TRUE : null;
+        }
+
+        /**
+         * Records a finished screen
+         *
+         * @param screen Screen info
+         * @param time Time spent in ms
+         */
+        public void completed(Screen screen, long time) {
+
+            // Reviewers see the screen while the remaining screens are still compared
+            if (progress != null) {
+                progress.publish(Collections.singletonList(screen));
+            }
+
+            if (Screen.SKIPPED_FAIL_FAST.equals(screen.getSkipped())) {
+                failFastSkipped++;
+                return;
+            }
+            if (Screen.SKIPPED_TIME_BUDGET.equals(screen.getSkipped())) {
+                budgetSkipped++;
+                return;
+            }
+
+            timings.recordLatency(time);
+
+            if (screen.isExistingDifferentAboveThresholdScreen() || screen.isNewUnApprovedScreen()) {
+                failed++;
+            }
+
+            // The build is marked right away; the remaining screens are neither transferred nor compared
+            if (Boolean.TRUE.equals(failFast) && !stopped && (failed >= numberOfDifferences)) {
+                stopped = true;
+                _markBuild(build, listener);
+            }
+        }
     }
 
     /**
@@ -168,9 +909,48 @@ public abstract class ComparisonDescribable implements Serializable, Describable
      */
     public Screen processOne(AbstractBuild build, Launcher launcher, BuildListener listener, String screenName)
             throws InterruptedException, IOException {
+        return processOne(build, launcher, listener, null, screenName);
+    }
+
+    /**
+     * Processes one screen
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param router Router to the nodes comparing the screen, or null to compare locally
+     * @param screenName Name of a screen in results
+     * @return Screen info
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Screen processOne(AbstractBuild build, Launcher launcher, BuildListener listener, ShardRouter router,
+                             String screenName) throws InterruptedException, IOException {
+        return processOne(build, launcher, listener, router, screenName, null, new AtomicLong());
+    }
+
+    /**
+     * Processes one screen
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param router Router to the nodes comparing the screen, or null to compare locally
+     * @param screenName Name of a screen in results
+     * @param identical Is the screen already known to be byte-identical to the approved screen? Null if not checked
+     * @param outputBytes Counter to add the bytes written into the diff and approved folders to
+     * @return Screen info
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Screen processOne(AbstractBuild build, Launcher launcher, BuildListener listener, ShardRouter router,
+                             String screenName, Boolean identical, AtomicLong outputBytes) throws InterruptedException, IOException {
 
         ProjectArtifacts projectArtifacts = new ProjectArtifacts(build.getProject());
         BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+        MetricsRegistry metrics = MetricsRegistry.get();
+
+        metrics.increment(MetricsRegistry.SCREENS_COMPARED);
 
         Screen screen = new Screen(screenName);
         screen.buildImage();
@@ -184,10 +964,70 @@ public abstract class ComparisonDescribable implements Serializable, Describable
             FilePath approvedScreenPath = buildArtifacts.getApprovedScreenPath(screenName);
             FilePath buildDiffPath = buildArtifacts.getBuildDiffPath(screenName);
 
-            Boolean differenceFound = compareScreens(build, launcher, listener,
-                                                     buildScreenPath, approvedScreenPath, buildDiffPath);
+            ComparisonResult result;
+
+            // Byte-identical screens need no comparison
+            if ((identical != null) ? identical : buildArtifacts.isIdenticalToApproved(screenName)) {
+                result = new ComparisonResult(false);
+                metrics.increment(MetricsRegistry.SHORT_CIRCUITS);
+
+            } else {
+                String approvedDigest = buildArtifacts.getApprovedDigest(screenName);
+                TileIndex approvedIndex = _getApprovedTileIndex(projectArtifacts, approvedScreenPath, approvedDigest);
+                boolean filtering = Boolean.TRUE.equals(preFilter);
+
+                // The build screen is decoded once for all checks that need its pixels
+                BufferedImage buildImage = ((approvedIndex != null) || filtering) ? ImageUtils.readImage(buildScreenPath) : null;
+                PixelSource buildPixels = (buildImage == null) ? null : ImageUtils.pixels(buildImage);
+
+                TileIndex buildIndex = ((approvedIndex == null) || (buildPixels == null)) ? null : TileIndex.create(buildPixels, buildScreenPath.digest());
+                boolean comparable = (buildIndex != null) && approvedIndex.isComparable(buildIndex);
+
+                String filterReason = null;
+
+                // Pixel-identical screens (only encoded differently) need no comparison either
+                if (comparable && (approvedIndex.countChangedTiles(buildIndex) == 0)) {
+                    result = new ComparisonResult(false);
+                    result.setDimensions(buildIndex.getWidth(), buildIndex.getHeight());
+                    metrics.increment(MetricsRegistry.SHORT_CIRCUITS);
+
+                } else if (filtering && (buildPixels != null) &&
+                           ((filterReason = _preFilter(buildPixels, approvedScreenPath, approvedDigest)) != null)) {
+                    result = new ComparisonResult(true);
+                    result.setDimensions(buildPixels.getWidth(), buildPixels.getHeight());
+                    result.setPreFiltered(true);
+                    metrics.increment(MetricsRegistry.SHORT_CIRCUITS);
+                    listener.getLogger().println("Screen " + screenName + " not compared: " + filterReason);
+
+                } else {
+                    long start = System.currentTimeMillis();
+                    if (router != null) {
+                        result = router.compare(this, launcher, buildScreenPath, approvedScreenPath, buildDiffPath);
+                    } else {
+                        result = compareScreens(build, launcher, listener,
+                                                buildScreenPath, approvedScreenPath, buildDiffPath);
+                    }
+
+                    metrics.increment(MetricsRegistry.ENGINE_INVOCATIONS);
+                    metrics.observe(MetricsRegistry.COMPARE_LATENCY, System.currentTimeMillis() - start);
+
+                    // Engines write the difference image next to the screen
+                    if (buildDiffPath.exists()) {
+                        outputBytes.addAndGet(buildDiffPath.length());
+                    }
+
+                    List<int[]> changedRegions = null;
+                    if (comparable) {
+                        changedRegions = approvedIndex.getChangedRegions(buildIndex);
+                        result.setChangedRegions(changedRegions);
+                    }
+
+                    collectImageMetrics(result, buildDiffPath, changedRegions);
+                }
+            }
+            screen.setComparisonResult(result);
 
-            if (differenceFound) {
+            if (result.isDifferenceFound()) {
                 screen.existingDifferentAboveThresholdScreen();
                 listener.getLogger().println("Difference found in screen " + screenName);
 
@@ -201,15 +1041,16 @@ public abstract class ComparisonDescribable implements Serializable, Describable
 
         } else { // Screenshot never seen
 
+            // Nothing to compare, so they would only inflate the short-circuit ratio
+            metrics.increment(MetricsRegistry.NEW_SCREENS);
+
             if (autoApprove) {
                 screen.newAutoApprovedScreen();
 
-                // Approve screenshot by copying it as-is to the artifacts folder
+                // Approve screenshot by copying it as-is to the build; the project approves all at once
                 listener.getLogger().println("Screen " + screenName + " does not exist. Auto-approve screen...");
 
-                // Copy to build and project folders
-                buildScreenPath.copyTo(projectArtifacts.getScreenPath(screenName));
-                buildScreenPath.copyTo(buildArtifacts.getApprovedScreenPath(screenName));
+                outputBytes.addAndGet(AbstractArtifacts.copy(buildScreenPath, buildArtifacts.getApprovedScreenWritePath(screenName)));
 
                 // Mark as approved
                 screen.approve();
@@ -223,6 +1064,116 @@ public abstract class ComparisonDescribable implements Serializable, Describable
         return screen;
     }
 
+    /**
+     * Checks if a screen is so different from the approved screen that the comparison can be skipped
+     *
+     * @param buildPixels Pixels of build screen
+     * @param approvedScreenPath Approved screen of the build
+     * @param approvedDigest Digest of the approved screen
+     * @return Reason why the screen is different, or null if it needs to be compared
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private String _preFilter(PixelSource buildPixels, FilePath approvedScreenPath, String approvedDigest)
+            throws InterruptedException, IOException {
+        MetricsRegistry metrics = MetricsRegistry.get();
+
+        RasterCache cache = RasterCache.get();
+        MappedRaster approvedPixels = cache.get(approvedScreenPath, approvedDigest);
+        if (approvedPixels == null) {
+            return null;
+        }
+
+        String reason = null;
+        try {
+            if ((approvedPixels.getWidth() != buildPixels.getWidth()) ||
+                (approvedPixels.getHeight() != buildPixels.getHeight())) {
+                reason = "dimensions differ (" + buildPixels.getWidth() + "x" + buildPixels.getHeight() + " instead of " +
+                         approvedPixels.getWidth() + "x" + approvedPixels.getHeight() + ")";
+
+            } else {
+                ImageStatistics buildStatistics = new ImageStatistics(buildPixels);
+                ImageStatistics approvedStatistics = new ImageStatistics(approvedPixels);
+
+                double luminance = Math.abs(buildStatistics.getMeanLuminance() - approvedStatistics.getMeanLuminance());
+
+                // A pixel changes the mean by at most 255 / pixels, so the gap proves a share of changed pixels
+                double changed = luminance / 255.0;
+
+                // Histograms can match for very different pages, so only the luminance gap is trusted
+                if ((luminance > PRE_FILTER_LUMINANCE) &&
+                    isAboveThreshold(changed, buildPixels.getWidth(), buildPixels.getHeight())) {
+                    reason = "mean luminance differs by " + Math.round(luminance) + ", at least " +
+                             Math.round(changed * 100) + "% of the pixels changed";
+                }
+            }
+        } finally {
+            cache.release(approvedPixels);
+        }
+
+        metrics.increment(MetricsRegistry.PRE_FILTER + "{result=\"" + ((reason == null) ? "miss" : "hit") + "\"}");
+
+        return reason;
+    }
+
+    /**
+     * Gets the tile index of the approved screen used by this build
+     *
+     * Indexes are stored by the digest of the image, so the index of any generation can be used.
+     *
+     * @param projectArtifacts Project artifacts
+     * @param approvedScreenPath Approved screen of the build
+     * @param approvedDigest Digest of the approved screen
+     * @return Index or null if the approved screen could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private TileIndex _getApprovedTileIndex(ProjectArtifacts projectArtifacts, FilePath approvedScreenPath, String approvedDigest)
+            throws InterruptedException, IOException {
+
+        TileIndex index = TileIndex.read(projectArtifacts.getTileIndexPath(approvedDigest));
+        boolean hit = (index != null);
+
+        MetricsRegistry.get().cacheAccess("tiles", hit);
+
+        // Screens approved during the build have no stored index; their decoded pixels are likely cached nonetheless
+        return hit ? index : TileIndex.create(approvedScreenPath, approvedDigest, RasterCache.get());
+    }
+
+    /**
+     * Is a screen always above threshold when at least the given share of its pixels changed?
+     *
+     * @param changed Share of changed pixels (0 to 1)
+     * @param width Width of screen
+     * @param height Height of screen
+     * @return True/False; false when the threshold of the engine is not a number of pixels
+     */
+    protected boolean isAboveThreshold(double changed, int width, int height) {
+        return false;
+    }
+
+    /**
+     * Completes the metrics of a comparison the engine did not report
+     *
+     * @param result Result to complete
+     * @param diffOutputPath Difference image written by the engine
+     * @param changedRegions Boxes around the changed tiles, or null if the tile indexes could not be compared
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected void collectImageMetrics(ComparisonResult result, FilePath diffOutputPath, List<int[]> changedRegions)
+            throws InterruptedException, IOException {
+    }
+
+    /**
+     * Does the engine run through the launcher? Only such engines can run on the nodes of the shard label.
+     *
+     * @return True/False
+     */
+    public boolean usesLauncher() {
+        return false;
+    }
+
     /**
      * Abstract method to compare two images
      *
@@ -232,12 +1183,12 @@ public abstract class ComparisonDescribable implements Serializable, Describable
      * @param screenPath Build screen
      * @param approvedPath Approved screen
      * @param diffOutputPath Path to output file for differences
-     * @return Differences found?
+     * @return Result of comparison
      * @throws InterruptedException
      * @throws IOException
      */
-    public abstract Boolean compareScreens(AbstractBuild build, Launcher launcher, BuildListener listener,
-                                           FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
+    public abstract ComparisonResult compareScreens(AbstractBuild build, Launcher launcher, BuildListener listener,
+                                                    FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
             throws InterruptedException, IOException;
 
 
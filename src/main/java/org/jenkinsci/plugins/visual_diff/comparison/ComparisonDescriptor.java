@@ -1,7 +1,19 @@
 package org.jenkinsci.plugins.visual_diff.comparison;
 
+import hudson.FilePath;
 import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.util.FormValidation;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
 
 /**
  * Comparison entry - descriptor
@@ -27,4 +39,124 @@ public abstract class ComparisonDescriptor extends Descriptor<ComparisonDescriba
         return true;
     }
 
+
+    /**
+     * Will be called when numberOfDifferences field is validated
+     *
+     * @param value Value of field
+     * @return Validation result
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ServletException
+     */
+    public FormValidation doCheckNumberOfDifferences(@QueryParameter String value)
+            throws IOException, InterruptedException, ServletException {
+
+        float number = NumberUtils.toInt(value, -1);
+
+        if (number == -1)
+            return FormValidation.error("Please enter a number!");
+
+        if (number < 1)
+            return FormValidation.error("The value should be greater than or equal to one.");
+
+        return FormValidation.ok();
+    }
+
+
+    /**
+     * Will be called when timeBudget field is validated
+     *
+     * @param value Value of field
+     * @return Validation result
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ServletException
+     */
+    public FormValidation doCheckTimeBudget(@QueryParameter String value)
+            throws IOException, InterruptedException, ServletException {
+
+        float number = NumberUtils.toInt(value, -1);
+
+        if (number == -1)
+            return FormValidation.error("Please enter a number!");
+
+        if (number < 0)
+            return FormValidation.error("The value should be greater than or equal to zero.");
+
+        return FormValidation.ok();
+    }
+
+
+    /**
+     * Will be called when threads field is validated
+     *
+     * @param value Value of field
+     * @return Validation result
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ServletException
+     */
+    public FormValidation doCheckThreads(@QueryParameter String value)
+            throws IOException, InterruptedException, ServletException {
+
+        float number = NumberUtils.toInt(value, -1);
+
+        if (number == -1)
+            return FormValidation.error("Please enter a number!");
+
+        if (number < 1)
+            return FormValidation.error("The value should be greater than or equal to one.");
+
+        return FormValidation.ok();
+    }
+
+
+    /**
+     * Will be called when screensPath field is validated
+     *
+     * @param value Value of field
+     * @return Validation result
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ServletException
+     */
+    public FormValidation doCheckScreensPath(@QueryParameter String value, @AncestorInPath AbstractProject project)
+            throws IOException, InterruptedException, ServletException {
+
+        if (value.length() == 0)
+            return FormValidation.error("Please define a pattern for the screens!");
+
+        FilePath workspace = project.getWorkspace();
+
+        if ((workspace == null) || !workspace.exists())
+            return FormValidation.warning("No workspace available.");
+
+        if (workspace.list(value).length == 0)
+            return FormValidation.warning("No files found.");
+
+        return FormValidation.ok();
+    }
+
+    /**
+     * Will be called when shardLabel field is validated
+     *
+     * @param value Value of field
+     * @return Validation result
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ServletException
+     */
+    public FormValidation doCheckShardLabel(@QueryParameter String value)
+            throws IOException, InterruptedException, ServletException {
+
+        if (value.trim().length() == 0)
+            return FormValidation.ok();
+
+        Label label = Hudson.getInstance().getLabel(value.trim());
+        if ((label == null) || label.getNodes().isEmpty())
+            return FormValidation.warning("No nodes with this label.");
+
+        return FormValidation.ok();
+    }
 }
@@ -0,0 +1,346 @@
+package org.jenkinsci.plugins.visual_diff.comparison;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+
+import org.jenkinsci.plugins.visual_diff.data.Screen;
+import org.jenkinsci.plugins.visual_diff.utils.AbstractArtifacts;
+import org.jenkinsci.plugins.visual_diff.utils.BuildArtifacts;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged comparison of screens
+ *
+ * One thread transfers the screens from the workspace into the build archive while the compare workers process
+ * screens that have already arrived. The stages are connected by a bounded queue, so the transfer cannot run
+ * further ahead than the queue capacity. Screens the policy skips are not transferred at all.
+ *
+ * @author Marcel Erz
+ */
+public class ComparisonPipeline {
+
+    /**
+     * Marks the end of the transferred screens
+     */
+    private static final int END = -1;
+
+
+    /**
+     * Decides about and records the screens passing through the pipeline
+     */
+    public interface Policy {
+
+        /**
+         * Called by the transfer stage before a screen is transferred
+         *
+         * @param source Screen in the workspace
+         * @return Reason to skip the screen, or null to transfer and compare it
+         * @throws InterruptedException
+         * @throws IOException
+         */
+        String getSkipReason(FilePath source) throws InterruptedException, IOException;
+
+        /**
+         * Called by a compare worker before a transferred screen is compared
+         *
+         * @return Stop comparing, since enough differences were found?
+         */
+        boolean isStopped();
+
+        /**
+         * Called by a compare worker after the screen was not skipped
+         *
+         * @param screenName Name of screen
+         * @return Was the screen found byte-identical to the approved screen while deciding? Null if not checked
+         */
+        Boolean getIdentical(String screenName);
+
+        /**
+         * Called for every screen once it is done; calls are serialized
+         *
+         * @param screen Screen info
+         * @param time Time spent on the screen (in ms)
+         */
+        void completed(Screen screen, long time);
+    }
+
+
+    /**
+     * Comparison to run
+     */
+    private final ComparisonDescribable comparison;
+
+    /**
+     * Current build
+     */
+    private final AbstractBuild build;
+
+    /**
+     * Launcher
+     */
+    private final Launcher launcher;
+
+    /**
+     * Listener for console
+     */
+    private final BuildListener listener;
+
+    /**
+     * Router to the nodes comparing the screens, or null to compare locally
+     */
+    private final ShardRouter router;
+
+    /**
+     * Number of compare workers
+     */
+    private final int threads;
+
+
+    /**
+     * Time spent transferring screens (in ms)
+     */
+    private final AtomicLong transferTime = new AtomicLong();
+
+    /**
+     * Number of bytes transferred
+     */
+    private final AtomicLong transferBytes = new AtomicLong();
+
+    /**
+     * Number of bytes written by the comparisons into the diff and approved folders
+     */
+    private final AtomicLong outputBytes = new AtomicLong();
+
+
+    /**
+     * Initializes the pipeline
+     *
+     * @param comparison Comparison to run
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param router Router to the nodes comparing the screens, or null to compare locally
+     * @param threads Number of compare workers
+     */
+    public ComparisonPipeline(ComparisonDescribable comparison, AbstractBuild build, Launcher launcher,
+                              BuildListener listener, ShardRouter router, int threads) {
+        this.comparison = comparison;
+        this.build = build;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.router = router;
+        this.threads = Math.max(1, threads);
+    }
+
+
+    /**
+     * Gets the time spent transferring screens
+     *
+     * @return Time in ms
+     */
+    public long getTransferTime() {
+        return transferTime.get();
+    }
+
+    /**
+     * Gets the number of bytes transferred
+     *
+     * @return Number of bytes
+     */
+    public long getTransferBytes() {
+        return transferBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes written by the comparisons
+     *
+     * @return Number of bytes
+     */
+    public long getOutputBytes() {
+        return outputBytes.get();
+    }
+
+
+    /**
+     * Runs all screens through the pipeline
+     *
+     * @param sources Screens in the workspace, in the order they should be compared
+     * @param policy Policy deciding about and recording the screens
+     * @return Screens, in the order of the sources
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Screen[] run(final FilePath[] sources, final Policy policy) throws InterruptedException, IOException {
+
+        final Screen[] results = new Screen[sources.length];
+        final BlockingQueue<Integer> transferred = new ArrayBlockingQueue<Integer>(threads * 2);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final FilePath buildScreensPath = new BuildArtifacts(build).getBuildScreensPath();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            Future<?>[] futures = new Future<?>[threads + 1];
+
+            // Transfer stage
+            futures[0] = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        for(int i = 0; i < sources.length; i++) {
+
+                            // Skipped screens are neither copied nor queued
+                            String reason = policy.getSkipReason(sources[i]);
+                            if (reason != null) {
+                                Screen screen = new Screen(sources[i].getName());
+                                screen.skippedScreen(reason);
+                                _completed(results, i, screen, policy, 0);
+                                continue;
+                            }
+
+                            long start = System.currentTimeMillis();
+                            transferBytes.addAndGet(AbstractArtifacts.copy(sources[i], buildScreensPath.child(sources[i].getName())));
+                            transferTime.addAndGet(System.currentTimeMillis() - start);
+
+                            if (!_put(transferred, i, aborted)) break;
+                        }
+
+                    } catch (Exception e) {
+                        aborted.set(true);
+                        throw e;
+
+                    } finally {
+                        for(int i = 0; i < threads; i++) {
+                            if (!_put(transferred, END, aborted)) break;
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            // Compare stage
+            for(int worker = 1; worker <= threads; worker++) {
+                futures[worker] = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            int index;
+                            while ((index = _take(transferred, aborted)) != END) {
+                                String screenName = sources[index].getName();
+                                long start = System.currentTimeMillis();
+
+                                Screen screen;
+                                if (policy.isStopped()) {
+                                    screen = new Screen(screenName);
+                                    screen.buildImage();
+                                    screen.skippedScreen(Screen.SKIPPED_FAIL_FAST);
+                                } else {
+                                    screen = comparison.processOne(build, launcher, listener, router, screenName,
+                                                                  policy.getIdentical(screenName), outputBytes);
+                                }
+
+                                _completed(results, index, screen, policy, System.currentTimeMillis() - start);
+                            }
+
+                        } catch (Exception e) {
+                            aborted.set(true);
+                            throw e;
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            for(Future<?> future : futures) {
+                _await(future);
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * Records a finished screen
+     *
+     * @param results Screens, in the order of the sources
+     * @param index Index of the screen
+     * @param screen Screen info
+     * @param policy Policy recording the screens
+     * @param time Time spent on the screen (in ms)
+     */
+    private static void _completed(Screen[] results, int index, Screen screen, Policy policy, long time) {
+        results[index] = screen;
+
+        synchronized (policy) {
+            policy.completed(screen, time);
+        }
+    }
+
+    /**
+     * Adds a value to the queue, waiting for space unless the pipeline was aborted
+     *
+     * @param queue Queue
+     * @param value Value
+     * @param aborted Abort flag of the pipeline
+     * @return Value added?
+     * @throws InterruptedException
+     */
+    private static boolean _put(BlockingQueue<Integer> queue, int value, AtomicBoolean aborted) throws InterruptedException {
+        while (!queue.offer(value, 100, TimeUnit.MILLISECONDS)) {
+            if (aborted.get()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a value from the queue, waiting for one unless the pipeline was aborted
+     *
+     * @param queue Queue
+     * @param aborted Abort flag of the pipeline
+     * @return Value, or END when aborted
+     * @throws InterruptedException
+     */
+    private static int _take(BlockingQueue<Integer> queue, AtomicBoolean aborted) throws InterruptedException {
+        Integer value;
+        while ((value = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            if (aborted.get()) return END;
+        }
+        return aborted.get() ? END : value;
+    }
+
+    /**
+     * Waits for a stage and passes on its failure
+     *
+     * @param future Stage
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void _await(Future<?> future) throws InterruptedException, IOException {
+        try {
+            future.get();
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof InterruptedException) throw (InterruptedException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+
+            throw new IOException("Comparison failed", cause);
+        }
+    }
+}
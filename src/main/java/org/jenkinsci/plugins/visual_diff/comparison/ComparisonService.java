@@ -0,0 +1,392 @@
+package org.jenkinsci.plugins.visual_diff.comparison;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.util.FormValidation;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
+import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * Perceptual-diff on a comparison service - describable
+ *
+ * Images are identified by their digest. Only images the service does not know yet are uploaded, so baselines
+ * are sent once and then stay on the service. Connections are kept alive between requests.
+ *
+ * @author Marcel Erz
+ */
+public class ComparisonService extends PerceptualDiff {
+
+    /**
+     * Timeout for connecting to the service (in ms)
+     */
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /**
+     * Timeout for reading a response of the service (in ms)
+     */
+    private static final int READ_TIMEOUT = 300000;
+
+
+    /**
+     * Initializes the comparison service
+     *
+     * @param screensPath Path to screens
+     * @param autoApprove Auto-approve
+     * @param markAs Mark build as...
+     * @param numberOfDifferences Number of differences until build result changes
+     * @param failFast Stop comparing once the number of differences is reached
+     * @param prioritize Compare screens that are likely to fail first
+     * @param timeBudget Wall-clock budget for comparisons (in seconds, 0 for none)
+     * @param manifestPath Workspace path of a manifest listing the screens to compare
+     * @param threads Number of screens compared in parallel
+     * @param detectRenames Compare new screens with similar missing screens
+     * @param preFilter Skip the comparison of screens whose statistics differ widely
+     * @param shardLabel Label of the nodes to distribute comparisons to
+     * @param verbose Verbose
+     * @param fov Field-of-view
+     * @param threshold Threshold
+     * @param gamma Gamma
+     * @param luminance Luminance
+     * @param luminanceOnly Luminance-only
+     * @param colorFactor Color-factor
+     * @param downSample Down-sample
+     */
+    @DataBoundConstructor
+    public ComparisonService(String screensPath,
+                             Boolean autoApprove,
+                             String markAs,
+                             int numberOfDifferences,
+                             Boolean failFast,
+                             Boolean prioritize,
+                             int timeBudget,
+                             String manifestPath,
+                             int threads,
+                             Boolean detectRenames,
+                             Boolean preFilter,
+                             String shardLabel,
+                             Boolean verbose,
+                             float fov,
+                             int threshold,
+                             float gamma,
+                             float luminance,
+                             Boolean luminanceOnly,
+                             float colorFactor,
+                             int downSample) {
+
+        super(screensPath, autoApprove, markAs, numberOfDifferences, failFast, prioritize, timeBudget, manifestPath, threads, detectRenames, preFilter, shardLabel,
+              verbose, fov, threshold, gamma, luminance, luminanceOnly, colorFactor, downSample);
+    }
+
+
+    /**
+     * Sends the images to the comparison service instead of launching the binary
+     *
+     * @return False
+     */
+    @Override
+    public boolean usesLauncher() {
+        return false;
+    }
+
+    /**
+     * Compare two images
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param screenPath Build screen
+     * @param approvedPath Approved screen
+     * @param diffOutputPath Path to output file for differences
+     * @return Result of comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Override
+    public ComparisonResult compareScreens(AbstractBuild build, Launcher launcher, BuildListener listener,
+                                           FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
+            throws InterruptedException, IOException {
+
+        String serviceUrl = getDescriptor().getServiceUrl();
+        if ((serviceUrl == null) || (serviceUrl.length() == 0)) {
+            throw new IOException("No comparison service configured");
+        }
+
+        String screenDigest = screenPath.digest();
+        String approvedDigest = ProjectArtifacts.getDigest(approvedPath);
+
+        StringBuilder arguments = new StringBuilder();
+        for(String argument : getArguments()) {
+            arguments.append(argument).append('\n');
+        }
+
+        URL compareUrl = new URL(_getBaseUrl(serviceUrl) + "compare?screen=" + URLEncoder.encode(screenDigest, "UTF-8")
+                                 + "&approved=" + URLEncoder.encode(approvedDigest, "UTF-8"));
+
+        long start = System.currentTimeMillis();
+        HttpURLConnection connection = _compare(compareUrl, arguments.toString());
+
+        // Unknown images are uploaded once, then the comparison is repeated
+        boolean known = (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND);
+        MetricsRegistry.get().cacheAccess("service", known);
+
+        if (!known) {
+            String missing = _readText(connection);
+
+            if (missing.contains(screenDigest)) {
+                _upload(serviceUrl, screenDigest, screenPath);
+            }
+            if (missing.contains(approvedDigest)) {
+                _upload(serviceUrl, approvedDigest, approvedPath);
+            }
+
+            connection = _compare(compareUrl, arguments.toString());
+        }
+
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Comparison service responded with " + connection.getResponseCode() + ": " + _readText(connection));
+        }
+
+        String exitCode = connection.getHeaderField("X-Exit-Code");
+        String outputHeader = connection.getHeaderField("X-Output");
+        String output = (outputHeader == null) ? "" : URLDecoder.decode(outputHeader, "UTF-8");
+        listener.getLogger().print(output);
+
+        InputStream input = connection.getInputStream();
+        try {
+            if (connection.getContentLength() > 0) {
+                diffOutputPath.copyFrom(input);
+            }
+        } finally {
+            // Fully read and closed, so the connection goes back to the keep-alive pool
+            input.close();
+        }
+
+        ComparisonResult result = new ComparisonResult(!"0".equals(exitCode));
+        result.setCompareTime(System.currentTimeMillis() - start);
+
+        collectMetrics(result, output, screenPath, diffOutputPath);
+
+        return result;
+    }
+
+    /**
+     * Requests a comparison
+     *
+     * @param url Comparison URL
+     * @param arguments Arguments, one per line
+     * @return Connection with response
+     * @throws IOException
+     */
+    private HttpURLConnection _compare(URL url, String arguments) throws IOException {
+        HttpURLConnection connection = _open(url, "POST");
+
+        byte[] body = arguments.getBytes("UTF-8");
+        connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+        connection.setFixedLengthStreamingMode(body.length);
+
+        OutputStream output = connection.getOutputStream();
+        try {
+            output.write(body);
+        } finally {
+            output.close();
+        }
+
+        return connection;
+    }
+
+    /**
+     * Uploads an image
+     *
+     * @param serviceUrl URL of service
+     * @param digest Digest of image
+     * @param path Image
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void _upload(String serviceUrl, String digest, FilePath path) throws InterruptedException, IOException {
+        HttpURLConnection connection = _open(new URL(_getBaseUrl(serviceUrl) + "images/" + digest), "PUT");
+
+        long length = path.length();
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setFixedLengthStreamingMode((int)length);
+
+        OutputStream output = connection.getOutputStream();
+        try {
+            path.copyTo(output);
+        } finally {
+            output.close();
+        }
+
+        MetricsRegistry.get().add(MetricsRegistry.BYTES_COPIED, length);
+
+        int status = connection.getResponseCode();
+        String text = _readText(connection);
+        if ((status != HttpURLConnection.HTTP_CREATED) && (status != HttpURLConnection.HTTP_OK)) {
+            throw new IOException("Upload of " + path.getName() + " to comparison service failed: " + text);
+        }
+    }
+
+    /**
+     * Opens a connection to the service
+     *
+     * @param url URL
+     * @param method HTTP method
+     * @return Connection
+     * @throws IOException
+     */
+    private static HttpURLConnection _open(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        return connection;
+    }
+
+    /**
+     * Reads a text response, also of failed requests
+     *
+     * @param connection Connection
+     * @return Text
+     * @throws IOException
+     */
+    private static String _readText(HttpURLConnection connection) throws IOException {
+        InputStream input = (connection.getResponseCode() >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        if (input == null) {
+            return "";
+        }
+
+        try {
+            return IOUtils.toString(input, "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Gets the service URL with a trailing slash
+     *
+     * @param serviceUrl URL of service
+     * @return Base URL
+     */
+    private static String _getBaseUrl(String serviceUrl) {
+        return serviceUrl.endsWith("/") ? serviceUrl : serviceUrl + "/";
+    }
+
+
+    /**
+     * Get descriptor
+     *
+     * @return Descriptor
+     */
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
+    }
+
+
+    /**
+     * Descriptor for comparison
+     */
+    @Extension
+    public static class DescriptorImpl extends PerceptualDiff.DescriptorImpl {
+
+        /**
+         * URL of the comparison service
+         */
+        private String serviceUrl;
+
+
+        /**
+         * Gets the URL of the comparison service
+         *
+         * @return Service URL
+         */
+        public String getServiceUrl() {
+            return serviceUrl;
+        }
+
+
+        /**
+         * Name of comparison
+         *
+         * @return Name
+         */
+        @Override
+        public String getDisplayName() {
+            return "Perceptual Diff (Comparison Service)";
+        }
+
+
+        /**
+         * Will be triggered when the configuration is saved
+         *
+         * @param req Request
+         * @param formData Form-data
+         * @return Success?
+         * @throws FormException
+         */
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            serviceUrl = formData.getString("serviceUrl");
+
+            save();
+
+            return true;
+        }
+
+
+        /**
+         * Will be called when serviceUrl field is validated
+         *
+         * @param value Value of field
+         * @return Validation result
+         * @throws IOException
+         * @throws InterruptedException
+         * @throws ServletException
+         */
+        public FormValidation doCheckServiceUrl(@QueryParameter String value)
+                throws IOException, InterruptedException, ServletException {
+
+            if ((value == null) || (value.length() == 0))
+                return FormValidation.ok();
+
+            try {
+                URL url = new URL(value);
+
+                if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol()))
+                    return FormValidation.error("Please enter a http or https URL!");
+
+            } catch (MalformedURLException e) {
+                return FormValidation.error("Please enter a valid URL!");
+            }
+
+            return FormValidation.ok();
+        }
+    }
+}
@@ -4,18 +4,27 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
+import hudson.util.ForkOutputStream;
 import hudson.util.FormValidation;
 
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.math.NumberUtils;
 
-import org.kohsuke.stapler.AncestorInPath;
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+import org.jenkinsci.plugins.visual_diff.utils.ImageUtils;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Perceptual-diff - describable
@@ -24,6 +33,12 @@ import java.io.IOException;
  */
 public class PerceptualDiff extends ComparisonDescribable {
 
+    /**
+     * Pattern of the pixel summary printed by perceptualdiff
+     */
+    private static final Pattern DIFFERENT_PIXELS = Pattern.compile("(\\d+) pixels are different");
+
+
     /**
      * Verbose output
      */
@@ -72,6 +87,14 @@ public class PerceptualDiff extends ComparisonDescribable {
      * @param autoApprove Auto-approve
      * @param markAs Mark build as...
      * @param numberOfDifferences Number of differences until build result changes
+     * @param failFast Stop comparing once the number of differences is reached
+     * @param prioritize Compare screens that are likely to fail first
+     * @param timeBudget Wall-clock budget for comparisons (in seconds, 0 for none)
+     * @param manifestPath Workspace path of a manifest listing the screens to compare
+     * @param threads Number of screens compared in parallel
+     * @param detectRenames Compare new screens with similar missing screens
+     * @param preFilter Skip the comparison of screens whose statistics differ widely
+     * @param shardLabel Label of the nodes to distribute comparisons to
      * @param verbose Verbose
      * @param fov Field-of-view
      * @param threshold Threshold
@@ -86,6 +109,14 @@ public class PerceptualDiff extends ComparisonDescribable {
                           Boolean autoApprove,
                           String markAs,
                           int numberOfDifferences,
+                          Boolean failFast,
+                          Boolean prioritize,
+                          int timeBudget,
+                          String manifestPath,
+                          int threads,
+                          Boolean detectRenames,
+                          Boolean preFilter,
+                          String shardLabel,
                           Boolean verbose,
                           float fov,
                           int threshold,
@@ -95,7 +126,7 @@ public class PerceptualDiff extends ComparisonDescribable {
                           float colorFactor,
                           int downSample) {
 
-        super(screensPath, autoApprove, markAs, numberOfDifferences);
+        super(screensPath, autoApprove, markAs, numberOfDifferences, failFast, prioritize, timeBudget, manifestPath, threads, detectRenames, preFilter, shardLabel);
 
         this.verbose = verbose;
         this.fov = fov;
@@ -181,6 +212,63 @@ public class PerceptualDiff extends ComparisonDescribable {
     }
 
 
+    /**
+     * Gets the options of the binary
+     *
+     * @return Options and their values
+     */
+    protected List<String> getArguments() {
+        List<String> arguments = new ArrayList<String>();
+
+        if (verbose) {
+            arguments.add("-verbose");
+        }
+
+        arguments.add("-fov");
+        arguments.add(String.valueOf(fov));
+        arguments.add("-threshold");
+        arguments.add(String.valueOf(threshold));
+        arguments.add("-gamma");
+        arguments.add(String.valueOf(gamma));
+        arguments.add("-luminance");
+        arguments.add(String.valueOf(luminance));
+
+        if (luminanceOnly) {
+            arguments.add("-luminanceonly");
+        }
+
+        arguments.add("-colorfactor");
+        arguments.add(String.valueOf(colorFactor));
+        arguments.add("-downsample");
+        arguments.add(String.valueOf(downSample));
+
+        return arguments;
+    }
+
+    /**
+     * Is a screen always above threshold when at least the given share of its pixels changed?
+     *
+     * @param changed Share of changed pixels (0 to 1)
+     * @param width Width of screen
+     * @param height Height of screen
+     * @return True when the changed pixels reach the threshold, counted in the down-sampled image
+     */
+    @Override
+    protected boolean isAboveThreshold(double changed, int width, int height) {
+        long pixels = (long)(width >> downSample) * (height >> downSample);
+        return (changed * pixels) >= threshold;
+    }
+
+    /**
+     * Runs the binary through the launcher
+     *
+     * @return True
+     */
+    @Override
+    public boolean usesLauncher() {
+        return true;
+    }
+
     /**
      * Compare two images
      *
@@ -190,45 +278,102 @@ public class PerceptualDiff extends ComparisonDescribable {
      * @param screenPath Build screen
      * @param approvedPath Approved screen
      * @param diffOutputPath Path to output file for differences
-     * @return Differences found?
+     * @return Result of comparison
      * @throws InterruptedException
      * @throws IOException
      */
-    public Boolean compareScreens(AbstractBuild build, Launcher launcher, BuildListener listener,
-                                  FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
+    public ComparisonResult compareScreens(AbstractBuild build, Launcher launcher, BuildListener listener,
+                                           FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
             throws InterruptedException, IOException {
 
         StringBuilder sb = new StringBuilder();
 
         sb.append(getDescriptor().getBinaryPath());
 
-        if (verbose) {
-            sb.append(" -verbose");
+        for(String argument : getArguments()) {
+            sb.append(" " + argument);
         }
 
-        sb.append(" -fov " + fov);
-        sb.append(" -threshold " + threshold);
-        sb.append(" -gamma " + gamma);
-        sb.append(" -luminance " + luminance);
-
-        if (luminanceOnly) {
-            sb.append(" -luminanceonly");
-        }
-
-        sb.append(" -colorfactor " + colorFactor);
-        sb.append(" -downsample " + downSample);
-
         sb.append(" -output " + diffOutputPath.getRemote());
         sb.append(" " + approvedPath.getRemote());
         sb.append(" " + screenPath.getRemote());
 
         String cmd = sb.toString();
 
-        // Run comparison and wait until finished
+        // Run comparison and wait until finished; runs next to the screens, which may be on another node
         listener.getLogger().println(cmd);
-        int exitCode = launcher.launch(cmd, build.getEnvVars(), listener.getLogger(), build.getWorkspace()).join();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        int exitCode = launcher.launch(cmd, build.getEnvVars(),
+                                       new ForkOutputStream(listener.getLogger(), output), screenPath.getParent()).join();
+
+        ComparisonResult result = new ComparisonResult(exitCode != 0);
+        result.setCompareTime(System.currentTimeMillis() - start);
+
+        collectMetrics(result, output.toString(), screenPath, diffOutputPath);
+
+        return result;
+    }
+
+    /**
+     * Collects the metrics of a comparison from the binary output
+     *
+     * @param result Result to fill
+     * @param output Output of the binary
+     * @param screenPath Build screen
+     * @param diffOutputPath Path to output file for differences
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected void collectMetrics(ComparisonResult result, String output, FilePath screenPath, FilePath diffOutputPath)
+            throws InterruptedException, IOException {
+
+        // The binary decodes the images itself; the difference image is only read when the tile indexes cannot
+        // tell the changed regions, see collectImageMetrics
+        Matcher matcher = DIFFERENT_PIXELS.matcher(output);
+        if (matcher.find()) {
+            result.setDifferentPixels(Long.parseLong(matcher.group(1)));
+        }
+
+        int[] dimensions = ImageUtils.readDimensions(screenPath);
+        if (dimensions != null) {
+            result.setDimensions(dimensions[0], dimensions[1]);
+        }
+    }
+
+    /**
+     * Completes the regions and different pixels from the difference image, unless the tile indexes tell them
+     *
+     * @param result Result to complete
+     * @param diffOutputPath Difference image written by the binary
+     * @param changedRegions Boxes around the changed tiles, or null if the tile indexes could not be compared
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Override
+    protected void collectImageMetrics(ComparisonResult result, FilePath diffOutputPath, List<int[]> changedRegions)
+            throws InterruptedException, IOException {
+
+        // Nothing to complete without differences, or when the regions are known already
+        if ((result.getRegions() > 0) || !diffOutputPath.exists()) {
+            return;
+        }
+
+        // The binary reports the different pixels, so the changed tiles spare decoding the difference image
+        boolean pixelsReported = (result.getDifferentPixels() > 0);
+        if (pixelsReported && (changedRegions != null) && !changedRegions.isEmpty()) {
+            result.setRegions(changedRegions.size());
+            return;
+        }
 
-        return (exitCode != 0);
+        BufferedImage diff = ImageUtils.readImage(diffOutputPath);
+        if (diff != null) {
+            result.setRegions(ImageUtils.countRegions(diff));
+
+            if (!pixelsReported) {
+                result.setDifferentPixels(ImageUtils.countDifferentPixels(diff));
+            }
+        }
     }
 
 
@@ -431,55 +576,5 @@ public class PerceptualDiff extends ComparisonDescribable {
 
             return FormValidation.ok();
         }
-
-        /**
-         * Will be called when numberOfDifferences field is validated
-         *
-         * @param value Value of field
-         * @return Validation result
-         * @throws IOException
-         * @throws InterruptedException
-         * @throws ServletException
-         */
-        public FormValidation doCheckNumberOfDifferences(@QueryParameter String value)
-                throws IOException, InterruptedException, ServletException {
-
-            float number = NumberUtils.toInt(value, -1);
-
-            if (number == -1)
-                return FormValidation.error("Please enter a number!");
-
-            if (number < 1)
-                return FormValidation.error("The value should be greater than or equal to one.");
-
-            return FormValidation.ok();
-        }
-
-
-        /**
-         * Will be called when screensPath field is validated
-         *
-         * @param value Value of field
-         * @return Validation result
-         * @throws IOException
-         * @throws InterruptedException
-         * @throws ServletException
-         */
-        public FormValidation doCheckScreensPath(@QueryParameter String value, @AncestorInPath AbstractProject project)
-                throws IOException, InterruptedException, ServletException {
-
-            if (value.length() == 0)
-                return FormValidation.error("Please define a pattern for the screens!");
-
-            FilePath workspace = project.getWorkspace();
-
-            if ((workspace == null) || !workspace.exists())
-                return FormValidation.warning("No workspace available.");
-
-            if (workspace.list(value).length == 0)
-                return FormValidation.warning("No files found.");
-
-            return FormValidation.ok();
-        }
     }
 }
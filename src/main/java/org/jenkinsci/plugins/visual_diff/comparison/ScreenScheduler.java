@@ -0,0 +1,175 @@
+package org.jenkinsci.plugins.visual_diff.comparison;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+
+import org.jenkinsci.plugins.visual_diff.DataAction;
+import org.jenkinsci.plugins.visual_diff.data.Screen;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Orders screens for comparison by their history in previous builds
+ *
+ * Screens that failed recently, that had large differences, and that are cheap to compare come first.
+ *
+ * @author Marcel Erz
+ */
+public class ScreenScheduler {
+
+    /**
+     * Number of previous builds to look at
+     */
+    public static final int HISTORY_DEPTH = 10;
+
+    /**
+     * Likelihood used for screens without history
+     */
+    private static final double UNKNOWN_LIKELIHOOD = 0.5;
+
+
+    /**
+     * History of screens by name
+     */
+    private final Map<String, History> histories = new HashMap<String, History>();
+
+
+    /**
+     * Initializes the scheduler with the history of previous builds
+     *
+     * @param build Current build
+     */
+    public ScreenScheduler(AbstractBuild<?, ?> build) {
+        int depth = 0;
+
+        for(AbstractBuild<?, ?> previous = build.getPreviousBuild();
+            (previous != null) && (depth < HISTORY_DEPTH);
+            previous = previous.getPreviousBuild()) {
+
+            DataAction data = previous.getAction(DataAction.class);
+            if (data == null) continue;
+
+            depth++;
+
+            for(Screen screen : data.getScreenList()) {
+                // Inherited screens repeat the result of the build they were compared in
+                if (screen.isSkippedScreen() || screen.isInherited() || !screen.hasBuildImage()) continue;
+
+                History history = histories.get(screen.getImageName());
+                if (history == null) {
+                    history = new History();
+                    histories.put(screen.getImageName(), history);
+                }
+
+                history.add(screen);
+            }
+        }
+    }
+
+
+    /**
+     * Gets the priority of a screen; higher values are compared first
+     *
+     * @param name Name of screen
+     * @return Priority
+     */
+    public double getPriority(String name) {
+        History history = histories.get(name);
+
+        if (history == null) {
+            return UNKNOWN_LIKELIHOOD;
+        }
+
+        double likelihood = (double)history.failures / history.builds;
+
+        if (history.lastFailed) {
+            likelihood += 1.0;
+        }
+
+        // Differences of 5% and more count fully
+        likelihood += Math.min(1.0, history.lastPercentage / 5.0);
+
+        // Prefer cheap screens; one second of comparison halves the priority
+        return likelihood / (1.0 + history.lastCost / 1000.0);
+    }
+
+    /**
+     * Orders screens by priority
+     *
+     * @param screens Screens to order
+     * @return Ordered screens
+     */
+    public FilePath[] order(FilePath[] screens) {
+        FilePath[] ordered = screens.clone();
+        final Map<String, Double> priorities = new HashMap<String, Double>();
+
+        for(FilePath screen : ordered) {
+            priorities.put(screen.getName(), getPriority(screen.getName()));
+        }
+
+        Arrays.sort(ordered, new Comparator<FilePath>() {
+            public int compare(FilePath left, FilePath right) {
+                return Double.compare(priorities.get(right.getName()), priorities.get(left.getName()));
+            }
+        });
+
+        return ordered;
+    }
+
+
+    /**
+     * History of one screen
+     */
+    private static class History {
+
+        /**
+         * Number of builds the screen was compared in
+         */
+        private int builds = 0;
+
+        /**
+         * Number of builds the screen failed in
+         */
+        private int failures = 0;
+
+        /**
+         * Did the screen fail in the most recent build?
+         */
+        private boolean lastFailed = false;
+
+        /**
+         * Difference percentage in the most recent build
+         */
+        private float lastPercentage = 0.0f;
+
+        /**
+         * Comparison time in the most recent build (in ms)
+         */
+        private long lastCost = 0;
+
+
+        /**
+         * Adds a screen of a previous build; builds are added from most recent to oldest
+         *
+         * @param screen Screen
+         */
+        private void add(Screen screen) {
+            boolean failed = screen.isExistingDifferentAboveThresholdScreen() || screen.isNewUnApprovedScreen();
+
+            if (builds == 0) {
+                lastFailed = failed;
+
+                if (screen.hasComparisonResult()) {
+                    lastPercentage = screen.getComparisonResult().getDifferencePercentage();
+                    lastCost = screen.getComparisonResult().getCompareTime();
+                }
+            }
+
+            builds++;
+            if (failed) failures++;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.jenkinsci.plugins.visual_diff.comparison;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs comparisons on the nodes of a label
+ *
+ * Screens are assigned to nodes by the hash of their name, so the same screen is usually compared on the same
+ * node. The build screen is copied to the node, compared there, and the difference image is copied back. Approved
+ * images are kept on the node by digest, so a baseline is only copied once per node. When a node fails, its screens
+ * move to the next node; when all nodes failed, they are compared locally.
+ *
+ * @author Marcel Erz
+ */
+public class ShardRouter {
+
+    /**
+     * Prefix of the per-shard phases in the build timings
+     */
+    public static final String PHASE_PREFIX = "shard ";
+
+    /**
+     * Folder of the approved images kept on a node, relative to its root
+     */
+    public static final String APPROVED_FOLDER = "vdiff-shards-approved";
+
+    /**
+     * Age of approved images on a node that were not used anymore, until they are removed (in ms)
+     */
+    private static final long APPROVED_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+
+    /**
+     * Current build
+     */
+    private final AbstractBuild build;
+
+    /**
+     * Listener for console
+     */
+    private final BuildListener listener;
+
+    /**
+     * Timings to record the time spent per shard in
+     */
+    private final BuildTimings timings;
+
+    /**
+     * Nodes of the label, ordered by name
+     */
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    /**
+     * Names of nodes that failed during this build
+     */
+    private final Set<String> failed = new HashSet<String>();
+
+    /**
+     * Locks of the approved images copied to nodes, by node and digest
+     */
+    private final Map<String, Object> copies = new HashMap<String, Object>();
+
+
+    /**
+     * Initializes the router with all online nodes of a label
+     *
+     * @param build Current build
+     * @param listener Listener for console
+     * @param timings Timings to record the time spent per shard in
+     * @param labelExpression Label of the nodes
+     */
+    public ShardRouter(AbstractBuild build, BuildListener listener, BuildTimings timings, String labelExpression) {
+        this.build = build;
+        this.listener = listener;
+        this.timings = timings;
+
+        Label label = Hudson.getInstance().getLabel(labelExpression);
+        if (label != null) {
+            for(Node node : label.getNodes()) {
+                Computer computer = node.toComputer();
+                if ((computer != null) && computer.isOnline() && (node.getRootPath() != null)) {
+                    nodes.add(node);
+                }
+            }
+        }
+
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(Node left, Node right) {
+                return left.getNodeName().compareTo(right.getNodeName());
+            }
+        });
+    }
+
+
+    /**
+     * Gets the number of shards
+     *
+     * @return Number of online nodes
+     */
+    public int getShardCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Gets the display name of a node
+     *
+     * @param node Node
+     * @return Name
+     */
+    private static String _name(Node node) {
+        return (node.getNodeName().length() == 0) ? "master" : node.getNodeName();
+    }
+
+
+    /**
+     * Compares a screen on the node of its shard
+     *
+     * @param comparison Comparison to run
+     * @param launcher Launcher of the build, used when no node is left
+     * @param screenPath Build screen
+     * @param approvedPath Approved screen
+     * @param diffOutputPath Path to output file for differences
+     * @return Result of comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ComparisonResult compare(ComparisonDescribable comparison, Launcher launcher,
+                                    FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
+            throws InterruptedException, IOException {
+
+        int shard = (screenPath.getName().hashCode() & 0x7fffffff) % Math.max(1, nodes.size());
+
+        for(int attempt = 0; attempt < nodes.size(); attempt++) {
+            Node node = nodes.get((shard + attempt) % nodes.size());
+
+            synchronized (failed) {
+                if (failed.contains(node.getNodeName())) continue;
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                return _compareOn(node, comparison, screenPath, approvedPath, diffOutputPath);
+
+            } catch (IOException e) {
+                synchronized (failed) {
+                    failed.add(node.getNodeName());
+                }
+                listener.getLogger().println("Shard " + _name(node) + " failed (" + e.getMessage() + "). Move its screens to the next node...");
+
+            } finally {
+                timings.record(PHASE_PREFIX + _name(node), System.currentTimeMillis() - start);
+            }
+        }
+
+        // No node left
+        return comparison.compareScreens(build, launcher, listener, screenPath, approvedPath, diffOutputPath);
+    }
+
+    /**
+     * Compares a screen on a node
+     *
+     * @param node Node
+     * @param comparison Comparison to run
+     * @param screenPath Build screen
+     * @param approvedPath Approved screen
+     * @param diffOutputPath Path to output file for differences
+     * @return Result of comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private ComparisonResult _compareOn(Node node, ComparisonDescribable comparison,
+                                        FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
+            throws InterruptedException, IOException {
+
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new IOException("Node is offline");
+        }
+
+        FilePath folder = _getWorkPath(root).child(screenPath.getName());
+        folder.mkdirs();
+
+        try {
+            FilePath remoteScreen = folder.child("build");
+            FilePath remoteDiff = folder.child("diff");
+
+            screenPath.copyTo(remoteScreen);
+            FilePath remoteApproved = _getApprovedOn(node, root, approvedPath);
+
+            ComparisonResult result = comparison.compareScreens(build, node.createLauncher(listener), listener,
+                                                                remoteScreen, remoteApproved, remoteDiff);
+
+            if (remoteDiff.exists()) {
+                remoteDiff.copyTo(diffOutputPath);
+            }
+
+            return result;
+
+        } finally {
+            folder.deleteRecursive();
+        }
+    }
+
+    /**
+     * Gets the approved image on a node; copies it when the node does not have it yet
+     *
+     * @param node Node
+     * @param root Root folder of node
+     * @param approvedPath Approved screen
+     * @return Approved image on the node
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private FilePath _getApprovedOn(Node node, FilePath root, FilePath approvedPath) throws InterruptedException, IOException {
+        String digest = ProjectArtifacts.getDigest(approvedPath);
+        FilePath remoteApproved = root.child(APPROVED_FOLDER).child(digest);
+
+        Object lock;
+        synchronized (copies) {
+            lock = copies.get(node.getNodeName() + "/" + digest);
+            if (lock == null) {
+                lock = new Object();
+                copies.put(node.getNodeName() + "/" + digest, lock);
+            }
+        }
+
+        // Images are named by their content, so an existing copy is always up to date
+        synchronized (lock) {
+            if (remoteApproved.exists()) {
+                remoteApproved.touch(System.currentTimeMillis());
+
+            } else {
+                // Builds running concurrently on the node write their own staging file
+                FilePath folder = root.child(APPROVED_FOLDER);
+                folder.mkdirs();
+
+                FilePath staged = folder.createTempFile(digest, ".tmp");
+                approvedPath.copyTo(staged);
+                staged.renameTo(remoteApproved);
+            }
+        }
+
+        return remoteApproved;
+    }
+
+    /**
+     * Removes the work folders of this build from all nodes
+     *
+     * @throws InterruptedException
+     */
+    public void cleanUp() throws InterruptedException {
+        for(Node node : nodes) {
+            FilePath root = node.getRootPath();
+            if (root == null) continue;
+
+            try {
+                _getWorkPath(root).deleteRecursive();
+
+                // Runs on the node, so the kept images are not listed over the channel
+                FilePath approved = root.child(APPROVED_FOLDER);
+                if (approved.exists()) {
+                    approved.act(new RemoveUnused(System.currentTimeMillis() - APPROVED_MAX_AGE));
+                }
+
+            } catch (IOException e) {
+                listener.getLogger().println("Could not clean up shard " + _name(node) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the work folder of this build on a node
+     *
+     * @param root Root folder of node
+     * @return Work folder
+     */
+    private FilePath _getWorkPath(FilePath root) {
+        // Full names keep jobs of the same name in different folders apart
+        return root.child("vdiff-shards").child(build.getProject().getFullName()).child(String.valueOf(build.getNumber()));
+    }
+
+
+    /**
+     * Removes the approved images of a node that were not used for a while
+     */
+    private static class RemoveUnused implements FilePath.FileCallable<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Images last used before this time are removed (in ms)
+         */
+        private final long cutOff;
+
+
+        /**
+         * Initializes the callable
+         *
+         * @param cutOff Images last used before this time are removed (in ms)
+         */
+        private RemoveUnused(long cutOff) {
+            this.cutOff = cutOff;
+        }
+
+
+        /**
+         * Removes the images
+         *
+         * @param folder Folder of approved images
+         * @param channel Channel
+         * @return Number of images removed
+         */
+        public Integer invoke(File folder, VirtualChannel channel) {
+            int removed = 0;
+
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for(File file : files) {
+                    if ((file.lastModified() < cutOff) && file.delete()) removed++;
+                }
+            }
+
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package org.jenkinsci.plugins.visual_diff.comparison;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.*;
+import hudson.util.FormValidation;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+import org.jenkinsci.plugins.visual_diff.utils.ImageUtils;
+import org.jenkinsci.plugins.visual_diff.utils.MappedRaster;
+import org.jenkinsci.plugins.visual_diff.utils.PixelSource;
+import org.jenkinsci.plugins.visual_diff.utils.RasterCache;
+import org.jenkinsci.plugins.visual_diff.utils.TileIndex;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structural similarity (SSIM) - describable
+ *
+ * Compares the luminance of both images in-process. The mean, variance and covariance of every window are
+ * taken from summed-area tables, so each pixel costs the same regardless of the window size. The image is
+ * split into horizontal bands that are compared in parallel.
+ *
+ * @author Marcel Erz
+ */
+public class StructuralSimilarity extends ComparisonDescribable {
+
+    /**
+     * Stabilizes the luminance term for dark windows
+     */
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+
+    /**
+     * Stabilizes the contrast term for flat windows
+     */
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    /**
+     * Pixels with a lower similarity are marked in the difference image
+     */
+    public static final double PIXEL_SIMILARITY = 0.999;
+
+    /**
+     * Number of threads comparing bands
+     */
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Pool comparing the bands of all screens
+     *
+     * Shared by all comparisons, so screens compared in parallel never run more band threads than there are
+     * processors. Threads are released after a minute without work.
+     */
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Visual-Diff SSIM");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Edge length of the comparison window in pixels
+     */
+    private final int window;
+
+    /**
+     * Lowest accepted mean similarity of the whole image
+     */
+    private final float threshold;
+
+    /**
+     * Lowest accepted mean similarity of a single tile
+     */
+    private final float tileMinimum;
+
+
+    /**
+     * Initializes the SSIM comparison
+     *
+     * @param screensPath Path to screens
+     * @param autoApprove Auto-approve
+     * @param markAs Mark build as...
+     * @param numberOfDifferences Number of differences until build result changes
+     * @param failFast Stop comparing once the number of differences is reached
+     * @param prioritize Compare screens that are likely to fail first
+     * @param timeBudget Wall-clock budget for comparisons (in seconds, 0 for none)
+     * @param manifestPath Workspace path of a manifest listing the screens to compare
+     * @param threads Number of screens compared in parallel
+     * @param detectRenames Compare new screens with similar missing screens
+     * @param preFilter Skip the comparison of screens whose statistics differ widely
+     * @param shardLabel Label of the nodes to distribute comparisons to
+     * @param window Edge length of the comparison window
+     * @param threshold Lowest accepted mean similarity of the image
+     * @param tileMinimum Lowest accepted mean similarity of a tile
+     */
+    @DataBoundConstructor
+    public StructuralSimilarity(String screensPath,
+                                Boolean autoApprove,
+                                String markAs,
+                                int numberOfDifferences,
+                                Boolean failFast,
+                                Boolean prioritize,
+                                int timeBudget,
+                                String manifestPath,
+                                int threads,
+                                Boolean detectRenames,
+                                Boolean preFilter,
+                                String shardLabel,
+                                int window,
+                                float threshold,
+                                float tileMinimum) {
+
+        super(screensPath, autoApprove, markAs, numberOfDifferences, failFast, prioritize, timeBudget, manifestPath, threads, detectRenames, preFilter, shardLabel);
+
+        this.window = window;
+        this.threshold = threshold;
+        this.tileMinimum = tileMinimum;
+    }
+
+
+    /**
+     * Get window size
+     *
+     * @return Edge length in pixels
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Get threshold
+     *
+     * @return Lowest accepted mean similarity
+     */
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get tile minimum
+     *
+     * @return Lowest accepted similarity of a tile
+     */
+    public float getTileMinimum() {
+        return tileMinimum;
+    }
+
+
+    /**
+     * Compare two images
+     *
+     * @param build Current build
+     * @param launcher Launcher
+     * @param listener Listener for console
+     * @param screenPath Build screen
+     * @param approvedPath Approved screen
+     * @param diffOutputPath Path to output file for differences
+     * @return Result of comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ComparisonResult compareScreens(AbstractBuild build, Launcher launcher, BuildListener listener,
+                                           FilePath screenPath, FilePath approvedPath, FilePath diffOutputPath)
+            throws InterruptedException, IOException {
+
+        long start = System.currentTimeMillis();
+
+        BufferedImage buildImage = ImageUtils.readImage(screenPath);
+        RasterCache cache = RasterCache.get();
+        MappedRaster approved = cache.get(approvedPath);
+
+        if ((buildImage == null) || (approved == null)) {
+            cache.release(approved);
+            listener.getLogger().println("Could not decode " + screenPath.getName() + ".");
+            return new ComparisonResult(true);
+        }
+
+        PixelSource screen = ImageUtils.pixels(buildImage);
+
+        long decoded = System.currentTimeMillis();
+
+        ComparisonResult result;
+
+        try {
+            if ((screen.getWidth() != approved.getWidth()) || (screen.getHeight() != approved.getHeight())) {
+                listener.getLogger().println("Image dimensions do not match.");
+                result = new ComparisonResult(true);
+
+            } else {
+                result = _compare(listener, approved, screen, diffOutputPath);
+            }
+        } finally {
+            cache.release(approved);
+        }
+
+        result.setDimensions(screen.getWidth(), screen.getHeight());
+        result.setDecodeTime(decoded - start);
+        result.setCompareTime(System.currentTimeMillis() - decoded);
+
+        return result;
+    }
+
+    /**
+     * Compares two images of the same dimensions
+     *
+     * @param listener Listener for console
+     * @param approved Pixels of approved screen
+     * @param screen Pixels of build screen
+     * @param diffOutputPath Path to output file for differences
+     * @return Result of comparison
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private ComparisonResult _compare(BuildListener listener, final PixelSource approved, final PixelSource screen,
+                                      FilePath diffOutputPath) throws InterruptedException, IOException {
+
+        final int width = screen.getWidth();
+        final int height = screen.getHeight();
+
+        if ((width == 0) || (height == 0)) {
+            return new ComparisonResult(false);
+        }
+
+        int tileSize = TileIndex.TILE_SIZE;
+        final int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+
+        final double[] tileSums = new double[tileColumns * tileRows];
+        final BufferedImage diff = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        // Bands are made of whole tile rows, so no tile is shared by two bands
+        int bandTiles = Math.max(1, tileRows / (THREADS * 4));
+        int bandHeight = bandTiles * tileSize;
+
+        List<Future<double[]>> bands = new ArrayList<Future<double[]>>();
+        try {
+            for(int y = 0; y < height; y += bandHeight) {
+                final int from = y;
+                final int to = Math.min(height, y + bandHeight);
+
+                bands.add(POOL.submit(new Callable<double[]>() {
+                    public double[] call() {
+                        return _compareBand(approved, screen, from, to, tileColumns, tileSums, diff);
+                    }
+                }));
+            }
+
+            double sum = 0;
+            long differentPixels = 0;
+
+            for(Future<double[]> band : bands) {
+                double[] values = _await(band);
+                sum += values[0];
+                differentPixels += (long)values[1];
+            }
+
+            // Lowest mean similarity of all tiles
+            double lowestTile = 1.0;
+            for(int i = 0; i < tileSums.length; i++) {
+                int tileX = (i % tileColumns) * tileSize;
+                int tileY = (i / tileColumns) * tileSize;
+                int pixels = (Math.min(width, tileX + tileSize) - tileX) * (Math.min(height, tileY + tileSize) - tileY);
+
+                lowestTile = Math.min(lowestTile, tileSums[i] / pixels);
+            }
+
+            double similarity = sum / ((long)width * height);
+            boolean differenceFound = (similarity < threshold) || (lowestTile < tileMinimum);
+
+            listener.getLogger().println(String.format("SSIM %.4f, lowest tile %.4f", similarity, lowestTile));
+
+            ComparisonResult result = new ComparisonResult(differenceFound);
+            result.setDifferentPixels(differentPixels);
+
+            if (differentPixels > 0) {
+                result.setRegions(ImageUtils.countRegions(diff));
+
+                OutputStream stream = diffOutputPath.write();
+                try {
+                    ImageIO.write(diff, "png", stream);
+                } finally {
+                    stream.close();
+                }
+            }
+
+            return result;
+
+        } finally {
+            // Bands of a failed or interrupted comparison must not hold up the other screens
+            for(Future<double[]> band : bands) {
+                band.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Compares a band of rows
+     *
+     * @param approved Pixels of approved screen
+     * @param screen Pixels of build screen
+     * @param from First row of band
+     * @param to Row after the band
+     * @param tileColumns Number of tile columns
+     * @param tileSums Sum of similarities per tile; only the tiles of this band are written
+     * @param diff Difference image; only the rows of this band are written
+     * @return Sum of similarities and number of different pixels
+     */
+    private double[] _compareBand(PixelSource approved, PixelSource screen, int from, int to,
+                                  int tileColumns, double[] tileSums, BufferedImage diff) {
+
+        int width = screen.getWidth();
+        int height = screen.getHeight();
+        int size = Math.max(2, window);
+        int radius = size / 2;
+
+        // Rows covered by the windows of this band
+        int top = Math.max(0, from - radius);
+        int bottom = Math.min(height, to - 1 - radius + size);
+        int rows = bottom - top;
+        int stride = width + 1;
+
+        // Summed-area tables with an extra leading row and column of zeros
+        long[] sumX = new long[(rows + 1) * stride];
+        long[] sumY = new long[(rows + 1) * stride];
+        long[] sumXX = new long[(rows + 1) * stride];
+        long[] sumYY = new long[(rows + 1) * stride];
+        long[] sumXY = new long[(rows + 1) * stride];
+
+        int[] approvedRow = new int[width];
+        int[] screenRow = new int[width];
+
+        for(int j = 0; j < rows; j++) {
+            approved.getRow(top + j, approvedRow);
+            screen.getRow(top + j, screenRow);
+
+            long rowX = 0, rowY = 0, rowXX = 0, rowYY = 0, rowXY = 0;
+            int previous = j * stride + 1;
+            int current = (j + 1) * stride + 1;
+
+            for(int i = 0; i < width; i++) {
+                long x = _luma(approvedRow[i]);
+                long y = _luma(screenRow[i]);
+
+                rowX += x;
+                rowY += y;
+                rowXX += x * x;
+                rowYY += y * y;
+                rowXY += x * y;
+
+                sumX[current + i] = sumX[previous + i] + rowX;
+                sumY[current + i] = sumY[previous + i] + rowY;
+                sumXX[current + i] = sumXX[previous + i] + rowXX;
+                sumYY[current + i] = sumYY[previous + i] + rowYY;
+                sumXY[current + i] = sumXY[previous + i] + rowXY;
+            }
+        }
+
+        int tileSize = TileIndex.TILE_SIZE;
+        double sum = 0;
+        long differentPixels = 0;
+
+        for(int y = from; y < to; y++) {
+            int windowTop = Math.max(0, y - radius) - top;
+            int windowBottom = Math.min(height, y - radius + size) - top;
+            int tileRow = (y / tileSize) * tileColumns;
+
+            for(int x = 0; x < width; x++) {
+                int windowLeft = Math.max(0, x - radius);
+                int windowRight = Math.min(width, x - radius + size);
+
+                int a = windowTop * stride + windowLeft;
+                int b = windowTop * stride + windowRight;
+                int c = windowBottom * stride + windowLeft;
+                int d = windowBottom * stride + windowRight;
+
+                double n = (windowBottom - windowTop) * (windowRight - windowLeft);
+
+                double meanX = (sumX[d] - sumX[b] - sumX[c] + sumX[a]) / n;
+                double meanY = (sumY[d] - sumY[b] - sumY[c] + sumY[a]) / n;
+                double varianceX = (sumXX[d] - sumXX[b] - sumXX[c] + sumXX[a]) / n - meanX * meanX;
+                double varianceY = (sumYY[d] - sumYY[b] - sumYY[c] + sumYY[a]) / n - meanY * meanY;
+                double covariance = (sumXY[d] - sumXY[b] - sumXY[c] + sumXY[a]) / n - meanX * meanY;
+
+                double similarity = ((2 * meanX * meanY + C1) * (2 * covariance + C2)) /
+                                    ((meanX * meanX + meanY * meanY + C1) * (varianceX + varianceY + C2));
+
+                sum += similarity;
+                tileSums[tileRow + (x / tileSize)] += similarity;
+
+                if (similarity < PIXEL_SIMILARITY) {
+                    differentPixels++;
+
+                    int red = (int)Math.max(64, Math.min(255, (1.0 - similarity) * 1024));
+                    diff.setRGB(x, y, red << 16);
+                }
+            }
+        }
+
+        return new double[] { sum, differentPixels };
+    }
+
+    /**
+     * Gets the luminance of a pixel
+     *
+     * @param pixel ARGB pixel
+     * @return Luminance (0 - 255)
+     */
+    private static int _luma(int pixel) {
+        return ((((pixel >> 16) & 0xff) * 77) + (((pixel >> 8) & 0xff) * 150) + ((pixel & 0xff) * 29)) >> 8;
+    }
+
+    /**
+     * Waits for a band and passes on its failure
+     *
+     * @param band Band
+     * @return Result of band
+     * @throws InterruptedException
+     */
+    private static double[] _await(Future<double[]> band) throws InterruptedException {
+        try {
+            return band.get();
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+
+            throw new IllegalStateException("Band comparison failed", cause);
+        }
+    }
+
+
+    /**
+     * Get descriptor
+     *
+     * @return Descriptor
+     */
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
+    }
+
+
+    /**
+     * Descriptor for comparison
+     */
+    @Extension
+    public static class DescriptorImpl extends ComparisonDescriptor {
+
+        /**
+         * Name of comparison
+         *
+         * @return Name
+         */
+        @Override
+        public String getDisplayName() {
+            return "Structural Similarity (SSIM)";
+        }
+
+
+        /**
+         * Will be called when window field is validated
+         *
+         * @param value Value of field
+         * @return Validation result
+         * @throws IOException
+         * @throws InterruptedException
+         * @throws ServletException
+         */
+        public FormValidation doCheckWindow(@QueryParameter String value)
+                throws IOException, InterruptedException, ServletException {
+
+            int number = NumberUtils.toInt(value, -1);
+
+            if (number == -1)
+                return FormValidation.error("Please enter a number!");
+
+            if ((number < 2) || (number > 64))
+                return FormValidation.error("The value should be in the range of 2 to 64.");
+
+            return FormValidation.ok();
+        }
+
+        /**
+         * Will be called when threshold field is validated
+         *
+         * @param value Value of field
+         * @return Validation result
+         * @throws IOException
+         * @throws InterruptedException
+         * @throws ServletException
+         */
+        public FormValidation doCheckThreshold(@QueryParameter String value)
+                throws IOException, InterruptedException, ServletException {
+            return _checkSimilarity(value);
+        }
+
+        /**
+         * Will be called when tileMinimum field is validated
+         *
+         * @param value Value of field
+         * @return Validation result
+         * @throws IOException
+         * @throws InterruptedException
+         * @throws ServletException
+         */
+        public FormValidation doCheckTileMinimum(@QueryParameter String value)
+                throws IOException, InterruptedException, ServletException {
+            return _checkSimilarity(value);
+        }
+
+        /**
+         * Validates a similarity
+         *
+         * @param value Value of field
+         * @return Validation result
+         */
+        private FormValidation _checkSimilarity(String value) {
+
+            float number = NumberUtils.toFloat(value, -1);
+
+            if (number == -1)
+                return FormValidation.error("Please enter a number!");
+
+            if ((number < 0.0) || (number > 1.0))
+                return FormValidation.error("The value should be in the range of 0.0 to 1.0.");
+
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.jenkinsci.plugins.visual_diff.data;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timings of the build phases and the per-screen comparison latencies
+ *
+ * @author Marcel Erz
+ */
+public class BuildTimings implements Serializable {
+
+    /**
+     * Serialization identifier
+     */
+    private static final long serialVersionUID = -2311705893517049118L;
+
+    public static final String PHASE_FOLDERS = "folders";
+    public static final String PHASE_DUPLICATE_APPROVED = "duplicateApproved";
+    public static final String PHASE_ARCHIVE = "archive";
+    public static final String PHASE_COMPARE = "compare";
+    public static final String PHASE_MISSING = "missing";
+
+    /**
+     * Upper bounds (in ms) of the latency histogram buckets; the last bucket is open
+     */
+    public static final long[] LATENCY_BUCKETS = { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+
+    /**
+     * Time spent per phase (in ms), in order of recording
+     */
+    private final LinkedHashMap<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /**
+     * Bytes written per phase, in order of recording
+     */
+    private LinkedHashMap<String, Long> phaseBytes = new LinkedHashMap<String, Long>();
+
+    /**
+     * Highest used heap sampled at phase and screen boundaries (in bytes)
+     */
+    private long peakHeap = 0;
+
+    /**
+     * Number of screens per latency bucket
+     */
+    private final int[] latencies = new int[LATENCY_BUCKETS.length + 1];
+
+    /**
+     * Number of compared screens
+     */
+    private int screens = 0;
+
+    /**
+     * Sum of all comparison latencies (in ms)
+     */
+    private long totalLatency = 0;
+
+    /**
+     * Highest comparison latency (in ms)
+     */
+    private long maxLatency = 0;
+
+
+    /**
+     * Adds time to a phase
+     *
+     * @param phase Name of phase
+     * @param time Time in ms
+     */
+    public synchronized void record(String phase, long time) {
+        Long current = phases.get(phase);
+        phases.put(phase, (current == null) ? time : current + time);
+
+        sampleHeap();
+    }
+
+    /**
+     * Adds written bytes to a phase
+     *
+     * @param phase Name of phase
+     * @param bytes Number of bytes
+     */
+    public synchronized void recordBytes(String phase, long bytes) {
+        Long current = phaseBytes.get(phase);
+        phaseBytes.put(phase, (current == null) ? bytes : current + bytes);
+    }
+
+    /**
+     * Samples the used heap and keeps the highest value
+     */
+    public synchronized void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Records the latency of one screen comparison
+     *
+     * @param time Time in ms
+     */
+    public synchronized void recordLatency(long time) {
+        int bucket = 0;
+        while ((bucket < LATENCY_BUCKETS.length) && (time > LATENCY_BUCKETS[bucket])) {
+            bucket++;
+        }
+
+        latencies[bucket]++;
+        screens++;
+        totalLatency += time;
+        maxLatency = Math.max(maxLatency, time);
+
+        sampleHeap();
+    }
+
+
+    /**
+     * Gets the time spent per phase
+     *
+     * @return Phase names to time in ms
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(phases);
+    }
+
+    /**
+     * Gets the time spent in a phase
+     *
+     * @param phase Name of phase
+     * @return Time in ms
+     */
+    public synchronized long getPhase(String phase) {
+        Long time = phases.get(phase);
+        return (time == null) ? 0 : time;
+    }
+
+    /**
+     * Gets the bytes written in a phase
+     *
+     * @param phase Name of phase
+     * @return Number of bytes
+     */
+    public synchronized long getPhaseBytes(String phase) {
+        Long bytes = phaseBytes.get(phase);
+        return (bytes == null) ? 0 : bytes;
+    }
+
+    /**
+     * Gets the highest sampled heap usage
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getPeakHeap() {
+        return peakHeap;
+    }
+
+    /**
+     * Gets the number of screens compared per second
+     *
+     * @return Screens per second
+     */
+    public synchronized double getScreensPerSecond() {
+        long time = getPhase(PHASE_COMPARE);
+        return (time == 0) ? 0.0 : (screens * 1000.0) / time;
+    }
+
+    /**
+     * Gets the number of screens per latency bucket
+     *
+     * @return Counts, one for each entry in {@link #LATENCY_BUCKETS} plus the open bucket
+     */
+    public synchronized int[] getLatencies() {
+        return latencies.clone();
+    }
+
+    /**
+     * Gets the number of compared screens
+     *
+     * @return Number of screens
+     */
+    public synchronized int getScreens() {
+        return screens;
+    }
+
+    /**
+     * Gets the average comparison latency
+     *
+     * @return Time in ms
+     */
+    public synchronized long getAverageLatency() {
+        return (screens == 0) ? 0 : totalLatency / screens;
+    }
+
+    /**
+     * Gets the highest comparison latency
+     *
+     * @return Time in ms
+     */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+
+    /**
+     * Renders a compact table for the console
+     *
+     * @return Table
+     */
+    public synchronized String toTable() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("%-20s %10s %14s%n", "Phase", "Time (ms)", "Written (KB)"));
+        for(Map.Entry<String, Long> entry : phases.entrySet()) {
+            sb.append(String.format("%-20s %10d %14d%n", entry.getKey(), entry.getValue(), getPhaseBytes(entry.getKey()) / 1024));
+        }
+
+        sb.append(String.format("Screens compared: %d (%.1f/s), avg %d ms, max %d ms%n",
+                                screens, getScreensPerSecond(), getAverageLatency(), maxLatency));
+        sb.append(String.format("Peak heap: %d MB%n", peakHeap / (1024 * 1024)));
+
+        for(int i = 0; i < latencies.length; i++) {
+            if (latencies[i] == 0) continue;
+
+            String label = (i < LATENCY_BUCKETS.length) ? "<= " + LATENCY_BUCKETS[i] + " ms" : "> " + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + " ms";
+            sb.append(String.format("  %-18s %10d%n", label, latencies[i]));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets a JSON object
+     *
+     * @return JSON
+     */
+    public synchronized JSONObject toJSON() {
+        JSONObject obj = new JSONObject();
+
+        JSONObject phaseList = new JSONObject();
+        for(Map.Entry<String, Long> entry : phases.entrySet()) {
+            phaseList.put(entry.getKey(), entry.getValue());
+        }
+        obj.put("phases", phaseList);
+
+        JSONObject bytesList = new JSONObject();
+        for(Map.Entry<String, Long> entry : phaseBytes.entrySet()) {
+            bytesList.put(entry.getKey(), entry.getValue());
+        }
+        obj.put("phaseBytes", bytesList);
+
+        JSONArray buckets = new JSONArray();
+        for(long bucket : LATENCY_BUCKETS) {
+            buckets.add(bucket);
+        }
+        obj.put("latencyBuckets", buckets);
+
+        JSONArray counts = new JSONArray();
+        for(int count : latencies) {
+            counts.add(count);
+        }
+        obj.put("latencies", counts);
+
+        obj.put("screens", screens);
+        obj.put("averageLatency", getAverageLatency());
+        obj.put("maxLatency", maxLatency);
+        obj.put("screensPerSecond", getScreensPerSecond());
+        obj.put("peakHeap", peakHeap);
+
+        return obj;
+    }
+
+    /**
+     * Initializes fields missing in data of older versions
+     *
+     * @return Timings
+     */
+    protected Object readResolve() {
+        if (phaseBytes == null) {
+            phaseBytes = new LinkedHashMap<String, Long>();
+        }
+        return this;
+    }
+}
@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.visual_diff.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a single screen comparison
+ *
+ * @author Marcel Erz
+ */
+public class ComparisonResult implements Serializable {
+
+    /**
+     * Serialization identifier
+     */
+    private static final long serialVersionUID = 4180913662514073312L;
+
+
+    /**
+     * Difference above threshold found?
+     */
+    private boolean differenceFound = false;
+
+    /**
+     * Number of pixels that are different
+     */
+    private long differentPixels = 0;
+
+    /**
+     * Number of connected regions that changed
+     */
+    private int regions = 0;
+
+    /**
+     * Boxes around changed tiles as x, y, width and height, one box after the other
+     */
+    private int[] changedRegions = new int[0];
+
+    /**
+     * Width of the compared image
+     */
+    private int width = 0;
+
+    /**
+     * Height of the compared image
+     */
+    private int height = 0;
+
+    /**
+     * Time spent decoding images in-process (in ms); 0 for engines decoding the images themselves
+     */
+    private long decodeTime = 0;
+
+    /**
+     * Time spent comparing images (in ms)
+     */
+    private long compareTime = 0;
+
+    /**
+     * Was the difference decided by the pre-filter, without comparing the pixels and writing a difference image?
+     */
+    private boolean preFiltered = false;
+
+
+    /**
+     * Initializes an empty result
+     */
+    public ComparisonResult() {
+    }
+
+    /**
+     * Initializes a result
+     *
+     * @param differenceFound Difference above threshold found?
+     */
+    public ComparisonResult(boolean differenceFound) {
+        this.differenceFound = differenceFound;
+    }
+
+
+    /**
+     * Difference above threshold found?
+     *
+     * @return True/False
+     */
+    public boolean isDifferenceFound() {
+        return differenceFound;
+    }
+
+    /**
+     * Sets if a difference above threshold was found
+     *
+     * @param value True/False
+     */
+    public void setDifferenceFound(boolean value) {
+        differenceFound = value;
+    }
+
+
+    /**
+     * Was the difference decided by the pre-filter?
+     *
+     * @return True/False; there is no difference image and no number of different pixels
+     */
+    public boolean isPreFiltered() {
+        return preFiltered;
+    }
+
+    /**
+     * Sets if the difference was decided by the pre-filter
+     *
+     * @param value True/False
+     */
+    public void setPreFiltered(boolean value) {
+        preFiltered = value;
+    }
+
+
+    /**
+     * Gets the number of different pixels
+     *
+     * @return Number of pixels
+     */
+    public long getDifferentPixels() {
+        return differentPixels;
+    }
+
+    /**
+     * Sets the number of different pixels
+     *
+     * @param value Number of pixels
+     */
+    public void setDifferentPixels(long value) {
+        differentPixels = value;
+    }
+
+
+    /**
+     * Gets the percentage of different pixels
+     *
+     * @return Percentage (0 - 100)
+     */
+    public float getDifferencePercentage() {
+        long total = (long)width * (long)height;
+
+        if (total == 0) {
+            return 0.0f;
+        }
+
+        return (differentPixels * 100.0f) / total;
+    }
+
+
+    /**
+     * Gets the number of changed regions
+     *
+     * @return Number of regions
+     */
+    public int getRegions() {
+        return regions;
+    }
+
+    /**
+     * Sets the number of changed regions
+     *
+     * @param value Number of regions
+     */
+    public void setRegions(int value) {
+        regions = value;
+    }
+
+
+    /**
+     * Gets the boxes around changed tiles
+     *
+     * @return Boxes as x, y, width and height
+     */
+    public List<int[]> getChangedRegions() {
+        List<int[]> boxes = new ArrayList<int[]>();
+
+        for(int i = 0; i + 3 < changedRegions.length; i += 4) {
+            boxes.add(new int[] { changedRegions[i], changedRegions[i + 1], changedRegions[i + 2], changedRegions[i + 3] });
+        }
+
+        return boxes;
+    }
+
+    /**
+     * Sets the boxes around changed tiles
+     *
+     * @param boxes Boxes as x, y, width and height
+     */
+    public void setChangedRegions(List<int[]> boxes) {
+        changedRegions = new int[boxes.size() * 4];
+
+        for(int i = 0; i < boxes.size(); i++) {
+            System.arraycopy(boxes.get(i), 0, changedRegions, i * 4, 4);
+        }
+    }
+
+
+    /**
+     * Gets the width of the image
+     *
+     * @return Width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image
+     *
+     * @return Height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Sets the dimensions of the image
+     *
+     * @param width Width
+     * @param height Height
+     */
+    public void setDimensions(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+     * Gets the time spent decoding images
+     *
+     * @return Time in ms
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * Sets the time spent decoding images
+     *
+     * @param value Time in ms
+     */
+    public void setDecodeTime(long value) {
+        decodeTime = value;
+    }
+
+
+    /**
+     * Gets the time spent comparing images
+     *
+     * @return Time in ms
+     */
+    public long getCompareTime() {
+        return compareTime;
+    }
+
+    /**
+     * Sets the time spent comparing images
+     *
+     * @param value Time in ms
+     */
+    public void setCompareTime(long value) {
+        compareTime = value;
+    }
+}
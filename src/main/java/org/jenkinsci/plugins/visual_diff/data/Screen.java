@@ -1,8 +1,11 @@
 package org.jenkinsci.plugins.visual_diff.data;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Information about a specific screen
@@ -20,6 +23,10 @@ public class Screen implements Serializable {
     public static final String EXISTING_DIFFERENT_ABOVE_THRESHOLD = "aboveThreshold";
     public static final String EXISTING_DIFFERENT_BELOW_THRESHOLD = "belowThreshold";
 
+    public static final String SKIPPED_NONE = "none";
+    public static final String SKIPPED_FAIL_FAST = "failFast";
+    public static final String SKIPPED_TIME_BUDGET = "timeBudget";
+
 
     /**
      * New screen
@@ -31,6 +38,21 @@ public class Screen implements Serializable {
      */
     private String existing = EXISTING_NONE;
 
+    /**
+     * Reason why the screen was not compared
+     */
+    private String skipped = SKIPPED_NONE;
+
+    /**
+     * Number of the build the screen was compared in, if taken over from it (0 otherwise)
+     */
+    private int inheritedFrom = 0;
+
+    /**
+     * Name of the approved screen this screen was matched to after a rename (null otherwise)
+     */
+    private String renamedFrom = null;
+
 
     /**
      * Name of the image
@@ -55,6 +77,52 @@ public class Screen implements Serializable {
     private boolean approved = false;
 
 
+    /**
+     * Has the screen been compared?
+     */
+    private boolean compared = false;
+
+    /**
+     * Number of different pixels
+     */
+    private long differentPixels = 0;
+
+    /**
+     * Number of changed regions
+     */
+    private int regions = 0;
+
+    /**
+     * Boxes around changed tiles as x, y, width and height, one box after the other
+     */
+    private int[] changedRegions = null;
+
+    /**
+     * Width of compared image
+     */
+    private int width = 0;
+
+    /**
+     * Height of compared image
+     */
+    private int height = 0;
+
+    /**
+     * Time spent decoding in-process (in ms); 0 for engines decoding the images themselves
+     */
+    private int decodeTime = 0;
+
+    /**
+     * Time spent comparing (in ms)
+     */
+    private int compareTime = 0;
+
+    /**
+     * Was the difference decided by the pre-filter, without a difference image?
+     */
+    private boolean preFiltered = false;
+
+
     /**
      * Initializes screen
      *
@@ -170,6 +238,113 @@ public class Screen implements Serializable {
     }
 
 
+    /**
+     * Was the screen left out of the comparison?
+     *
+     * @return True/False
+     */
+    public boolean isSkippedScreen() {
+        return (skipped != null) && !skipped.equals(SKIPPED_NONE);
+    }
+
+    /**
+     * Gets the reason why the screen was not compared
+     *
+     * @return Reason
+     */
+    public String getSkipped() {
+        return (skipped == null) ? SKIPPED_NONE : skipped;
+    }
+
+    /**
+     * Sets a screen that was left out of the comparison
+     *
+     * @param reason Reason why the screen was not compared
+     */
+    public void skippedScreen(String reason) {
+        skipped = reason;
+    }
+
+
+    /**
+     * Was the screen taken over from a previous build?
+     *
+     * @return True/False
+     */
+    public boolean isInherited() {
+        return inheritedFrom > 0;
+    }
+
+    /**
+     * Gets the number of the build the screen was compared in
+     *
+     * @return Build number, 0 if not inherited
+     */
+    public int getInheritedFrom() {
+        return inheritedFrom;
+    }
+
+    /**
+     * Was the screen matched to the approved screen of another name?
+     *
+     * @return True/False
+     */
+    public boolean isRenamed() {
+        return renamedFrom != null;
+    }
+
+    /**
+     * Gets the name of the approved screen this screen was matched to
+     *
+     * @return Name or null if not renamed
+     */
+    public String getRenamedFrom() {
+        return renamedFrom;
+    }
+
+    /**
+     * Sets the approved screen this screen was matched to
+     *
+     * @param name Name of approved screen
+     */
+    public void renamedFrom(String name) {
+        renamedFrom = name;
+    }
+
+
+    /**
+     * Creates a copy of this screen that refers to the images of another build
+     *
+     * @param buildNumber Number of the build the screen was compared in
+     * @return Inherited screen
+     */
+    public Screen inherit(int buildNumber) {
+        Screen screen = new Screen(imageName);
+
+        screen.newScreen = newScreen;
+        screen.existing = existing;
+        screen.approvedImage = approvedImage;
+        screen.buildImage = buildImage;
+        screen.approved = approved;
+
+        screen.renamedFrom = renamedFrom;
+
+        screen.compared = compared;
+        screen.differentPixels = differentPixels;
+        screen.regions = regions;
+        screen.changedRegions = changedRegions;
+        screen.width = width;
+        screen.height = height;
+        screen.decodeTime = decodeTime;
+        screen.compareTime = compareTime;
+        screen.preFiltered = preFiltered;
+
+        screen.inheritedFrom = buildNumber;
+
+        return screen;
+    }
+
+
     /**
      * Gets the name of the image
      *
@@ -182,6 +357,8 @@ public class Screen implements Serializable {
     /**
      * Sets the name of the image
      *
+     * Screens of a list are renamed with {@link ScreenList#rename}, so the list finds them by their new name.
+     *
      * @param value image name
      */
     public void setImageName(String value) {
@@ -229,7 +406,7 @@ public class Screen implements Serializable {
      * @return True/False
      */
     public boolean hasDifferenceImage() {
-        return isExistingDifferentAboveThresholdScreen() || isExistingDifferentBelowThresholdScreen();
+        return !preFiltered && (isExistingDifferentAboveThresholdScreen() || isExistingDifferentBelowThresholdScreen());
     }
 
 
@@ -250,6 +427,82 @@ public class Screen implements Serializable {
     }
 
 
+    /**
+     * Was a comparison recorded for this screen?
+     *
+     * @return True/False
+     */
+    public boolean hasComparisonResult() {
+        return compared;
+    }
+
+    /**
+     * Records the metrics of a comparison
+     *
+     * @param result Result of comparison
+     */
+    public void setComparisonResult(ComparisonResult result) {
+        compared = true;
+        differentPixels = result.getDifferentPixels();
+        regions = result.getRegions();
+        width = result.getWidth();
+        height = result.getHeight();
+        decodeTime = (int)Math.min(result.getDecodeTime(), Integer.MAX_VALUE);
+        compareTime = (int)Math.min(result.getCompareTime(), Integer.MAX_VALUE);
+        preFiltered = result.isPreFiltered();
+
+        List<int[]> boxes = result.getChangedRegions();
+        changedRegions = null;
+
+        if (!boxes.isEmpty()) {
+            changedRegions = new int[boxes.size() * 4];
+            for(int i = 0; i < boxes.size(); i++) {
+                System.arraycopy(boxes.get(i), 0, changedRegions, i * 4, 4);
+            }
+        }
+    }
+
+    /**
+     * Gets the metrics of the recorded comparison
+     *
+     * @return Result of comparison or null if none recorded
+     */
+    public ComparisonResult getComparisonResult() {
+        if (!hasComparisonResult()) {
+            return null;
+        }
+
+        ComparisonResult result = new ComparisonResult(isExistingDifferentAboveThresholdScreen());
+        result.setDifferentPixels(differentPixels);
+        result.setRegions(regions);
+        result.setChangedRegions(_getChangedRegions());
+        result.setDimensions(width, height);
+        result.setDecodeTime(decodeTime);
+        result.setCompareTime(compareTime);
+        result.setPreFiltered(preFiltered);
+
+        return result;
+    }
+
+
+    /**
+     * Gets the boxes around changed tiles
+     *
+     * @return Boxes as x, y, width and height
+     */
+    private List<int[]> _getChangedRegions() {
+        List<int[]> boxes = new ArrayList<int[]>();
+
+        if (changedRegions != null) {
+            for(int i = 0; i + 3 < changedRegions.length; i += 4) {
+                boxes.add(new int[] { changedRegions[i], changedRegions[i + 1], changedRegions[i + 2], changedRegions[i + 3] });
+            }
+        }
+
+        return boxes;
+    }
+
+
     /**
      * Gets a JSON object
      *
@@ -260,10 +513,42 @@ public class Screen implements Serializable {
 
         obj.put("newScreen", newScreen);
         obj.put("existing", existing);
+        obj.put("skipped", getSkipped());
+        obj.put("inheritedFrom", inheritedFrom);
+        obj.put("renamedFrom", (renamedFrom == null) ? "" : renamedFrom);
         obj.put("imageName", imageName);
         obj.put("approvedImage", approvedImage);
         obj.put("buildImage", buildImage);
         obj.put("approved", approved);
+        obj.put("compared", compared);
+        obj.put("differenceImage", hasDifferenceImage());
+
+        if (hasComparisonResult()) {
+            ComparisonResult result = getComparisonResult();
+
+            obj.put("preFiltered", preFiltered);
+            obj.put("differentPixels", differentPixels);
+            obj.put("differencePercentage", result.getDifferencePercentage());
+            obj.put("regions", regions);
+
+            JSONArray boxes = new JSONArray();
+            for(int[] box : _getChangedRegions()) {
+                JSONArray values = new JSONArray();
+                for(int value : box) {
+                    values.add(value);
+                }
+                boxes.add(values);
+            }
+            obj.put("changedRegions", boxes);
+            obj.put("width", width);
+            obj.put("height", height);
+
+            // Only in-process engines measure decoding
+            if (decodeTime > 0) {
+                obj.put("decodeTime", decodeTime);
+            }
+            obj.put("compareTime", compareTime);
+        }
 
         return obj;
     }
@@ -4,6 +4,7 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Manages a list if screens
@@ -12,49 +13,176 @@ import java.util.ArrayList;
  */
 public class ScreenList extends ArrayList<Screen> {
 
+    public static final int APPROVED = 0;
+    public static final int BUILD = 1;
+    public static final int DIFFERENCE = 2;
+    public static final int ACTIVE = 3;
+    public static final int INACTIVE = 4;
+    public static final int NEW = 5;
+    public static final int NEW_AUTO_APPROVED = 6;
+    public static final int NEW_UNAPPROVED = 7;
+    public static final int EXISTING = 8;
+    public static final int EXISTING_EQUAL = 9;
+    public static final int EXISTING_DIFFERENT_BELOW_THRESHOLD = 10;
+    public static final int EXISTING_DIFFERENT_ABOVE_THRESHOLD = 11;
+    public static final int SKIPPED = 12;
+
     /**
-     * Gets all screens with approved-screens
+     * Number of categories
+     */
+    public static final int CATEGORIES = 13;
+
+
+    /**
+     * Index of screens by image name; rebuilt when the list was modified or one of its screens was renamed
+     */
+    private transient volatile NameIndex nameIndex = null;
+
+
+    /**
+     * Immutable index of screens by image name, published as a whole to concurrent readers
+     */
+    private static class NameIndex {
+
+        /**
+         * Screens by image name
+         */
+        private final HashMap<String, Screen> screens;
+
+        /**
+         * Modification count of the list when the index was built
+         */
+        private final int modCount;
+
+
+        /**
+         * Initializes the index
+         *
+         * @param screens Screens by image name
+         * @param modCount Modification count of the list
+         */
+        private NameIndex(HashMap<String, Screen> screens, int modCount) {
+            this.screens = screens;
+            this.modCount = modCount;
+        }
+    }
+
+
+    /**
+     * Does the screen belong to the category?
      *
-     * @return Approved-screens
+     * @param screen Screen
+     * @param category Category
+     * @return True/False
      */
-    public Screen[] getApprovedScreens() {
+    private static boolean _matches(Screen screen, int category) {
+        switch (category) {
+            case APPROVED:
+                return screen.hasApprovedImage();
+            case BUILD:
+                return screen.hasBuildImage();
+            case DIFFERENCE:
+                return screen.hasDifferenceImage();
+            case ACTIVE:
+                return screen.hasApprovedImage() && screen.hasBuildImage();
+            case INACTIVE:
+                return screen.hasApprovedImage() && !screen.hasBuildImage();
+            case NEW:
+                return screen.isNewScreen();
+            case NEW_AUTO_APPROVED:
+                return screen.isNewAutoApprovedScreen();
+            case NEW_UNAPPROVED:
+                return screen.isNewUnApprovedScreen();
+            case EXISTING:
+                return screen.isExistingScreen();
+            case EXISTING_EQUAL:
+                return screen.isExistingEqualScreen();
+            case EXISTING_DIFFERENT_BELOW_THRESHOLD:
+                return screen.isExistingDifferentBelowThresholdScreen();
+            case EXISTING_DIFFERENT_ABOVE_THRESHOLD:
+                return screen.isExistingDifferentAboveThresholdScreen();
+            case SKIPPED:
+                return screen.isSkippedScreen();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets all screens of a category
+     *
+     * @param category Category
+     * @return Screens
+     */
+    public Screen[] getScreens(int category) {
         ArrayList<Screen> list = new ArrayList<Screen>();
 
         for(Screen screen : this) {
-            if (screen.hasApprovedImage()) list.add(screen);
+            if (_matches(screen, category)) list.add(screen);
         }
 
         return list.toArray(new Screen[list.size()]);
     }
 
     /**
-     * Gets all screens with build-screens
+     * Counts all screens of a category
      *
-     * @return Build-screens
+     * @param category Category
+     * @return Number of screens
      */
-    public Screen[] getBuildScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
+    public int countScreens(int category) {
+        int count = 0;
 
         for(Screen screen : this) {
-            if (screen.hasBuildImage()) list.add(screen);
+            if (_matches(screen, category)) count++;
         }
 
-        return list.toArray(new Screen[list.size()]);
+        return count;
     }
 
     /**
-     * Gets all screens with difference-screens
+     * Counts the screens of all categories in a single pass
      *
-     * @return Difference-screens
+     * @return Number of screens, indexed by category
      */
-    public Screen[] getDifferenceScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
+    public int[] getCategoryCounts() {
+        int[] counts = new int[CATEGORIES];
 
         for(Screen screen : this) {
-            if (screen.hasDifferenceImage()) list.add(screen);
+            for(int category = 0; category < CATEGORIES; category++) {
+                if (_matches(screen, category)) counts[category]++;
+            }
         }
 
-        return list.toArray(new Screen[list.size()]);
+        return counts;
+    }
+
+
+    /**
+     * Gets all screens with approved-screens
+     *
+     * @return Approved-screens
+     */
+    public Screen[] getApprovedScreens() {
+        return getScreens(APPROVED);
+    }
+
+    /**
+     * Gets all screens with build-screens
+     *
+     * @return Build-screens
+     */
+    public Screen[] getBuildScreens() {
+        return getScreens(BUILD);
+    }
+
+    /**
+     * Gets all screens with difference-screens
+     *
+     * @return Difference-screens
+     */
+    public Screen[] getDifferenceScreens() {
+        return getScreens(DIFFERENCE);
     }
 
 
@@ -64,13 +192,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return Active-screens
      */
     public Screen[] getActiveScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.hasApprovedImage() && screen.hasBuildImage()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(ACTIVE);
     }
 
     /**
@@ -79,13 +201,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return Inactive-screens
      */
     public Screen[] getInactiveScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.hasApprovedImage() && !screen.hasBuildImage()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(INACTIVE);
     }
 
 
@@ -95,13 +211,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New-screens
      */
     public Screen[] getNewScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.isNewScreen()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(NEW);
     }
 
     /**
@@ -110,13 +220,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New auto-approved screens
      */
     public Screen[] getNewAutoApprovedScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.isNewAutoApprovedScreen()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(NEW_AUTO_APPROVED);
     }
 
     /**
@@ -125,13 +229,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New un-approved screens
      */
     public Screen[] getNewUnApprovedScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.isNewUnApprovedScreen()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(NEW_UNAPPROVED);
     }
 
 
@@ -141,13 +239,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New existing screens
      */
     public Screen[] getExistingScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.isExistingScreen()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(EXISTING);
     }
 
     /**
@@ -156,13 +248,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New existing screens
      */
     public Screen[] getExistingEqualScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.isExistingEqualScreen()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(EXISTING_EQUAL);
     }
 
     /**
@@ -171,13 +257,7 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New existing screens
      */
     public Screen[] getExistingDifferentBelowThresholdScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
-
-        for(Screen screen : this) {
-            if (screen.isExistingDifferentBelowThresholdScreen()) list.add(screen);
-        }
-
-        return list.toArray(new Screen[list.size()]);
+        return getScreens(EXISTING_DIFFERENT_BELOW_THRESHOLD);
     }
 
     /**
@@ -186,15 +266,42 @@ public class ScreenList extends ArrayList<Screen> {
      * @return New existing screens
      */
     public Screen[] getExistingDifferentAboveThresholdScreens() {
-        ArrayList<Screen> list = new ArrayList<Screen>();
+        return getScreens(EXISTING_DIFFERENT_ABOVE_THRESHOLD);
+    }
 
-        for(Screen screen : this) {
-            if (screen.isExistingDifferentAboveThresholdScreen()) list.add(screen);
-        }
+    /**
+     * Gets all screens that were not compared
+     *
+     * @return Skipped screens
+     */
+    public Screen[] getSkippedScreens() {
+        return getScreens(SKIPPED);
+    }
 
-        return list.toArray(new Screen[list.size()]);
+
+    /**
+     * Replaces a screen
+     *
+     * @param index Index of screen
+     * @param screen New screen
+     * @return Previous screen
+     */
+    @Override
+    public Screen set(int index, Screen screen) {
+        nameIndex = null;
+        return super.set(index, screen);
     }
 
+    /**
+     * Renames a screen of the list
+     *
+     * @param screen Screen
+     * @param name New name of image
+     */
+    public void rename(Screen screen, String name) {
+        screen.setImageName(name);
+        nameIndex = null;
+    }
 
     /**
      * Gets screen by image name
@@ -203,14 +310,22 @@ public class ScreenList extends ArrayList<Screen> {
      * @return Screen
      */
     public Screen getScreenByName(String name) {
+        NameIndex index = nameIndex;
 
-        for(Screen screen : this) {
-            if (screen.getImageName().equals(name)) {
-                return screen;
+        if ((index == null) || (index.modCount != modCount)) {
+            HashMap<String, Screen> screens = new HashMap<String, Screen>(size() * 2);
+
+            for(Screen screen : this) {
+                if (!screens.containsKey(screen.getImageName())) {
+                    screens.put(screen.getImageName(), screen);
+                }
             }
+
+            index = new NameIndex(screens, modCount);
+            nameIndex = index;
         }
 
-        return null;
+        return index.screens.get(name);
     }
 
     /**
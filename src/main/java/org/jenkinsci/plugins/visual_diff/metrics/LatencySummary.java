@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.visual_diff.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Latency summary keeping a window of the most recent observations for percentiles
+ *
+ * @author Marcel Erz
+ */
+public class LatencySummary {
+
+    /**
+     * Number of observations kept for percentiles
+     */
+    public static final int WINDOW_SIZE = 1024;
+
+
+    /**
+     * Most recent observations (in ms)
+     */
+    private final long[] window = new long[WINDOW_SIZE];
+
+    /**
+     * Number of all observations
+     */
+    private long count = 0;
+
+    /**
+     * Sum of all observations (in ms)
+     */
+    private long sum = 0;
+
+
+    /**
+     * Adds an observation
+     *
+     * @param time Time in ms
+     */
+    public synchronized void observe(long time) {
+        window[(int)(count % WINDOW_SIZE)] = time;
+        count++;
+        sum += time;
+    }
+
+
+    /**
+     * Gets the number of all observations
+     *
+     * @return Count
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the sum of all observations
+     *
+     * @return Time in ms
+     */
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * Gets percentiles of the most recent observations
+     *
+     * @param quantiles Quantiles (0.0 - 1.0)
+     * @return Time in ms for each quantile
+     */
+    public long[] getQuantiles(double[] quantiles) {
+        long[] sorted;
+
+        synchronized (this) {
+            sorted = Arrays.copyOf(window, (int)Math.min(count, WINDOW_SIZE));
+        }
+
+        Arrays.sort(sorted);
+
+        long[] result = new long[quantiles.length];
+        if (sorted.length == 0) return result;
+
+        for(int i = 0; i < quantiles.length; i++) {
+            int index = (int)Math.ceil(quantiles[i] * sorted.length) - 1;
+            result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        return result;
+    }
+}
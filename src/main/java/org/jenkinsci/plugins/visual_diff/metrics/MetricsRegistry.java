@@ -0,0 +1,246 @@
+package org.jenkinsci.plugins.visual_diff.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide registry of comparison counters and latencies
+ *
+ * Series are identified by their metric name, optionally followed by Prometheus labels
+ * (for example <code>vdiff_cache_requests_total{cache="digest",result="hit"}</code>).
+ *
+ * @author Marcel Erz
+ */
+public class MetricsRegistry {
+
+    public static final String SCREENS_COMPARED = "vdiff_screens_compared_total";
+    public static final String SCREENS_PER_SECOND = "vdiff_screens_per_second";
+    public static final String SHORT_CIRCUITS = "vdiff_short_circuits_total";
+    public static final String NEW_SCREENS = "vdiff_new_screens_total";
+    public static final String ENGINE_INVOCATIONS = "vdiff_engine_invocations_total";
+    public static final String BYTES_COPIED = "vdiff_bytes_copied_total";
+    public static final String CACHE_REQUESTS = "vdiff_cache_requests_total";
+    public static final String PRE_FILTER = "vdiff_prefilter_total";
+    public static final String RECOMPRESSED_BYTES = "vdiff_recompressed_bytes_saved_total";
+    public static final String COMPARE_LATENCY = "vdiff_compare_latency_seconds";
+    public static final String SERVE_LATENCY = "vdiff_serve_latency_seconds";
+
+    /**
+     * Quantiles reported for latency summaries
+     */
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    /**
+     * Help texts of all known metrics
+     */
+    private static final Map<String, String> HELP = new HashMap<String, String>();
+
+    static {
+        HELP.put(SCREENS_COMPARED, "Number of screens processed by comparisons");
+        HELP.put(SCREENS_PER_SECOND, "Screens processed per second by the most recent comparison");
+        HELP.put(SHORT_CIRCUITS, "Number of screens with an approved screen decided without invoking the comparison engine");
+        HELP.put(NEW_SCREENS, "Number of screens without an approved screen, so there was nothing to compare");
+        HELP.put(ENGINE_INVOCATIONS, "Number of comparison engine invocations");
+        HELP.put(BYTES_COPIED, "Number of bytes copied into the visual-diff folders");
+        HELP.put(CACHE_REQUESTS, "Number of cache lookups by cache and result");
+        HELP.put(PRE_FILTER, "Number of screens checked by the statistics pre-filter; hits were decided without the engine");
+        HELP.put(RECOMPRESSED_BYTES, "Number of bytes saved by recompressing archived screens");
+        HELP.put(COMPARE_LATENCY, "Latency of the comparison engine");
+        HELP.put(SERVE_LATENCY, "Latency of serving report images");
+    }
+
+    /**
+     * Singleton instance
+     */
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+
+    /**
+     * Counters by series
+     */
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Gauges by series, stored as double bits
+     */
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Latency summaries by series
+     */
+    private final ConcurrentMap<String, LatencySummary> summaries = new ConcurrentHashMap<String, LatencySummary>();
+
+
+    /**
+     * Gets the controller-wide registry
+     *
+     * @return Registry
+     */
+    public static MetricsRegistry get() {
+        return INSTANCE;
+    }
+
+
+    /**
+     * Increments a counter by one
+     *
+     * @param series Series of counter
+     */
+    public void increment(String series) {
+        add(series, 1);
+    }
+
+    /**
+     * Increments a counter
+     *
+     * @param series Series of counter
+     * @param value Value to add
+     */
+    public void add(String series, long value) {
+        AtomicLong counter = counters.get(series);
+
+        if (counter == null) {
+            counters.putIfAbsent(series, new AtomicLong());
+            counter = counters.get(series);
+        }
+
+        counter.addAndGet(value);
+    }
+
+    /**
+     * Sets a gauge
+     *
+     * @param series Series of gauge
+     * @param value Value
+     */
+    public void set(String series, double value) {
+        AtomicLong gauge = gauges.get(series);
+
+        if (gauge == null) {
+            gauges.putIfAbsent(series, new AtomicLong());
+            gauge = gauges.get(series);
+        }
+
+        gauge.set(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Records a latency
+     *
+     * @param series Series of summary
+     * @param time Time in ms
+     */
+    public void observe(String series, long time) {
+        LatencySummary summary = summaries.get(series);
+
+        if (summary == null) {
+            summaries.putIfAbsent(series, new LatencySummary());
+            summary = summaries.get(series);
+        }
+
+        summary.observe(time);
+    }
+
+    /**
+     * Records a cache lookup
+     *
+     * @param cache Name of cache
+     * @param hit Was it a hit?
+     */
+    public void cacheAccess(String cache, boolean hit) {
+        increment(CACHE_REQUESTS + "{cache=\"" + cache + "\",result=\"" + (hit ? "hit" : "miss") + "\"}");
+    }
+
+
+    /**
+     * Gets the value of a counter
+     *
+     * @param series Series of counter
+     * @return Value
+     */
+    public long getCounter(String series) {
+        AtomicLong counter = counters.get(series);
+        return (counter == null) ? 0 : counter.get();
+    }
+
+
+    /**
+     * Renders all metrics in the Prometheus text format
+     *
+     * @return Metrics
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String family = null;
+
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            family = _appendHeader(sb, family, entry.getKey(), "counter");
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(gauges).entrySet()) {
+            family = _appendHeader(sb, family, entry.getKey(), "gauge");
+            sb.append(entry.getKey()).append(' ').append(Double.longBitsToDouble(entry.getValue().get())).append('\n');
+        }
+
+        for(Map.Entry<String, LatencySummary> entry : new TreeMap<String, LatencySummary>(summaries).entrySet()) {
+            String series = entry.getKey();
+            LatencySummary summary = entry.getValue();
+
+            family = _appendHeader(sb, family, series, "summary");
+
+            String name = _family(series);
+            String labels = series.substring(name.length());
+            String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+
+            long[] values = summary.getQuantiles(QUANTILES);
+            for(int i = 0; i < QUANTILES.length; i++) {
+                sb.append(name).append(labelPrefix).append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+                  .append(values[i] / 1000.0).append('\n');
+            }
+
+            sb.append(name).append("_sum").append(labels).append(' ').append(summary.getSum() / 1000.0).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(summary.getCount()).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Appends HELP and TYPE lines when a new metric family starts
+     *
+     * @param sb Output
+     * @param previousFamily Family of the previous series
+     * @param series Current series
+     * @param type Prometheus type
+     * @return Family of current series
+     */
+    private String _appendHeader(StringBuilder sb, String previousFamily, String series, String type) {
+        String family = _family(series);
+
+        if (!family.equals(previousFamily)) {
+            String help = HELP.get(family);
+            if (help != null) {
+                sb.append("# HELP ").append(family).append(' ').append(help).append('\n');
+            }
+            sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+        }
+
+        return family;
+    }
+
+    /**
+     * Gets the metric name of a series
+     *
+     * @param series Series
+     * @return Metric name
+     */
+    private static String _family(String series) {
+        int index = series.indexOf('{');
+        return (index == -1) ? series : series.substring(0, index);
+    }
+}
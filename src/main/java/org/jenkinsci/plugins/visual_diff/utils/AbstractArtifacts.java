@@ -3,6 +3,9 @@ package org.jenkinsci.plugins.visual_diff.utils;
 import hudson.FilePath;
 import hudson.model.BuildListener;
 
+import org.apache.commons.io.output.CountingOutputStream;
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
+
 import java.io.IOException;
 
 /**
@@ -26,4 +29,27 @@ abstract public class AbstractArtifacts {
             path.mkdirs();
         }
     }
+
+    /**
+     * Copies a file and records the number of copied bytes
+     *
+     * @param source Source file
+     * @param target Target file
+     * @return Number of bytes copied
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static long copy(FilePath source, FilePath target) throws InterruptedException, IOException {
+        CountingOutputStream out = new CountingOutputStream(target.write());
+        try {
+            source.copyTo(out);
+        } finally {
+            out.close();
+        }
+
+        long bytes = out.getByteCount();
+        MetricsRegistry.get().add(MetricsRegistry.BYTES_COPIED, bytes);
+
+        return bytes;
+    }
 }
@@ -0,0 +1,295 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable generation of approved screens, mapping screen names to the digests of their images
+ *
+ * A manifest is stored with one "digest  name" line per screen, the same format as printed by md5sum. Manifests
+ * never change once written, so parsed manifests are kept in memory.
+ *
+ * The manifest of a branch only lists the screens approved on the branch, and marks screens deleted on the branch.
+ * It is laid over the manifest of the parent baseline into a single map, so a screen is resolved with one lookup.
+ *
+ * @author Marcel Erz
+ */
+public class BaselineManifest {
+
+    /**
+     * Number of parsed manifests kept in memory
+     */
+    private static final int CACHE_SIZE = 32;
+
+    /**
+     * Digest of screens deleted on a branch
+     */
+    public static final String DELETED = "-";
+
+    /**
+     * Parsed manifests by path
+     */
+    private static final Map<String, BaselineManifest> CACHE = new LinkedHashMap<String, BaselineManifest>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BaselineManifest> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Manifests of branches laid over their parent, by the paths of both manifests
+     */
+    private static final Map<String, BaselineManifest> OVERLAYS = new LinkedHashMap<String, BaselineManifest>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BaselineManifest> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+
+    /**
+     * Generation of the manifest
+     */
+    private final long generation;
+
+    /**
+     * Path the manifest was read from; null if it was not read from a file
+     */
+    private final String source;
+
+    /**
+     * Entries as stored, including screens marked as deleted
+     */
+    private final SortedMap<String, String> entries;
+
+    /**
+     * Digests of the screens by name
+     */
+    private final SortedMap<String, String> screens;
+
+    /**
+     * Names of screens taken from the parent baseline
+     */
+    private final Set<String> inherited;
+
+
+    /**
+     * Initializes a manifest
+     *
+     * @param generation Generation of the manifest
+     * @param entries Digests of the screens by name
+     */
+    public BaselineManifest(long generation, Map<String, String> entries) {
+        this(generation, null, entries, Collections.<String>emptySet());
+    }
+
+    /**
+     * Initializes a manifest
+     *
+     * @param generation Generation of the manifest
+     * @param source Path the manifest was read from
+     * @param entries Digests of the screens by name
+     * @param inherited Names of screens taken from the parent baseline
+     */
+    private BaselineManifest(long generation, String source, Map<String, String> entries, Set<String> inherited) {
+        this.generation = generation;
+        this.source = source;
+        this.entries = Collections.unmodifiableSortedMap(new TreeMap<String, String>(entries));
+        this.inherited = inherited;
+
+        SortedMap<String, String> screens = new TreeMap<String, String>(entries);
+        screens.values().removeAll(Collections.singleton(DELETED));
+        this.screens = Collections.unmodifiableSortedMap(screens);
+    }
+
+
+    /**
+     * Gets a manifest without screens
+     *
+     * @return Manifest of generation 0
+     */
+    public static BaselineManifest empty() {
+        return new BaselineManifest(0, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Reads a manifest
+     *
+     * @param path Path of the manifest
+     * @param generation Generation of the manifest
+     * @return Manifest or null if it does not exist
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static BaselineManifest read(FilePath path, long generation) throws InterruptedException, IOException {
+        String key = path.getRemote();
+
+        synchronized (CACHE) {
+            BaselineManifest manifest = CACHE.get(key);
+            if (manifest != null) {
+                return manifest;
+            }
+        }
+
+        if (!path.exists()) {
+            return null;
+        }
+
+        Map<String, String> screens = new TreeMap<String, String>();
+        for(String line : path.readToString().split("\\r?\\n")) {
+            int index = line.indexOf("  ");
+            if (index > 0) {
+                screens.put(line.substring(index + 2), line.substring(0, index));
+            }
+        }
+
+        BaselineManifest manifest = new BaselineManifest(generation, key, screens, Collections.<String>emptySet());
+
+        synchronized (CACHE) {
+            CACHE.put(key, manifest);
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest
+     *
+     * @param path Path of the manifest
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void write(FilePath path) throws InterruptedException, IOException {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, String> entry : entries.entrySet()) {
+            sb.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+        }
+
+        path.write(sb.toString(), "UTF-8");
+    }
+
+
+    /**
+     * Gets the generation of the manifest
+     *
+     * @return Generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the names of all screens
+     *
+     * @return Names in alphabetical order
+     */
+    public Set<String> getNames() {
+        return screens.keySet();
+    }
+
+    /**
+     * Gets the digests of all screens
+     *
+     * @return Digests by name
+     */
+    public Map<String, String> getScreens() {
+        return screens;
+    }
+
+    /**
+     * Gets the digest of a screen
+     *
+     * @param name Name of screen
+     * @return Digest or null if the screen is not part of this generation
+     */
+    public String getDigest(String name) {
+        return screens.get(name);
+    }
+
+    /**
+     * Is the screen part of this generation?
+     *
+     * @param name Name of screen
+     * @return True/False
+     */
+    public boolean hasScreen(String name) {
+        return screens.containsKey(name);
+    }
+
+    /**
+     * Was the screen taken from the parent baseline?
+     *
+     * @param name Name of screen
+     * @return True/False
+     */
+    public boolean isInherited(String name) {
+        return inherited.contains(name);
+    }
+
+    /**
+     * Derives the next generation
+     *
+     * @param approved Digests of approved screens by name
+     * @param deleted Names of deleted screens
+     * @param branch Mark deleted screens, so they are not taken from the parent baseline?
+     * @return Manifest of the next generation
+     */
+    public BaselineManifest derive(Map<String, String> approved, Collection<String> deleted, boolean branch) {
+        Map<String, String> next = new TreeMap<String, String>(entries);
+
+        for(String name : deleted) {
+            if (branch) {
+                next.put(name, DELETED);
+            } else {
+                next.remove(name);
+            }
+        }
+        next.putAll(approved);
+
+        return new BaselineManifest(generation + 1, next);
+    }
+
+    /**
+     * Lays the manifest of a branch over the manifest of its parent baseline
+     *
+     * @param parent Manifest of the parent baseline
+     * @return Manifest with the screens of both
+     */
+    public BaselineManifest overlay(BaselineManifest parent) {
+        String key = ((source == null) || (parent.source == null)) ? null : source + "|" + parent.source;
+
+        if (key != null) {
+            synchronized (OVERLAYS) {
+                BaselineManifest manifest = OVERLAYS.get(key);
+                if (manifest != null) {
+                    return manifest;
+                }
+            }
+        }
+
+        Map<String, String> merged = new TreeMap<String, String>(parent.screens);
+        merged.putAll(entries);
+
+        Set<String> fromParent = new HashSet<String>(parent.screens.keySet());
+        fromParent.removeAll(entries.keySet());
+
+        BaselineManifest manifest = new BaselineManifest(generation, null, merged, fromParent);
+
+        if (key != null) {
+            synchronized (OVERLAYS) {
+                OVERLAYS.put(key, manifest);
+            }
+        }
+
+        return manifest;
+    }
+}
@@ -0,0 +1,420 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes generations of approved screens so that concurrent builds and approvals never see partial changes
+ *
+ * Images are stored once by digest and never change. A generation is a manifest of screen names and digests;
+ * approvals write a new manifest and then move the pointer to the current generation. Every file is written to a
+ * staging folder first and moved into place with a rename. Changes of the same project are serialized by a
+ * striped lock, changes of different projects run in parallel.
+ *
+ * @author Marcel Erz
+ */
+public class BaselineWriter {
+
+    /**
+     * Number of lock stripes
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Lock stripes, shared by all projects
+     */
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for(int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Name of the staging folder
+     */
+    public static final String STAGING_FOLDER = "vDiffStaging";
+
+    /**
+     * Name of the pointer to the current generation
+     */
+    public static final String CURRENT_FILE = "current";
+
+    /**
+     * Age of images that are kept even when no generation refers to them yet (in ms)
+     */
+    private static final long GRACE_PERIOD = 60 * 60 * 1000;
+
+
+    /**
+     * Artifacts of the project
+     */
+    private final ProjectArtifacts projectArtifacts;
+
+
+    /**
+     * Initializes the writer
+     *
+     * @param projectArtifacts Artifacts of the project
+     */
+    public BaselineWriter(ProjectArtifacts projectArtifacts) {
+        this.projectArtifacts = projectArtifacts;
+    }
+
+
+    /**
+     * Gets the lock of the project
+     *
+     * @return Lock
+     */
+    private ReentrantLock _getLock() {
+        return LOCKS[(projectArtifacts.getGenerationsPath().getRemote().hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+
+    /**
+     * Gets the current generation
+     *
+     * @return Generation; 0 before the first approval
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long getGeneration() throws InterruptedException, IOException {
+        FilePath path = projectArtifacts.getGenerationsPath().child(CURRENT_FILE);
+        if (!path.exists()) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(path.readToString().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the manifest of the current generation
+     *
+     * @return Manifest
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public BaselineManifest getManifest() throws InterruptedException, IOException {
+        long generation = getGeneration();
+
+        if ((generation == 0) && _migrate()) {
+            generation = getGeneration();
+        }
+
+        return getManifest(generation);
+    }
+
+    /**
+     * Gets the manifest of a generation
+     *
+     * Parsed manifests are cached by {@link BaselineManifest#read}, so every comparison of a build can look up
+     * digests without reading the manifest again.
+     *
+     * @param generation Generation
+     * @return Manifest; empty if the generation does not exist
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public BaselineManifest getManifest(long generation) throws InterruptedException, IOException {
+        if (generation == 0) {
+            return BaselineManifest.empty();
+        }
+
+        BaselineManifest manifest = BaselineManifest.read(projectArtifacts.getManifestPath(generation), generation);
+        return (manifest == null) ? BaselineManifest.empty() : manifest;
+    }
+
+
+    /**
+     * Approves and deletes screens with a single new generation
+     *
+     * @param approved Screens to approve by name
+     * @param deleted Names of screens to delete
+     * @return Number of bytes written
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long commit(Map<String, FilePath> approved, Collection<String> deleted) throws InterruptedException, IOException {
+        long bytes = 0;
+
+        // Images are immutable, so they are stored without the lock; only the manifest and the pointer need it
+        Map<String, String> digests = new HashMap<String, String>();
+        for(Map.Entry<String, FilePath> entry : approved.entrySet()) {
+            String digest = entry.getValue().digest();
+            bytes += _storeImage(digest, entry.getValue());
+            digests.put(entry.getKey(), digest);
+        }
+
+        ReentrantLock lock = _getLock();
+        lock.lockInterruptibly();
+        try {
+            // A garbage collection may have deleted an image it found stale before it was stored again
+            for(Map.Entry<String, FilePath> entry : approved.entrySet()) {
+                String digest = digests.get(entry.getKey());
+                if (!projectArtifacts.getImagePath(digest).exists()) {
+                    bytes += _storeImage(digest, entry.getValue());
+                }
+            }
+
+            // Imports the approved screens of older versions first
+            getManifest();
+            _publish(digests, deleted);
+
+        } finally {
+            lock.unlock();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Records the current generation for a build
+     *
+     * Holds the lock so that the garbage collection sees the generation of a build that just started.
+     *
+     * @param record File to record the generation in
+     * @param parentGeneration Generation of the parent baseline; 0 for none
+     * @return Generation
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long record(FilePath record, long parentGeneration) throws InterruptedException, IOException {
+        ReentrantLock lock = _getLock();
+        lock.lockInterruptibly();
+        try {
+            long generation = getManifest().getGeneration();
+            record.write(generation + " " + parentGeneration, "UTF-8");
+
+            return generation;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the tile index of an image; computes and stores it when missing
+     *
+     * @param digest Digest of image
+     * @return Index or null if the image does not exist or could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public TileIndex getTileIndex(String digest) throws InterruptedException, IOException {
+        FilePath indexPath = projectArtifacts.getTileIndexPath(digest);
+
+        TileIndex index = TileIndex.read(indexPath);
+        if (index != null) {
+            return index;
+        }
+
+        FilePath image = projectArtifacts.getImagePath(digest);
+        if (!image.exists()) {
+            return null;
+        }
+
+        index = TileIndex.create(image, digest, RasterCache.get());
+        if (index != null) {
+            FilePath staged = _stage(digest);
+            index.write(staged);
+            _move(staged, indexPath);
+        }
+
+        return index;
+    }
+
+
+    /**
+     * Deletes all generations that are neither current nor referenced, and all images only they referred to
+     *
+     * @param referenced Generations referenced by retained builds
+     * @return Number of images deleted
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public int collectGarbage(Set<Long> referenced) throws InterruptedException, IOException {
+        ReentrantLock lock = _getLock();
+        lock.lockInterruptibly();
+        try {
+            long current = getGeneration();
+            Set<String> digests = new HashSet<String>();
+
+            for(FilePath file : projectArtifacts.getGenerationsPath().list("*")) {
+                long generation;
+                try {
+                    generation = Long.parseLong(file.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                if ((generation == current) || referenced.contains(generation)) {
+                    digests.addAll(getManifest(generation).getScreens().values());
+                } else {
+                    file.delete();
+                }
+            }
+
+            int deleted = 0;
+            long cutOff = System.currentTimeMillis() - GRACE_PERIOD;
+
+            // Recently stored images may belong to a change that was not committed yet
+            for(FilePath image : projectArtifacts.getImagesPath().list("*")) {
+                if (!digests.contains(image.getName()) && (image.lastModified() < cutOff)) {
+                    image.delete();
+                    projectArtifacts.getTileIndexPath(image.getName()).delete();
+                    deleted++;
+                }
+            }
+
+            return deleted;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Writes the next generation and moves the pointer to it; the lock must be held
+     *
+     * @param digests Digests of approved screens by name
+     * @param deleted Names of deleted screens
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void _publish(Map<String, String> digests, Collection<String> deleted) throws InterruptedException, IOException {
+        // Screens deleted on a branch are marked, otherwise the parent baseline would shine through
+        boolean branch = (projectArtifacts.getParentArtifacts() != null);
+        BaselineManifest next = getManifest(getGeneration()).derive(digests, deleted, branch);
+
+        FilePath staged = _stage(String.valueOf(next.getGeneration()));
+        next.write(staged);
+        _move(staged, projectArtifacts.getManifestPath(next.getGeneration()));
+
+        // Pointer swap publishes the generation
+        FilePath pointer = _stage(CURRENT_FILE);
+        pointer.write(String.valueOf(next.getGeneration()), "UTF-8");
+        _move(pointer, projectArtifacts.getGenerationsPath().child(CURRENT_FILE));
+    }
+
+    /**
+     * Stores an image by its digest
+     *
+     * @param digest Digest of image
+     * @param source Image
+     * @return Number of bytes written
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private long _storeImage(String digest, FilePath source) throws InterruptedException, IOException {
+        FilePath image = projectArtifacts.getImagePath(digest);
+
+        if (image.exists()) {
+            // Keeps the image out of the grace period of a concurrent garbage collection
+            image.touch(System.currentTimeMillis());
+            return 0;
+        }
+
+        FilePath staged = _stage(digest);
+        long bytes = AbstractArtifacts.copy(source, staged);
+        _move(staged, image);
+
+        getTileIndex(digest);
+
+        return bytes;
+    }
+
+    /**
+     * Imports the approved screens of the folder used before generations existed
+     *
+     * @return Imported?
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private boolean _migrate() throws InterruptedException, IOException {
+        FilePath legacy = projectArtifacts.getPath();
+
+        ReentrantLock lock = _getLock();
+        lock.lockInterruptibly();
+        try {
+            if ((getGeneration() != 0) || !legacy.exists()) {
+                return false;
+            }
+
+            FilePath[] files = legacy.list("*");
+            if (files.length == 0) {
+                return false;
+            }
+
+            // Indexes were stored by name before
+            projectArtifacts.getIndexPath().deleteContents();
+
+            Map<String, String> digests = new HashMap<String, String>();
+            for(FilePath file : files) {
+                String digest = file.digest();
+                _storeImage(digest, file);
+                digests.put(file.getName(), digest);
+            }
+
+            _publish(digests, Collections.<String>emptySet());
+            legacy.deleteRecursive();
+
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a unique file in the staging folder
+     *
+     * @param name Name of the file
+     * @return Staging file
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private FilePath _stage(String name) throws InterruptedException, IOException {
+        FilePath folder = projectArtifacts.getGenerationsPath().getParent().child(STAGING_FOLDER);
+        folder.mkdirs();
+
+        return folder.child(name + "." + UUID.randomUUID().toString());
+    }
+
+    /**
+     * Moves a staged file into place
+     *
+     * @param staged Staged file
+     * @param target Target file
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private static void _move(FilePath staged, FilePath target) throws InterruptedException, IOException {
+        target.getParent().mkdirs();
+
+        try {
+            // Atomic on the same file-system; replaces the target on POSIX
+            staged.renameTo(target);
+
+        } catch (IOException e) {
+            // Platforms that cannot rename onto an existing file
+            target.delete();
+            staged.renameTo(target);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 
+import net.sf.json.JSONObject;
+
 import java.io.IOException;
 
 /**
@@ -13,11 +15,30 @@ import java.io.IOException;
  */
 public class BuildArtifacts extends AbstractArtifacts {
 
+    public static final String BUILD_FOLDER = "build";
+    public static final String DIFF_FOLDER = "diff";
+    public static final String APPROVED_FOLDER = "approved";
+    public static final String CHARTS_FOLDER = "charts";
+    public static final String GENERATION_FILE = "generation";
+    public static final String PRUNED_FILE = "pruned";
+    public static final String RECOMPRESSED_FILE = "recompressed";
+    public static final String SUMMARY_FILE = "summary.json";
+
     /**
      * Current build
      */
     private final AbstractBuild<?,?> build;
 
+    /**
+     * Generations of approved screens and of the parent baseline the build compared against; read on first use
+     */
+    private long[] approvedGenerations = null;
+
+    /**
+     * Artifacts of the project; created on first use
+     */
+    private ProjectArtifacts projectArtifacts = null;
+
 
     /**
      * Initializes the build artifacts utility class
@@ -45,7 +66,7 @@ public class BuildArtifacts extends AbstractArtifacts {
      * @return Path
      */
     public FilePath getBuildScreensPath() {
-        return getPath().child("build");
+        return getPath().child(BUILD_FOLDER);
     }
 
     /**
@@ -54,7 +75,7 @@ public class BuildArtifacts extends AbstractArtifacts {
      * @return Path
      */
     public FilePath getBuildDiffsPath() {
-        return getPath().child("diff");
+        return getPath().child(DIFF_FOLDER);
     }
 
     /**
@@ -63,7 +84,25 @@ public class BuildArtifacts extends AbstractArtifacts {
      * @return Path
      */
     public FilePath getApprovedScreensPath() {
-        return getPath().child("approved");
+        return getPath().child(APPROVED_FOLDER);
+    }
+
+    /**
+     * Path to charts folder
+     *
+     * @return Path
+     */
+    public FilePath getChartsPath() {
+        return getPath().child(CHARTS_FOLDER);
+    }
+
+    /**
+     * Path to summary of the build
+     *
+     * @return Path
+     */
+    public FilePath getSummaryPath() {
+        return getPath().child(SUMMARY_FILE);
     }
 
 
@@ -91,7 +130,7 @@ public class BuildArtifacts extends AbstractArtifacts {
     }
 
     /**
-     * Gets a list of paths for all approved-screens
+     * Gets a list of paths for all approved-screens stored in the build
      *
      * @return Array of screen paths
      * @throws InterruptedException
@@ -112,6 +151,16 @@ public class BuildArtifacts extends AbstractArtifacts {
         return getBuildScreensPath().child(name);
     }
 
+    /**
+     * Path to chart
+     *
+     * @param name Name of chart
+     * @return Path
+     */
+    public FilePath getChartPath(String name) {
+        return getChartsPath().child(name + ".png");
+    }
+
     /**
      * Path to build diff
      *
@@ -125,13 +174,114 @@ public class BuildArtifacts extends AbstractArtifacts {
     /**
      * Path to approved screen
      *
+     * Screens approved during the build are stored in the build; all others are read from the generation of
+     * approved screens the build started with.
+     *
+     * @param name Name of approved-screen
+     * @return Path
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public FilePath getApprovedScreenPath(String name) throws InterruptedException, IOException {
+        FilePath path = getApprovedScreenWritePath(name);
+
+        if ((getApprovedGeneration() == 0) || path.exists()) {
+            return path;
+        }
+
+        FilePath approved = _getProjectArtifacts().resolve(getApprovedManifest(), name);
+        return (approved == null) ? path : approved;
+    }
+
+    /**
+     * Path to store a screen approved during the build at
+     *
      * @param name Name of approved-screen
      * @return Path
      */
-    public FilePath getApprovedScreenPath(String name) {
+    public FilePath getApprovedScreenWritePath(String name) {
         return getApprovedScreensPath().child(name);
     }
 
+    /**
+     * Gets the generation of approved screens the build compared against
+     *
+     * @return Generation; 0 for builds that copied all approved screens
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long getApprovedGeneration() throws InterruptedException, IOException {
+        return _getApprovedGenerations()[0];
+    }
+
+    /**
+     * Gets the generation of the parent baseline the build compared against
+     *
+     * @return Generation; 0 if the project had no parent baseline
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long getApprovedParentGeneration() throws InterruptedException, IOException {
+        return _getApprovedGenerations()[1];
+    }
+
+    /**
+     * Gets the manifest of approved screens the build compared against
+     *
+     * @return Manifest; empty for builds that copied all approved screens
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public BaselineManifest getApprovedManifest() throws InterruptedException, IOException {
+        if (getApprovedGeneration() == 0) {
+            return BaselineManifest.empty();
+        }
+
+        return _getProjectArtifacts().getManifest(getApprovedGeneration(), getApprovedParentGeneration());
+    }
+
+    /**
+     * Reads the recorded generations
+     *
+     * @return Generation and generation of the parent baseline
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private long[] _getApprovedGenerations() throws InterruptedException, IOException {
+        if (approvedGenerations == null) {
+            FilePath path = getPath().child(GENERATION_FILE);
+            long[] generations = new long[2];
+
+            if (path.exists()) {
+                String[] values = path.readToString().trim().split("\\s+");
+                for(int i = 0; (i < values.length) && (i < generations.length); i++) {
+                    try {
+                        generations[i] = Long.parseLong(values[i]);
+                    } catch (NumberFormatException e) {
+                        generations[i] = 0;
+                    }
+                }
+            }
+
+            approvedGenerations = generations;
+        }
+
+        return approvedGenerations;
+    }
+
+    /**
+     * Gets the artifacts of the project
+     *
+     * @return Artifacts
+     */
+    private ProjectArtifacts _getProjectArtifacts() {
+        if (projectArtifacts == null) {
+            projectArtifacts = new ProjectArtifacts(build.getProject());
+        }
+
+        return projectArtifacts;
+    }
+
 
     /**
      * Does build-screen exist?
@@ -207,6 +357,46 @@ public class BuildArtifacts extends AbstractArtifacts {
         return hasApprovedScreen(file.getName());
     }
 
+    /**
+     * Is the build-screen byte-identical to the approved-screen?
+     *
+     * @param name Name of screen
+     * @return Identical?
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public boolean isIdenticalToApproved(String name) throws InterruptedException, IOException {
+        FilePath buildScreen = getBuildScreenPath(name);
+        FilePath approvedScreen = getApprovedScreenPath(name);
+
+        if (!approvedScreen.exists() || (buildScreen.length() != approvedScreen.length())) {
+            return false;
+        }
+
+        return buildScreen.digest().equals(getApprovedDigest(name));
+    }
+
+    /**
+     * Gets the digest of the approved-screen
+     *
+     * Screens of the baseline take the digest from the manifest; only screens approved during the build and builds
+     * that copied all approved screens are hashed.
+     *
+     * @param name Name of approved-screen
+     * @return Digest or null if there is no approved-screen
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public String getApprovedDigest(String name) throws InterruptedException, IOException {
+        FilePath path = getApprovedScreenWritePath(name);
+
+        if ((getApprovedGeneration() == 0) || path.exists()) {
+            return path.exists() ? path.digest() : null;
+        }
+
+        return getApprovedManifest().getDigest(name);
+    }
+
 
     /**
      * Creates all required folders
@@ -221,6 +411,7 @@ public class BuildArtifacts extends AbstractArtifacts {
         _createFolderIfNotExist(getBuildScreensPath(), listener);
         _createFolderIfNotExist(getBuildDiffsPath(), listener);
         _createFolderIfNotExist(getApprovedScreensPath(), listener);
+        _createFolderIfNotExist(getChartsPath(), listener);
     }
 
 
@@ -228,27 +419,116 @@ public class BuildArtifacts extends AbstractArtifacts {
      * Archives all screens from the build
      *
      * @param buildFiles List of all files from the build
+     * @return Number of bytes written
      * @throws InterruptedException
      * @throws IOException
      */
-    public void archiveBuildResults(FilePath[] buildFiles) throws InterruptedException, IOException {
+    public long archiveBuildResults(FilePath[] buildFiles) throws InterruptedException, IOException {
+        long bytes = 0;
+
         FilePath dstPath = getBuildScreensPath();
         for(FilePath file : buildFiles) {
-            file.copyTo(dstPath.child(file.getName()));
+            bytes += copy(file, dstPath.child(file.getName()));
         }
+
+        return bytes;
     }
 
     /**
-     * Copies all approved project screens into the build archive
+     * Records the current generations of approved project screens and of the parent baseline as the ones the
+     * build compares against
+     *
+     * @return Generation
+     * @throws InterruptedException
+     * @throws IOException
      */
-    public void duplicateApprovedProjectScreen() throws InterruptedException, IOException {
+    public long recordApprovedGeneration() throws InterruptedException, IOException {
+        ProjectArtifacts parent = _getProjectArtifacts().getParentArtifacts();
+        long parentGeneration = (parent == null) ? 0 : parent.getGeneration();
 
-        ProjectArtifacts projectArtifacts = new ProjectArtifacts(build.getProject());
-        FilePath[] approvedFiles = projectArtifacts.getScreens();
+        long generation = new BaselineWriter(_getProjectArtifacts()).record(getPath().child(GENERATION_FILE), parentGeneration);
+        approvedGenerations = new long[] { generation, parentGeneration };
+
+        return generation;
+    }
+
+    /**
+     * Were the build and approved screens of the build removed by the retention?
+     *
+     * @return True/False
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public boolean isPruned() throws InterruptedException, IOException {
+        return getPath().child(PRUNED_FILE).exists();
+    }
+
+    /**
+     * Removes the build and approved screens; differences and data of the build stay
+     *
+     * @param limiter Limiter for file operations
+     * @return Number of bytes freed
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long pruneImages(RateLimiter limiter) throws InterruptedException, IOException {
+        long bytes = 0;
+
+        // Marked first, so the approved generation is not kept for this build anymore
+        getPath().child(PRUNED_FILE).write(String.valueOf(System.currentTimeMillis()), "UTF-8");
+
+        for(FilePath folder : new FilePath[] { getBuildScreensPath(), getApprovedScreensPath() }) {
+            if (!folder.exists()) continue;
+
+            for(FilePath file : folder.list("*")) {
+                limiter.acquire();
+                bytes += file.length();
+                file.delete();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Writes the summary of the build
+     *
+     * @param summary Summary
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void writeSummary(JSONObject summary) throws InterruptedException, IOException {
+        getSummaryPath().write(summary.toString(), "UTF-8");
+    }
+
+    /**
+     * Records the number of bytes saved by recompressing the screens of the build
+     *
+     * @param bytes Number of bytes saved
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void recordRecompression(long bytes) throws InterruptedException, IOException {
+        getPath().child(RECOMPRESSED_FILE).write(String.valueOf(bytes), "UTF-8");
+    }
+
+    /**
+     * Gets the number of bytes saved by recompressing the screens of the build
+     *
+     * @return Number of bytes; -1 if the screens were not recompressed (yet)
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long getRecompressedBytes() throws InterruptedException, IOException {
+        FilePath path = getPath().child(RECOMPRESSED_FILE);
+        if (!path.exists()) {
+            return -1;
+        }
 
-        FilePath dstPath = getApprovedScreensPath();
-        for(FilePath file : approvedFiles) {
-            file.copyTo(dstPath.child(file.getName()));
+        try {
+            return Long.parseLong(path.readToString().trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+/**
+ * Lightweight statistics of an image: dimensions and mean luminance
+ *
+ * @author Marcel Erz
+ */
+public class ImageStatistics {
+
+    /**
+     * Width of the image
+     */
+    private final int width;
+
+    /**
+     * Height of the image
+     */
+    private final int height;
+
+    /**
+     * Mean luminance (0 - 255)
+     */
+    private final double meanLuminance;
+
+
+    /**
+     * Computes the statistics of an image
+     *
+     * @param image Decoded image
+     */
+    public ImageStatistics(PixelSource image) {
+        width = image.getWidth();
+        height = image.getHeight();
+
+        int[] row = new int[width];
+        long luminance = 0;
+
+        for(int y = 0; y < height; y++) {
+            image.getRow(y, row);
+
+            for(int x = 0; x < width; x++) {
+                int red = (row[x] >> 16) & 0xff;
+                int green = (row[x] >> 8) & 0xff;
+                int blue = row[x] & 0xff;
+
+                luminance += (red * 77) + (green * 150) + (blue * 29);
+            }
+        }
+
+        long pixels = (long)width * height;
+        meanLuminance = (pixels == 0) ? 0.0 : (luminance / 256.0) / pixels;
+    }
+
+
+    /**
+     * Gets the width of the image
+     *
+     * @return Width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image
+     *
+     * @return Height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the mean luminance
+     *
+     * @return Luminance (0 - 255)
+     */
+    public double getMeanLuminance() {
+        return meanLuminance;
+    }
+
+    /**
+     * Do both images have the same dimensions?
+     *
+     * @param other Statistics of other image
+     * @return True/False
+     */
+    public boolean hasSameDimensions(ImageStatistics other) {
+        return (width == other.width) && (height == other.height);
+    }
+}
@@ -0,0 +1,215 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Helper methods to decode and inspect images
+ *
+ * @author Marcel Erz
+ */
+public class ImageUtils {
+
+    /**
+     * Size of the cells used to detect changed regions
+     */
+    public static final int REGION_CELL_SIZE = 8;
+
+
+    /**
+     * Decodes an image
+     *
+     * @param path Path to image
+     * @return Image or null if it could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static BufferedImage readImage(FilePath path) throws InterruptedException, IOException {
+        InputStream stream = path.read();
+        try {
+            return ImageIO.read(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Gives row access to the pixels of a decoded image
+     *
+     * @param image Decoded image
+     * @return Pixels
+     */
+    public static PixelSource pixels(final BufferedImage image) {
+        return new PixelSource() {
+            public int getWidth() {
+                return image.getWidth();
+            }
+
+            public int getHeight() {
+                return image.getHeight();
+            }
+
+            public void getRow(int y, int[] row) {
+                image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+            }
+        };
+    }
+
+    /**
+     * Reads only the dimensions of an image from its header
+     *
+     * @param path Path to image
+     * @return Width and height, or null if the format is unknown
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static int[] readDimensions(FilePath path) throws InterruptedException, IOException {
+        InputStream stream = path.read();
+        try {
+            ImageInputStream imageStream = ImageIO.createImageInputStream(stream);
+            if (imageStream == null) return null;
+
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+                if (!readers.hasNext()) return null;
+
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(imageStream, true, true);
+                    return new int[] { reader.getWidth(0), reader.getHeight(0) };
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                imageStream.close();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+
+    /**
+     * Counts all pixels of a difference image that are not black
+     *
+     * @param diff Difference image
+     * @return Number of pixels
+     */
+    public static long countDifferentPixels(BufferedImage diff) {
+        int width = diff.getWidth();
+        int height = diff.getHeight();
+        int[] row = new int[width];
+        long count = 0;
+
+        for(int y = 0; y < height; y++) {
+            diff.getRGB(0, y, width, 1, row, 0, width);
+            for(int x = 0; x < width; x++) {
+                if ((row[x] & 0xffffff) != 0) count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Counts the connected regions of a difference image
+     *
+     * The image is split into cells of {@link #REGION_CELL_SIZE} pixels; cells with a non-black pixel
+     * are marked and neighbouring marked cells are counted as one region.
+     *
+     * @param diff Difference image
+     * @return Number of regions
+     */
+    public static int countRegions(BufferedImage diff) {
+        int width = diff.getWidth();
+        int height = diff.getHeight();
+        int columns = (width + REGION_CELL_SIZE - 1) / REGION_CELL_SIZE;
+        int rows = (height + REGION_CELL_SIZE - 1) / REGION_CELL_SIZE;
+
+        boolean[] cells = new boolean[columns * rows];
+        int[] row = new int[width];
+
+        for(int y = 0; y < height; y++) {
+            diff.getRGB(0, y, width, 1, row, 0, width);
+            int cellRow = (y / REGION_CELL_SIZE) * columns;
+            for(int x = 0; x < width; x++) {
+                if ((row[x] & 0xffffff) != 0) cells[cellRow + (x / REGION_CELL_SIZE)] = true;
+            }
+        }
+
+        return countConnectedCells(cells, columns, rows);
+    }
+
+    /**
+     * Counts groups of marked cells that touch each other (including diagonally)
+     *
+     * @param cells Marked cells, row by row
+     * @param columns Number of columns
+     * @param rows Number of rows
+     * @return Number of groups
+     */
+    public static int countConnectedCells(boolean[] cells, int columns, int rows) {
+        return findConnectedCells(cells, columns, rows).size();
+    }
+
+    /**
+     * Finds the bounding boxes of groups of marked cells that touch each other (including diagonally)
+     *
+     * @param cells Marked cells, row by row
+     * @param columns Number of columns
+     * @param rows Number of rows
+     * @return Boxes as first column, first row, last column and last row
+     */
+    public static List<int[]> findConnectedCells(boolean[] cells, int columns, int rows) {
+        boolean[] visited = new boolean[cells.length];
+        int[] stack = new int[cells.length];
+        List<int[]> boxes = new ArrayList<int[]>();
+
+        for(int i = 0; i < cells.length; i++) {
+            if (!cells[i] || visited[i]) continue;
+
+            int[] box = { i % columns, i / columns, i % columns, i / columns };
+            boxes.add(box);
+
+            int size = 0;
+            stack[size++] = i;
+            visited[i] = true;
+
+            while (size > 0) {
+                int current = stack[--size];
+                int cx = current % columns;
+                int cy = current / columns;
+
+                box[0] = Math.min(box[0], cx);
+                box[1] = Math.min(box[1], cy);
+                box[2] = Math.max(box[2], cx);
+                box[3] = Math.max(box[3], cy);
+
+                for(int dy = -1; dy <= 1; dy++) {
+                    for(int dx = -1; dx <= 1; dx++) {
+                        int nx = cx + dx;
+                        int ny = cy + dy;
+                        if ((nx < 0) || (ny < 0) || (nx >= columns) || (ny >= rows)) continue;
+
+                        int next = ny * columns + nx;
+                        if (cells[next] && !visited[next]) {
+                            visited[next] = true;
+                            stack[size++] = next;
+                        }
+                    }
+                }
+            }
+        }
+
+        return boxes;
+    }
+}
@@ -0,0 +1,194 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decoded image stored as raw ARGB pixels in a memory-mapped file
+ *
+ * Pixels are read from the mapped pages directly; the image is neither inflated nor copied onto the heap.
+ *
+ * @author Marcel Erz
+ */
+public class MappedRaster implements PixelSource {
+
+    /**
+     * Identifies raster files
+     */
+    private static final int MAGIC = 0x76447261;
+
+    /**
+     * Size of the header (magic, width and height)
+     */
+    private static final int HEADER_SIZE = 12;
+
+
+    /**
+     * Width of the image
+     */
+    private final int width;
+
+    /**
+     * Height of the image
+     */
+    private final int height;
+
+    /**
+     * Mapping of the file
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Mapped pixels, row by row
+     */
+    private final IntBuffer pixels;
+
+
+    /**
+     * Initializes the raster
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param buffer Mapping of the pixels
+     */
+    private MappedRaster(int width, int height, MappedByteBuffer buffer) {
+        this.width = width;
+        this.height = height;
+        this.buffer = buffer;
+        this.pixels = buffer.asIntBuffer();
+    }
+
+
+    /**
+     * Writes the pixels of an image to a raster file
+     *
+     * @param image Decoded image
+     * @param file Raster file
+     * @throws IOException
+     */
+    public static void write(BufferedImage image, File file) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeInt(width);
+            stream.writeInt(height);
+
+            for(int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for(int x = 0; x < width; x++) {
+                    stream.writeInt(row[x]);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Maps a raster file
+     *
+     * @param file Raster file
+     * @return Raster or null if the file is not a complete raster
+     * @throws IOException
+     */
+    public static MappedRaster map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if ((raf.length() < HEADER_SIZE) || (raf.readInt() != MAGIC)) {
+                return null;
+            }
+
+            int width = raf.readInt();
+            int height = raf.readInt();
+            long size = HEADER_SIZE + ((long)width * height * 4);
+
+            if ((width < 0) || (height < 0) || (raf.length() != size) || (size - HEADER_SIZE > Integer.MAX_VALUE)) {
+                return null;
+            }
+
+            // The mapping stays valid after the channel is closed
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size - HEADER_SIZE);
+
+            return new MappedRaster(width, height, buffer);
+
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Gets the width of the image
+     *
+     * @return Width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image
+     *
+     * @return Height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads one row of ARGB pixels
+     *
+     * @param y Row
+     * @param row Array to fill, at least as long as the width
+     */
+    public void getRow(int y, int[] row) {
+        IntBuffer view = pixels.duplicate();
+        view.position(y * width);
+        view.get(row, 0, width);
+    }
+
+    /**
+     * Gets a single ARGB pixel
+     *
+     * @param x Column
+     * @param y Row
+     * @return Pixel
+     */
+    public int getPixel(int x, int y) {
+        return pixels.get(y * width + x);
+    }
+
+    /**
+     * Releases the mapping right away instead of when the buffer is garbage collected
+     *
+     * The raster must not be read afterwards. Where the cleaner of the buffer is not accessible, the mapping is left
+     * to the garbage collector.
+     */
+    void unmap() {
+        try {
+            Method getCleaner = buffer.getClass().getMethod("cleaner");
+            getCleaner.setAccessible(true);
+
+            Object cleaner = getCleaner.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // Released by the garbage collector
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+/**
+ * Difference hash (dHash) of an image
+ *
+ * The image is reduced to 9x8 grey cells; each of the 64 bits tells if a cell is brighter than its right
+ * neighbour. Similar images have hashes with a small Hamming distance.
+ *
+ * @author Marcel Erz
+ */
+public class PerceptualHash {
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+
+    /**
+     * Computes the hash of an image
+     *
+     * @param image Decoded image
+     * @return Hash
+     */
+    public static long compute(PixelSource image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        long[] sums = new long[COLUMNS * ROWS];
+        int[] counts = new int[COLUMNS * ROWS];
+        int[] row = new int[width];
+
+        if ((width == 0) || (height == 0)) {
+            return 0;
+        }
+
+        for(int y = 0; y < height; y++) {
+            image.getRow(y, row);
+            int cellRow = (int)(((long)y * ROWS) / height) * COLUMNS;
+
+            for(int x = 0; x < width; x++) {
+                int cell = cellRow + (int)(((long)x * COLUMNS) / width);
+                int pixel = row[x];
+
+                // Integer approximation of the luma (0.299 R + 0.587 G + 0.114 B)
+                sums[cell] += (((pixel >> 16) & 0xff) * 77) + (((pixel >> 8) & 0xff) * 150) + ((pixel & 0xff) * 29);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for(int y = 0; y < ROWS; y++) {
+            for(int x = 0; x < COLUMNS - 1; x++) {
+                int left = y * COLUMNS + x;
+                hash <<= 1;
+
+                // Compares the averages without dividing
+                if (sums[left] * counts[left + 1] > sums[left + 1] * counts[left]) {
+                    hash |= 1;
+                }
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Gets the number of different bits of two hashes
+     *
+     * @param left First hash
+     * @param right Second hash
+     * @return Hamming distance (0 - 64)
+     */
+    public static int distance(long left, long right) {
+        return Long.bitCount(left ^ right);
+    }
+}
@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BK-tree of perceptual hashes for lookups by Hamming distance
+ *
+ * Every child is stored under its distance to the parent. A lookup only descends into children whose distance
+ * lies within the search radius around the distance to the query, so most of the tree is never visited.
+ *
+ * @author Marcel Erz
+ */
+public class PerceptualHashIndex {
+
+    /**
+     * Root of tree
+     */
+    private Node root = null;
+
+    /**
+     * Number of entries
+     */
+    private int size = 0;
+
+
+    /**
+     * Adds a screen
+     *
+     * @param hash Perceptual hash
+     * @param name Name of screen
+     */
+    public void add(long hash, String name) {
+        size++;
+
+        if (root == null) {
+            root = new Node(hash, name);
+            return;
+        }
+
+        Node node = root;
+        while (true) {
+            int distance = PerceptualHash.distance(node.hash, hash);
+            Node child = node.children[distance];
+
+            if (child == null) {
+                node.children[distance] = new Node(hash, name);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Gets the number of entries
+     *
+     * @return Number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the closest screen
+     *
+     * @param hash Perceptual hash
+     * @param maxDistance Largest accepted distance
+     * @param exclude Names not to return
+     * @return Name of screen or null if none is close enough
+     */
+    public String findNearest(long hash, int maxDistance, Set<String> exclude) {
+        String best = null;
+        int bestDistance = maxDistance + 1;
+
+        List<Node> pending = new ArrayList<Node>();
+        if (root != null) pending.add(root);
+
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            int distance = PerceptualHash.distance(node.hash, hash);
+
+            if ((distance < bestDistance) && !exclude.contains(node.name)) {
+                best = node.name;
+                bestDistance = distance;
+            }
+
+            // Triangle inequality; the radius shrinks with every better match
+            int radius = bestDistance - 1;
+            int from = Math.max(0, distance - radius);
+            int to = Math.min(64, distance + radius);
+
+            for(int i = from; i <= to; i++) {
+                if (node.children[i] != null) pending.add(node.children[i]);
+            }
+        }
+
+        return best;
+    }
+
+
+    /**
+     * Node of the tree
+     */
+    private static class Node {
+
+        /**
+         * Perceptual hash
+         */
+        private final long hash;
+
+        /**
+         * Name of screen
+         */
+        private final String name;
+
+        /**
+         * Children by distance
+         */
+        private final Node[] children = new Node[65];
+
+
+        /**
+         * Initializes the node
+         *
+         * @param hash Perceptual hash
+         * @param name Name of screen
+         */
+        private Node(long hash, String name) {
+            this.hash = hash;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+/**
+ * Decoded pixels of an image, readable row by row
+ *
+ * @author Marcel Erz
+ */
+public interface PixelSource {
+
+    /**
+     * Gets the width of the image
+     *
+     * @return Width
+     */
+    int getWidth();
+
+    /**
+     * Gets the height of the image
+     *
+     * @return Height
+     */
+    int getHeight();
+
+    /**
+     * Reads one row of ARGB pixels
+     *
+     * @param y Row
+     * @param row Array to fill, at least as long as the width
+     */
+    void getRow(int y, int[] row);
+}
@@ -1,10 +1,26 @@
 package org.jenkinsci.plugins.visual_diff.utils;
 
+import hudson.AbortException;
 import hudson.FilePath;
+import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Class to handle file access and file management for project artifacts
@@ -13,11 +29,42 @@ import java.io.IOException;
  */
 public class ProjectArtifacts extends AbstractArtifacts {
 
+    /**
+     * Name of the file with the name of the parent baseline
+     */
+    public static final String PARENT_FILE = "parent";
+
+    /**
+     * Name of the file whose modification time is the time of the last approval of a build screen
+     */
+    public static final String APPROVED_FILE = "approved";
+
+    /**
+     * Name of the file with the number up to which the retention removed the images of all builds, followed by the
+     * numbers of older builds kept for screens inherited by newer builds
+     */
+    public static final String PRUNED_FILE = "pruned";
+
+    /**
+     * Name of the folder with all approved images, stored by digest
+     */
+    public static final String IMAGES_FOLDER = "vDiffImages";
+
     /**
      * Current project
      */
     private final AbstractProject<?,?> project;
 
+    /**
+     * Artifacts of the parent baseline; read on first use
+     */
+    private ProjectArtifacts parentArtifacts = null;
+
+    /**
+     * Parent baseline read?
+     */
+    private boolean parentRead = false;
+
 
     /**
      * Initializes the project artifacts utility class
@@ -30,7 +77,7 @@ public class ProjectArtifacts extends AbstractArtifacts {
 
 
     /**
-     * Path to visual-diff project folder
+     * Path to the folder with approved screens of versions before generations existed
      *
      * @return Path to vdiff project folder
      */
@@ -39,24 +86,491 @@ public class ProjectArtifacts extends AbstractArtifacts {
     }
 
     /**
-     * Gets a list of paths for all screens
+     * Path to the folder with all approved images, stored by digest
+     *
+     * @return Path to images folder
+     */
+    public FilePath getImagesPath() {
+        return new FilePath(project.getRootDir()).child(IMAGES_FOLDER);
+    }
+
+    /**
+     * Path to the folder with the manifests of all generations
+     *
+     * @return Path to generations folder
+     */
+    public FilePath getGenerationsPath() {
+        return new FilePath(project.getRootDir()).child("vDiffGenerations");
+    }
+
+    /**
+     * Path to the folder with the tile indexes of the approved images
+     *
+     * @return Path to index folder
+     */
+    public FilePath getIndexPath() {
+        return new FilePath(project.getRootDir()).child("vDiffIndex");
+    }
+
+
+    /**
+     * Gets the path of an approved image
+     *
+     * @param digest Digest of image
+     * @return Path for image
+     */
+    public FilePath getImagePath(String digest) {
+        return getImagesPath().child(digest);
+    }
+
+    /**
+     * Gets the digest of an image
+     *
+     * Approved images are named by their digest and never change, so only other images are hashed.
+     *
+     * @param image Path to image
+     * @return Digest
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static String getDigest(FilePath image) throws InterruptedException, IOException {
+        FilePath parent = image.getParent();
+
+        if ((parent != null) && parent.getName().equals(IMAGES_FOLDER)) {
+            return image.getName();
+        }
+
+        return image.digest();
+    }
+
+    /**
+     * Gets the path of the manifest of a generation
+     *
+     * @param generation Generation
+     * @return Path for manifest
+     */
+    public FilePath getManifestPath(long generation) {
+        return getGenerationsPath().child(String.valueOf(generation));
+    }
+
+    /**
+     * Gets the path of the tile index of an approved image
+     *
+     * @param digest Digest of image
+     * @return Path for tile index
+     */
+    public FilePath getTileIndexPath(String digest) {
+        return getIndexPath().child(digest + ".tiles");
+    }
+
+
+    /**
+     * Gets the full name of the parent baseline recorded by the last build
+     *
+     * @return Full name or empty if the project has no parent baseline
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public String getParentName() throws InterruptedException, IOException {
+        FilePath path = getGenerationsPath().child(PARENT_FILE);
+        return path.exists() ? path.readToString().trim() : "";
+    }
+
+    /**
+     * Gets the artifacts of the parent baseline the approved screens of this project fall through to
+     *
+     * The parent is looked up as the system, since a user may read the report of a branch without being allowed
+     * to read its parent.
+     *
+     * @return Artifacts or null if the project has no parent baseline
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ProjectArtifacts getParentArtifacts() throws InterruptedException, IOException {
+        if (!parentRead) {
+            String name = getParentName();
+            AbstractProject parent = null;
+
+            if (name.length() > 0) {
+                SecurityContext context = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    parent = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+                } finally {
+                    SecurityContextHolder.setContext(context);
+                }
+            }
+
+            parentArtifacts = ((parent == null) || (parent == project)) ? null : new ProjectArtifacts(parent);
+            parentRead = true;
+        }
+
+        return parentArtifacts;
+    }
+
+    /**
+     * Sets the parent baseline the approved screens of this project fall through to
+     *
+     * @param name Name of the parent project, relative to this project; empty for none
+     * @return Artifacts of the parent or null if there is none
+     * @throws AbortException When the parent project cannot be found
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public ProjectArtifacts setParent(String name) throws InterruptedException, IOException {
+        String fullName = "";
+
+        // Comparing against an empty baseline would report every screen as new, or even approve them all
+        if ((name != null) && (name.trim().length() > 0)) {
+            AbstractProject parent = Hudson.getInstance().getItem(name.trim(), project.getParent(), AbstractProject.class);
+
+            if (parent == null) {
+                throw new AbortException("Parent baseline " + name.trim() + " not found.");
+            }
+            if (parent == project) {
+                throw new AbortException("A project cannot be its own parent baseline.");
+            }
+
+            fullName = parent.getFullName();
+        }
+
+        // Only written on changes, as every build sets the parent
+        if (!fullName.equals(getParentName())) {
+            FilePath path = getGenerationsPath().child(PARENT_FILE);
+
+            if (fullName.length() == 0) {
+                path.delete();
+            } else {
+                path.write(fullName, "UTF-8");
+            }
+        }
+
+        parentRead = false;
+        return getParentArtifacts();
+    }
+
+
+    /**
+     * Gets the number up to which the retention removed the images of all builds
+     *
+     * @return Build number or 0 if no images were removed yet
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public int getPrunedNumber() throws InterruptedException, IOException {
+        List<Integer> numbers = _readPruned();
+        return numbers.isEmpty() ? 0 : numbers.get(0);
+    }
+
+    /**
+     * Gets the numbers of builds up to the pruned number that keep their images for screens inherited by newer builds
+     *
+     * @return Build numbers
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Set<Integer> getRetainedNumbers() throws InterruptedException, IOException {
+        List<Integer> numbers = _readPruned();
+        return numbers.isEmpty() ? Collections.<Integer>emptySet() : new TreeSet<Integer>(numbers.subList(1, numbers.size()));
+    }
+
+    /**
+     * Records up to which build the retention removed the images
+     *
+     * @param number Build number up to which the images of all builds were removed
+     * @param retained Numbers of older builds that keep their images
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void setPruned(int number, Set<Integer> retained) throws InterruptedException, IOException {
+        StringBuilder sb = new StringBuilder().append(number).append('\n');
+        for(int retainedNumber : retained) {
+            if (retainedNumber <= number) sb.append(retainedNumber).append('\n');
+        }
+
+        String content = sb.toString();
+        FilePath path = getGenerationsPath().child(PRUNED_FILE);
+
+        // Only written on changes, as the retention runs every hour
+        if (!path.exists() || !content.equals(path.readToString())) {
+            getGenerationsPath().mkdirs();
+            path.write(content, "UTF-8");
+        }
+    }
+
+    /**
+     * Gets the builds that may still have images: all builds after the pruned number and the retained builds
+     *
+     * Older build records are not loaded.
+     *
+     * @return Builds, newest first
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public List<AbstractBuild<?, ?>> getUnprunedBuilds() throws InterruptedException, IOException {
+        int prunedNumber = getPrunedNumber();
+        List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+
+        for(AbstractBuild<?, ?> build = project.getLastBuild(); (build != null) && (build.getNumber() > prunedNumber);
+            build = build.getPreviousBuild()) {
+            builds.add(build);
+        }
+
+        List<Integer> retained = new ArrayList<Integer>(getRetainedNumbers());
+        Collections.reverse(retained);
+
+        for(int number : retained) {
+            AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+            if (build != null) builds.add(build);
+        }
+
+        return builds;
+    }
+
+    /**
+     * Gets the time a build screen was last approved; charts rendered before show outdated counts
+     *
+     * @return Time or 0 if no build screen was approved yet
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long getApprovedTime() throws InterruptedException, IOException {
+        return getGenerationsPath().child(APPROVED_FILE).lastModified();
+    }
+
+    /**
+     * Records that a build screen was approved
      *
-     * @return Array of screen paths
      * @throws InterruptedException
      * @throws IOException
      */
-    public FilePath[] getScreens() throws InterruptedException, IOException {
-        return getPath().list("*");
+    public void touchApprovedTime() throws InterruptedException, IOException {
+        getGenerationsPath().child(APPROVED_FILE).touch(System.currentTimeMillis());
     }
 
+    /**
+     * Gets the current generation of approved screens; changes with every approval and deletion
+     *
+     * @return Generation
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long getGeneration() throws InterruptedException, IOException {
+        return getManifest().getGeneration();
+    }
 
     /**
-     * Gets the screens
+     * Gets the manifest of the current generation, laid over the current generation of the parent baseline
+     *
+     * @return Manifest
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public BaselineManifest getManifest() throws InterruptedException, IOException {
+        BaselineManifest manifest = new BaselineWriter(this).getManifest();
+        ProjectArtifacts parent = getParentArtifacts();
+
+        return (parent == null) ? manifest : manifest.overlay(new BaselineWriter(parent).getManifest());
+    }
+
+    /**
+     * Gets the manifest of a generation, laid over a generation of the parent baseline
+     *
+     * The generations of the parent are collected with the builds of the parent. When the generation is gone,
+     * the current generation of the parent is used instead.
+     *
+     * @param generation Generation
+     * @param parentGeneration Generation of the parent baseline
+     * @return Manifest; empty if the generation does not exist anymore
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public BaselineManifest getManifest(long generation, long parentGeneration) throws InterruptedException, IOException {
+        BaselineManifest manifest = new BaselineWriter(this).getManifest(generation);
+        ProjectArtifacts parent = getParentArtifacts();
+
+        if (parent == null) {
+            return manifest;
+        }
+
+        BaselineWriter parentWriter = new BaselineWriter(parent);
+        BaselineManifest parentManifest = parentWriter.getManifest(parentGeneration);
+
+        if (parentManifest.getGeneration() != parentGeneration) {
+            parentManifest = parentWriter.getManifest();
+        }
+
+        return manifest.overlay(parentManifest);
+    }
+
+    /**
+     * Gets the image of a screen
+     *
+     * @param manifest Manifest of this project
      * @param name Name of screen
-     * @return Path for screen
+     * @return Path for image or null if the screen is not part of the manifest
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public FilePath resolve(BaselineManifest manifest, String name) throws InterruptedException, IOException {
+        String digest = manifest.getDigest(name);
+        if (digest == null) {
+            return null;
+        }
+
+        // Screens not approved on the branch are stored with the parent
+        ProjectArtifacts owner = manifest.isInherited(name) ? getParentArtifacts() : this;
+        return owner.getImagePath(digest);
+    }
+
+    /**
+     * Gets the names of all approved screens
+     *
+     * @return Names in alphabetical order
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Set<String> getScreenNames() throws InterruptedException, IOException {
+        return getManifest().getNames();
+    }
+
+    /**
+     * Gets the approved image of a screen
+     *
+     * @param name Name of screen
+     * @return Path for image or null if the screen is not approved
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public FilePath getScreenPath(String name) throws InterruptedException, IOException {
+        return resolve(getManifest(), name);
+    }
+
+
+    /**
+     * Gets the tile index of an approved screen; computes it for images stored before indexes existed
+     *
+     * @param name Name of screen
+     * @return Index or null if there is no decodable approved screen
+     * @throws InterruptedException
+     * @throws IOException
      */
-    public FilePath getScreenPath(String name) {
-        return getPath().child(name);
+    public TileIndex getTileIndex(String name) throws InterruptedException, IOException {
+        BaselineManifest manifest = getManifest();
+        String digest = manifest.getDigest(name);
+
+        if (digest == null) {
+            return null;
+        }
+
+        ProjectArtifacts owner = manifest.isInherited(name) ? getParentArtifacts() : this;
+        return new BaselineWriter(owner).getTileIndex(digest);
+    }
+
+
+    /**
+     * Approves a screen
+     *
+     * @param name Name of screen
+     * @param source Screen to approve
+     * @return Number of bytes written
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long approveScreen(String name, FilePath source) throws InterruptedException, IOException {
+        return approveScreens(Collections.singletonMap(name, source));
+    }
+
+    /**
+     * Approves screens with a single new generation
+     *
+     * @param screens Screens to approve by name
+     * @return Number of bytes written
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long approveScreens(Map<String, FilePath> screens) throws InterruptedException, IOException {
+        return updateScreens(screens, Collections.<String>emptySet());
+    }
+
+    /**
+     * Deletes an approved screen
+     *
+     * @param name Name of screen
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void deleteScreen(String name) throws InterruptedException, IOException {
+        deleteScreens(Collections.singleton(name));
+    }
+
+    /**
+     * Deletes approved screens with a single new generation
+     *
+     * @param names Names of screens
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void deleteScreens(Collection<String> names) throws InterruptedException, IOException {
+        updateScreens(Collections.<String, FilePath>emptyMap(), names);
+    }
+
+    /**
+     * Approves and deletes screens with a single new generation
+     *
+     * @param approved Screens to approve by name
+     * @param deleted Names of screens to delete
+     * @return Number of bytes written
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public long updateScreens(Map<String, FilePath> approved, Collection<String> deleted) throws InterruptedException, IOException {
+        return new BaselineWriter(this).commit(approved, deleted);
+    }
+
+    /**
+     * Deletes generations no retained build with images refers to, together with their images
+     *
+     * @param listener Listener for log
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void collectGarbage(TaskListener listener) throws InterruptedException, IOException {
+        collectGarbage(listener, Collections.<AbstractProject<?, ?>>emptySet());
+    }
+
+    /**
+     * Deletes generations no retained build with images refers to, together with their images
+     *
+     * @param listener Listener for log
+     * @param children Projects using this project as parent baseline; their builds refer to generations as well
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void collectGarbage(TaskListener listener, Collection<AbstractProject<?, ?>> children)
+            throws InterruptedException, IOException {
+
+        Set<Long> referenced = new HashSet<Long>();
+        for(AbstractBuild<?, ?> build : getUnprunedBuilds()) {
+            BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+            long generation = buildArtifacts.getApprovedGeneration();
+
+            if ((generation > 0) && !buildArtifacts.isPruned()) referenced.add(generation);
+        }
+
+        // Branch builds fall through to the generation of this project they started with
+        for(AbstractProject<?, ?> child : children) {
+            for(AbstractBuild<?, ?> build : new ProjectArtifacts(child).getUnprunedBuilds()) {
+                BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+                long generation = buildArtifacts.getApprovedParentGeneration();
+
+                if ((generation > 0) && !buildArtifacts.isPruned()) referenced.add(generation);
+            }
+        }
+
+        int deleted = new BaselineWriter(this).collectGarbage(referenced);
+        if (deleted > 0) {
+            listener.getLogger().println("Deleted " + deleted + " approved images no retained build refers to.");
+        }
     }
 
 
@@ -69,7 +583,7 @@ public class ProjectArtifacts extends AbstractArtifacts {
      * @throws IOException
      */
     public boolean hasScreen(String name) throws InterruptedException, IOException {
-        return getScreenPath(name).exists();
+        return getManifest().hasScreen(name);
     }
 
     /**
@@ -93,6 +607,33 @@ public class ProjectArtifacts extends AbstractArtifacts {
      * @throws IOException
      */
     public void createFolders(BuildListener listener) throws InterruptedException, IOException {
-        _createFolderIfNotExist(getPath(), listener);
+        _createFolderIfNotExist(getImagesPath(), listener);
+        _createFolderIfNotExist(getGenerationsPath(), listener);
+        _createFolderIfNotExist(getIndexPath(), listener);
+    }
+
+
+    /**
+     * Reads the pruned number followed by the retained build numbers
+     *
+     * @return Build numbers; empty if no images were removed yet
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private List<Integer> _readPruned() throws InterruptedException, IOException {
+        List<Integer> numbers = new ArrayList<Integer>();
+        FilePath path = getGenerationsPath().child(PRUNED_FILE);
+
+        if (path.exists()) {
+            for(String line : path.readToString().split("\\s+")) {
+                try {
+                    if (line.length() > 0) numbers.add(Integer.parseInt(line));
+                } catch (NumberFormatException e) {
+                    // Skipped
+                }
+            }
+        }
+
+        return numbers;
     }
 }
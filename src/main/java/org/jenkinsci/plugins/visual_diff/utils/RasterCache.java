@@ -0,0 +1,326 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+import hudson.model.Hudson;
+
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Node-local cache of decoded images, stored as memory-mapped raster files
+ *
+ * Rasters are keyed by the digest of the encoded image, so the same baseline is decoded only once for all
+ * builds and projects. The least recently used rasters are evicted when the cache exceeds its quota.
+ *
+ * Recently used rasters stay mapped, so a cache hit does not map the file again. Every raster returned by
+ * {@link #get(FilePath, String)} has to be handed back with {@link #release(MappedRaster)}; a mapping is only
+ * unmapped once it was evicted and no comparison uses it anymore.
+ *
+ * @author Marcel Erz
+ */
+public class RasterCache {
+
+    /**
+     * Name of the cache in the metrics
+     */
+    public static final String CACHE_NAME = "raster";
+
+    /**
+     * Disk quota in MB; can be changed with a system property
+     */
+    public static final long QUOTA = Long.getLong(RasterCache.class.getName() + ".quota", 1024);
+
+    /**
+     * Number of rasters kept mapped; can be changed with a system property
+     */
+    public static final int MAPPED = Integer.getInteger(RasterCache.class.getName() + ".mapped", 64);
+
+    /**
+     * Extension of raster files
+     */
+    private static final String EXTENSION = ".raster";
+
+    /**
+     * Singleton instance
+     */
+    private static RasterCache instance = null;
+
+
+    /**
+     * Folder of the cache
+     */
+    private final File folder;
+
+    /**
+     * Disk quota in bytes
+     */
+    private final long quota;
+
+    /**
+     * Current size of all raster files in bytes; -1 when not yet known
+     */
+    private long size = -1;
+
+    /**
+     * Mapped rasters by digest, least recently used first
+     */
+    private final Map<String, Mapping> mapped = new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+
+    /**
+     * Mappings in use by raster
+     */
+    private final Map<MappedRaster, Mapping> leased = new IdentityHashMap<MappedRaster, Mapping>();
+
+
+    /**
+     * Initializes the cache
+     *
+     * @param folder Folder of the cache
+     * @param quota Disk quota in bytes
+     */
+    public RasterCache(File folder, long quota) {
+        this.folder = folder;
+        this.quota = quota;
+    }
+
+    /**
+     * Gets the cache of this node
+     *
+     * @return Cache
+     */
+    public static synchronized RasterCache get() {
+        if (instance == null) {
+            // Outside of Jenkins, e.g. in benchmarks, the cache is temporary
+            Hudson hudson = Hudson.getInstance();
+            File root = (hudson != null) ? hudson.getRootDir() : new File(System.getProperty("java.io.tmpdir"));
+
+            File folder = new File(new File(root, "vdiff-cache"), "raster");
+            instance = new RasterCache(folder, QUOTA * 1024 * 1024);
+        }
+        return instance;
+    }
+
+
+    /**
+     * Gets the decoded pixels of an image
+     *
+     * @param image Path to encoded image
+     * @return Raster or null if the image could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public MappedRaster get(FilePath image) throws InterruptedException, IOException {
+        return get(image, ProjectArtifacts.getDigest(image));
+    }
+
+    /**
+     * Gets the decoded pixels of an image whose digest is known
+     *
+     * @param image Path to encoded image
+     * @param digest Digest of image
+     * @return Raster or null if the image could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public MappedRaster get(FilePath image, String digest) throws InterruptedException, IOException {
+        File file = new File(folder, digest + EXTENSION);
+
+        MappedRaster raster = _lease(digest, file);
+        MetricsRegistry.get().cacheAccess(CACHE_NAME, raster != null);
+
+        if (raster != null) {
+            // Last modification time is the time of last use for LRU eviction
+            file.setLastModified(System.currentTimeMillis());
+            return raster;
+        }
+
+        BufferedImage decoded = ImageUtils.readImage(image);
+        if (decoded == null) {
+            return null;
+        }
+
+        // Written to a unique file first so concurrent readers never map a partial raster
+        folder.mkdirs();
+        File temp = File.createTempFile(digest, ".tmp", folder);
+        try {
+            MappedRaster.write(decoded, temp);
+
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not store raster " + file);
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+
+        _added(file.length());
+
+        return _lease(digest, file);
+    }
+
+    /**
+     * Hands back a raster taken from the cache; it must not be read afterwards
+     *
+     * @param raster Raster or null
+     */
+    public synchronized void release(MappedRaster raster) {
+        Mapping mapping = (raster == null) ? null : leased.get(raster);
+        if (mapping == null) {
+            return;
+        }
+
+        mapping.users--;
+        if (mapping.users == 0) {
+            leased.remove(raster);
+            if (mapping.evicted) raster.unmap();
+        }
+    }
+
+
+    /**
+     * Takes a raster for use, mapping its file if it is not mapped yet
+     *
+     * @param digest Digest of image
+     * @param file Raster file
+     * @return Raster or null if there is no complete raster file
+     * @throws IOException
+     */
+    private synchronized MappedRaster _lease(String digest, File file) throws IOException {
+        Mapping mapping = mapped.get(digest);
+
+        if (mapping == null) {
+            MappedRaster raster = file.exists() ? MappedRaster.map(file) : null;
+            if (raster == null) {
+                return null;
+            }
+
+            mapping = new Mapping(raster);
+            mapped.put(digest, mapping);
+
+            // Evicts the least recently used mappings
+            Iterator<Mapping> iterator = mapped.values().iterator();
+            while (mapped.size() > MAPPED) {
+                Mapping eldest = iterator.next();
+                iterator.remove();
+                _evict(eldest);
+            }
+        }
+
+        mapping.users++;
+        leased.put(mapping.raster, mapping);
+
+        return mapping.raster;
+    }
+
+    /**
+     * Unmaps an evicted raster, or once its last user released it; the lock must be held
+     *
+     * @param mapping Mapping
+     */
+    private void _evict(Mapping mapping) {
+        mapping.evicted = true;
+        if (mapping.users == 0) mapping.raster.unmap();
+    }
+
+    /**
+     * Accounts for a new raster and evicts the least recently used ones when over quota
+     *
+     * @param bytes Size of the new raster
+     */
+    private synchronized void _added(long bytes) {
+
+        if (size == -1) {
+            size = 0;
+            for(File file : _list()) {
+                size += file.length();
+            }
+        } else {
+            size += bytes;
+        }
+
+        if (size <= quota) {
+            return;
+        }
+
+        File[] files = _list();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File left, File right) {
+                return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
+            }
+        });
+
+        // Evicts down to 90% of the quota to avoid evicting on every new raster
+        for(int i = 0; (i < files.length) && (size > quota * 0.9); i++) {
+            // Mapped files cannot be deleted on all platforms
+            String name = files[i].getName();
+            Mapping mapping = mapped.remove(name.substring(0, name.length() - EXTENSION.length()));
+            if (mapping != null) _evict(mapping);
+
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * Lists all raster files
+     *
+     * @return Raster files
+     */
+    private File[] _list() {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for(File file : files) {
+            if (file.getName().endsWith(EXTENSION)) files[count++] = file;
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+
+    /**
+     * Mapped raster with its users
+     */
+    private static class Mapping {
+
+        /**
+         * Mapped raster
+         */
+        private final MappedRaster raster;
+
+        /**
+         * Number of callers using the raster
+         */
+        private int users = 0;
+
+        /**
+         * Was the raster evicted, so it is unmapped after its last use?
+         */
+        private boolean evicted = false;
+
+
+        /**
+         * Initializes the mapping
+         *
+         * @param raster Mapped raster
+         */
+        private Mapping(MappedRaster raster) {
+            this.raster = raster;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+/**
+ * Limits the rate of file operations of background work, so it does not compete with running builds for I/O
+ *
+ * @author Marcel Erz
+ */
+public class RateLimiter {
+
+    /**
+     * Time per operation (in ms)
+     */
+    private final double interval;
+
+    /**
+     * Earliest time of the next operation (in ms)
+     */
+    private double next = 0;
+
+
+    /**
+     * Initializes the limiter
+     *
+     * @param operationsPerSecond Maximum number of operations per second
+     */
+    public RateLimiter(long operationsPerSecond) {
+        this.interval = 1000.0 / Math.max(1, operationsPerSecond);
+    }
+
+
+    /**
+     * Waits until the next operation is allowed
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        long now = System.currentTimeMillis();
+
+        if (next > now) {
+            Thread.sleep((long)Math.ceil(next - now));
+        }
+
+        next = Math.max(next, now) + interval;
+    }
+}
@@ -0,0 +1,367 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.visual_diff.metrics.MetricsRegistry;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Losslessly recompresses the archived screens of finished builds in the background
+ *
+ * Screens are re-encoded as PNG with the smallest color model that holds all their colors: a palette for up to
+ * 256 colors, no alpha channel for opaque screens. A file is only replaced when the new encoding is smaller and
+ * decodes to exactly the same pixels. Pixels are compared as 8-bit sRGB, so only 8-bit color screens without color
+ * space information are recompressed; others would lose precision or their color space without notice.
+ *
+ * @author Marcel Erz
+ */
+public class Recompressor {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOGGER = Logger.getLogger(Recompressor.class.getName());
+
+    /**
+     * Number of threads recompressing builds
+     */
+    private static final int THREADS = 1;
+
+    /**
+     * Number of builds waiting for recompression; more are not recompressed
+     */
+    private static final int QUEUE_SIZE = 16;
+
+    /**
+     * Maximum number of colors of a palette
+     */
+    private static final int PALETTE_SIZE = 256;
+
+    /**
+     * Signature of PNG files
+     */
+    private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G' };
+
+    /**
+     * Length of the full PNG signature; chunks start after it
+     */
+    private static final int PNG_HEADER_SIZE = 8;
+
+    /**
+     * Chunks describing the color space, which are not written again by the encoder
+     */
+    private static final String[] COLOR_SPACE_CHUNKS = { "gAMA", "cHRM", "iCCP", "sRGB" };
+
+    /**
+     * Low-priority pool for recompression
+     */
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Visual-Diff recompression");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+
+    /**
+     * Queues the screens of a build for recompression
+     *
+     * @param build Finished build
+     * @return Queued? False when too many builds are waiting
+     */
+    public static boolean submit(final AbstractBuild<?, ?> build) {
+        try {
+            POOL.execute(new Runnable() {
+                public void run() {
+                    try {
+                        BuildArtifacts buildArtifacts = new BuildArtifacts(build);
+                        buildArtifacts.recordRecompression(recompress(buildArtifacts));
+
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Could not recompress screens of " + build.getFullDisplayName(), e);
+                    }
+                }
+            });
+            return true;
+
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Recompresses the build, approved and difference screens of a build
+     *
+     * @param buildArtifacts Artifacts of build
+     * @return Number of bytes saved
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static long recompress(BuildArtifacts buildArtifacts) throws InterruptedException, IOException {
+        long saved = 0;
+
+        FilePath[] folders = { buildArtifacts.getBuildScreensPath(), buildArtifacts.getApprovedScreensPath(), buildArtifacts.getBuildDiffsPath() };
+        for(FilePath folder : folders) {
+            if (!folder.exists()) continue;
+
+            for(FilePath file : folder.list("*")) {
+                saved += recompressScreen(file);
+            }
+        }
+
+        MetricsRegistry.get().add(MetricsRegistry.RECOMPRESSED_BYTES, saved);
+
+        return saved;
+    }
+
+    /**
+     * Recompresses a screen
+     *
+     * @param path Screen
+     * @return Number of bytes saved; 0 if the screen was kept
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static long recompressScreen(FilePath path) throws InterruptedException, IOException {
+        byte[] original;
+        InputStream stream = path.read();
+        try {
+            original = IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+
+        if (!_isPng(original) || !_hasPlainColors(original)) {
+            return 0;
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+        if (image == null) {
+            return 0;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(_reduce(image), "png", output);
+        byte[] encoded = output.toByteArray();
+
+        if (encoded.length >= original.length) {
+            return 0;
+        }
+
+        // Never replace a screen with different pixels
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+        if ((decoded == null) || !_hasSamePixels(image, decoded)) {
+            return 0;
+        }
+
+        // Replaced with a rename, so the report never serves a partial file
+        FilePath staged = path.getParent().child("." + path.getName() + ".recompressed");
+        staged.copyFrom(new ByteArrayInputStream(encoded));
+        staged.renameTo(path);
+
+        return original.length - encoded.length;
+    }
+
+
+    /**
+     * Is the content a PNG file?
+     *
+     * @param content Content of file
+     * @return True/False
+     */
+    private static boolean _isPng(byte[] content) {
+        if (content.length < PNG_SIGNATURE.length) {
+            return false;
+        }
+
+        for(int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (content[i] != PNG_SIGNATURE[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Does the PNG hold 8-bit color samples without color space information?
+     *
+     * Grayscale screens are excluded as well, as their samples are converted to sRGB when compared.
+     *
+     * @param content Content of file
+     * @return True/False; false when the chunks cannot be read
+     */
+    private static boolean _hasPlainColors(byte[] content) {
+        boolean header = false;
+        int offset = PNG_HEADER_SIZE;
+
+        // Color space chunks are only allowed before the image data
+        while (offset + 8 <= content.length) {
+            int length = _readInt(content, offset);
+            String type = new String(content, offset + 4, 4, Charset.forName("ISO-8859-1"));
+            int data = offset + 8;
+
+            if ((length < 0) || (data + length > content.length)) {
+                return false;
+            }
+
+            if (type.equals("IHDR")) {
+                if (length < 10) return false;
+
+                int bitDepth = content[data + 8] & 0xff;
+                int colorType = content[data + 9] & 0xff;
+
+                // Palette, RGB or RGB with alpha
+                if ((bitDepth != 8) || ((colorType != 2) && (colorType != 3) && (colorType != 6))) {
+                    return false;
+                }
+                header = true;
+
+            } else if (type.equals("IDAT")) {
+                return header;
+
+            } else {
+                for(String chunk : COLOR_SPACE_CHUNKS) {
+                    if (type.equals(chunk)) return false;
+                }
+            }
+
+            // Data is followed by the CRC
+            offset = data + length + 4;
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads a big-endian integer
+     *
+     * @param content Bytes
+     * @param offset Offset of integer
+     * @return Integer
+     */
+    private static int _readInt(byte[] content, int offset) {
+        return ((content[offset] & 0xff) << 24) | ((content[offset + 1] & 0xff) << 16) |
+               ((content[offset + 2] & 0xff) << 8) | (content[offset + 3] & 0xff);
+    }
+
+    /**
+     * Converts an image to the smallest color model that holds all its colors
+     *
+     * @param image Decoded image
+     * @return Image with palette, without alpha, or with alpha
+     */
+    private static BufferedImage _reduce(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int[] row = new int[width];
+        Map<Integer, Integer> palette = new HashMap<Integer, Integer>();
+        boolean opaque = true;
+
+        for(int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+
+            for(int x = 0; x < width; x++) {
+                opaque &= ((row[x] >>> 24) == 0xff);
+
+                if ((palette.size() <= PALETTE_SIZE) && !palette.containsKey(row[x])) {
+                    palette.put(row[x], palette.size());
+                }
+            }
+        }
+
+        BufferedImage reduced;
+        if (palette.size() <= PALETTE_SIZE) {
+            byte[] red = new byte[palette.size()];
+            byte[] green = new byte[palette.size()];
+            byte[] blue = new byte[palette.size()];
+            byte[] alpha = new byte[palette.size()];
+
+            for(Map.Entry<Integer, Integer> entry : palette.entrySet()) {
+                int color = entry.getKey();
+                int index = entry.getValue();
+
+                alpha[index] = (byte)(color >>> 24);
+                red[index] = (byte)(color >> 16);
+                green[index] = (byte)(color >> 8);
+                blue[index] = (byte)color;
+            }
+
+            // Packed rasters support 1, 2 and 4 bits per pixel
+            int bits = 1;
+            while ((1 << bits) < palette.size()) bits *= 2;
+            IndexColorModel model = opaque ? new IndexColorModel(bits, palette.size(), red, green, blue)
+                                           : new IndexColorModel(bits, palette.size(), red, green, blue, alpha);
+
+            reduced = new BufferedImage(width, height, (bits <= 4) ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_BYTE_INDEXED, model);
+            WritableRaster raster = reduced.getRaster();
+
+            for(int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+
+                for(int x = 0; x < width; x++) {
+                    raster.setSample(x, y, 0, palette.get(row[x]));
+                }
+            }
+
+        } else {
+            reduced = new BufferedImage(width, height, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+
+            for(int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                reduced.setRGB(0, y, width, 1, row, 0, width);
+            }
+        }
+
+        return reduced;
+    }
+
+    /**
+     * Do both images have exactly the same pixels?
+     *
+     * @param left Image
+     * @param right Image
+     * @return True/False
+     */
+    private static boolean _hasSamePixels(BufferedImage left, BufferedImage right) {
+        if ((left.getWidth() != right.getWidth()) || (left.getHeight() != right.getHeight())) {
+            return false;
+        }
+
+        int width = left.getWidth();
+        int[] leftRow = new int[width];
+        int[] rightRow = new int[width];
+
+        for(int y = 0; y < left.getHeight(); y++) {
+            left.getRGB(0, y, width, 1, leftRow, 0, width);
+            right.getRGB(0, y, width, 1, rightRow, 0, width);
+
+            for(int x = 0; x < width; x++) {
+                if (leftRow[x] != rightRow[x]) return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,352 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashes of the fixed-size tiles of an image
+ *
+ * Two indexes of images with the same dimensions tell which tiles changed without decoding the other image.
+ * The index also keeps a perceptual hash of the whole image to find similar screens.
+ *
+ * @author Marcel Erz
+ */
+public class TileIndex {
+
+    /**
+     * Edge length of a tile in pixels
+     */
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * Identifies index files
+     */
+    private static final int MAGIC = 0x76447469;
+
+    /**
+     * Version of the file format
+     */
+    private static final int VERSION = 2;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+
+    /**
+     * Digest of the image file the index was computed from
+     */
+    private final String digest;
+
+    /**
+     * Width of the image
+     */
+    private final int width;
+
+    /**
+     * Height of the image
+     */
+    private final int height;
+
+    /**
+     * Hash of every tile, row by row
+     */
+    private final long[] hashes;
+
+    /**
+     * Perceptual hash of the whole image
+     */
+    private final long perceptualHash;
+
+
+    /**
+     * Initializes the index
+     *
+     * @param digest Digest of the image file
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param hashes Hash of every tile, row by row
+     * @param perceptualHash Perceptual hash of the whole image
+     */
+    private TileIndex(String digest, int width, int height, long[] hashes, long perceptualHash) {
+        this.digest = digest;
+        this.width = width;
+        this.height = height;
+        this.hashes = hashes;
+        this.perceptualHash = perceptualHash;
+    }
+
+
+    /**
+     * Computes the index of an image
+     *
+     * @param image Decoded image
+     * @param digest Digest of the image file
+     * @return Index
+     */
+    public static TileIndex create(PixelSource image, String digest) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = _tiles(width);
+        int rows = _tiles(height);
+
+        long[] hashes = new long[columns * rows];
+        int[] row = new int[width];
+
+        for(int i = 0; i < hashes.length; i++) {
+            hashes[i] = FNV_OFFSET;
+        }
+
+        // Hashes all tiles of a pixel row at once
+        for(int y = 0; y < height; y++) {
+            image.getRow(y, row);
+            int tileRow = (y / TILE_SIZE) * columns;
+
+            for(int x = 0; x < width; x++) {
+                int tile = tileRow + (x / TILE_SIZE);
+                hashes[tile] = (hashes[tile] ^ (row[x] & 0xffffffffL)) * FNV_PRIME;
+            }
+        }
+
+        return new TileIndex(digest, width, height, hashes, PerceptualHash.compute(image));
+    }
+
+    /**
+     * Computes the index of an image file
+     *
+     * @param path Path to image
+     * @return Index or null if the image could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static TileIndex create(FilePath path) throws InterruptedException, IOException {
+        BufferedImage image = ImageUtils.readImage(path);
+        return (image == null) ? null : create(ImageUtils.pixels(image), path.digest());
+    }
+
+    /**
+     * Computes the index of an image file, taking the decoded pixels from the raster cache
+     *
+     * @param path Path to image
+     * @param cache Raster cache
+     * @return Index or null if the image could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static TileIndex create(FilePath path, RasterCache cache) throws InterruptedException, IOException {
+        return create(path, ProjectArtifacts.getDigest(path), cache);
+    }
+
+    /**
+     * Computes the index of an image file whose digest is known, taking the decoded pixels from the raster cache
+     *
+     * @param path Path to image
+     * @param digest Digest of image
+     * @param cache Raster cache
+     * @return Index or null if the image could not be decoded
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static TileIndex create(FilePath path, String digest, RasterCache cache) throws InterruptedException, IOException {
+        MappedRaster raster = cache.get(path, digest);
+        if (raster == null) {
+            return null;
+        }
+
+        try {
+            return create(raster, digest);
+        } finally {
+            cache.release(raster);
+        }
+    }
+
+    /**
+     * Reads a stored index
+     *
+     * @param path Path to index file
+     * @return Index or null if it does not exist or is unreadable
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static TileIndex read(FilePath path) throws InterruptedException, IOException {
+
+        if (!path.exists()) {
+            return null;
+        }
+
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(path.read()));
+        try {
+            if ((stream.readInt() != MAGIC) || (stream.readInt() != VERSION)) {
+                return null;
+            }
+
+            String digest = stream.readUTF();
+            int width = stream.readInt();
+            int height = stream.readInt();
+
+            long perceptualHash = stream.readLong();
+
+            long[] hashes = new long[_tiles(width) * _tiles(height)];
+            for(int i = 0; i < hashes.length; i++) {
+                hashes[i] = stream.readLong();
+            }
+
+            return new TileIndex(digest, width, height, hashes, perceptualHash);
+
+        } catch (IOException e) {
+            return null;
+
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Stores the index
+     *
+     * @param path Path to index file
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void write(FilePath path) throws InterruptedException, IOException {
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(path.write()));
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeUTF(digest);
+            stream.writeInt(width);
+            stream.writeInt(height);
+            stream.writeLong(perceptualHash);
+
+            for(long hash : hashes) {
+                stream.writeLong(hash);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+
+    /**
+     * Gets the digest of the image file the index was computed from
+     *
+     * @return Digest
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Gets the width of the image
+     *
+     * @return Width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image
+     *
+     * @return Height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the perceptual hash of the whole image
+     *
+     * @return Hash
+     */
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    /**
+     * Were both indexes computed from images with the same dimensions?
+     *
+     * @param other Other index
+     * @return True/False
+     */
+    public boolean isComparable(TileIndex other) {
+        return (width == other.width) && (height == other.height);
+    }
+
+
+    /**
+     * Marks the tiles whose hashes differ
+     *
+     * @param other Index of an image with the same dimensions
+     * @return Changed tiles, row by row
+     */
+    public boolean[] getChangedTiles(TileIndex other) {
+        if (!isComparable(other)) {
+            throw new IllegalArgumentException("Dimensions of tile indexes differ.");
+        }
+
+        boolean[] changed = new boolean[hashes.length];
+        for(int i = 0; i < hashes.length; i++) {
+            changed[i] = (hashes[i] != other.hashes[i]);
+        }
+        return changed;
+    }
+
+    /**
+     * Counts the tiles whose hashes differ
+     *
+     * @param other Index of an image with the same dimensions
+     * @return Number of tiles
+     */
+    public int countChangedTiles(TileIndex other) {
+        int count = 0;
+
+        for(boolean changed : getChangedTiles(other)) {
+            if (changed) count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets the boxes around connected changed tiles
+     *
+     * @param other Index of an image with the same dimensions
+     * @return Boxes as x, y, width and height in pixels
+     */
+    public List<int[]> getChangedRegions(TileIndex other) {
+        List<int[]> regions = new ArrayList<int[]>();
+
+        for(int[] cells : ImageUtils.findConnectedCells(getChangedTiles(other), _tiles(width), _tiles(height))) {
+            int x = cells[0] * TILE_SIZE;
+            int y = cells[1] * TILE_SIZE;
+
+            regions.add(new int[] {
+                x,
+                y,
+                Math.min(width, (cells[2] + 1) * TILE_SIZE) - x,
+                Math.min(height, (cells[3] + 1) * TILE_SIZE) - y
+            });
+        }
+
+        return regions;
+    }
+
+
+    /**
+     * Number of tiles needed to cover a length
+     *
+     * @param length Length in pixels
+     * @return Number of tiles
+     */
+    private static int _tiles(int length) {
+        return (length + TILE_SIZE - 1) / TILE_SIZE;
+    }
+}
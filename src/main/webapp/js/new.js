@@ -51,6 +51,12 @@
     function prepareList () {
         var data = getData();
 
+        _.each(data, function (entry) {
+            if (entry.differencePercentage !== undefined) {
+                entry.differencePercentage = Math.round(entry.differencePercentage * 100) / 100;
+            }
+        });
+
         _.each(data, function (entry, index) {
             entry.index = index;
         });
@@ -69,9 +75,34 @@
             code = template(data);
 
         table.html(code);
+        table.off('click', '.name a');
         table.on('click', '.name a', _onRowClick);
     }
 
+    function sortList (field) {
+        var data = getData();
+
+        data.sort(function (left, right) {
+            if (field) {
+                var diff = (right[field] || 0) - (left[field] || 0);
+                if (diff !== 0) return diff;
+            }
+            return (left.imageName < right.imageName) ? -1 : ((left.imageName > right.imageName) ? 1 : 0);
+        });
+
+        _.each(data, function (entry, index) {
+            entry.index = index;
+            entry.first = (index === 0);
+            entry.last = (index === data.length - 1);
+        });
+
+        updateList();
+    }
+
+    $('#compare_sort').on('change', 'select', function (e) {
+        sortList($(e.target).val());
+    });
+
     function _onRowClick (e) {
         var $target = $(e.target),
             $row = $target.closest('tr'),
@@ -108,9 +139,13 @@
 
         data.approvedUrl = "approvedScreens/" + imageName;
         data.buildUrl = "buildScreens/" + imageName;
-        data.maskUrl = "buildDiffs/" + imageName;
+        images = [ data.approvedUrl, data.buildUrl ];
 
-        images = [ data.approvedUrl, data.buildUrl, data.maskUrl ];
+        // Screens decided without comparing pixels have no difference image
+        if (data.differenceImage) {
+            data.maskUrl = "buildDiffs/" + imageName;
+            images.push(data.maskUrl);
+        }
 
         showLoading();
 
@@ -201,8 +236,33 @@
         }
     }
 
+    // Screens completed while the build is running are appended from the progress feed
+    function pollProgress (since) {
+        $.getJSON('progress', { since: since }, function (progress) {
+            if (progress.screens.length > 0) {
+                Array.prototype.push.apply(getData(), progress.screens);
+                prepareList();
+                sortList($('#compare_sort select').val());
+            }
+
+            if (progress.finished) {
+                $('#compare_progress').html('All screens were compared. <a href="">Reload</a> for the final results.');
+            } else {
+                pollProgress(progress.next);
+            }
+        }).fail(function () {
+            setTimeout(function () {
+                pollProgress(since);
+            }, 5000);
+        });
+    }
+
     updateList();
 
     hideLoading();
     hideScreen();
+
+    if (window.screenProgress && screenProgress.running) {
+        pollProgress(screenProgress.next);
+    }
 }());
\ No newline at end of file
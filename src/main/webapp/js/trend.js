@@ -0,0 +1,220 @@
+(function () {
+
+    var colors = ['#0000ff', '#ff0000', '#00cc00', '#ff9900', '#9900cc', '#00cccc', '#cc0066', '#666666'],
+        charts = [
+            { title: 'Build Summary', group: 'screens', series: ['approved', 'build', 'diff'] },
+            { title: 'Active/Inactive', group: 'screens', series: ['active', 'inactive'] },
+            { title: 'Build Details', group: 'screens', series: ['known', 'known =', 'known <', 'known >', 'new', 'new auto', 'new fail', 'not compared'] },
+            { title: 'Build Timings (ms)', group: 'timings', series: ['folders', 'duplicateApproved', 'archive', 'compare', 'missing', 'screen avg', 'screen max'] }
+        ],
+        width = 300,
+        height = 200,
+        padding = { top: 24, right: 8, bottom: 24, left: 40 },
+        trend = null,
+        range = null;
+
+    function getValues (chart, name) {
+        return trend[chart.group][name] || [];
+    }
+
+    function getMaximum (chart) {
+        var maximum = 1;
+
+        _.each(chart.series, function (name) {
+            _.each(getValues(chart, name).slice(range.from, range.to + 1), function (value) {
+                maximum = Math.max(maximum, value);
+            });
+        });
+
+        return maximum;
+    }
+
+    function getX (index) {
+        var count = range.to - range.from;
+        if (count === 0) {
+            return padding.left + (width - padding.left - padding.right) / 2;
+        }
+        return padding.left + (index - range.from) * (width - padding.left - padding.right) / count;
+    }
+
+    function getY (value, maximum) {
+        return height - padding.bottom - value * (height - padding.top - padding.bottom) / maximum;
+    }
+
+    function getIndex (x) {
+        var count = range.to - range.from,
+            position = (x - padding.left) / (width - padding.left - padding.right);
+
+        return Math.max(range.from, Math.min(range.to, range.from + Math.round(position * count)));
+    }
+
+    function draw (chart, hover, selection) {
+        var context = chart.canvas.getContext('2d'),
+            maximum = getMaximum(chart);
+
+        context.clearRect(0, 0, width, height);
+
+        context.fillStyle = '#000000';
+        context.font = '11px sans-serif';
+        context.textAlign = 'center';
+        context.fillText(chart.title, width / 2, 12);
+
+        // Axes
+        context.strokeStyle = '#000000';
+        context.lineWidth = 1;
+        context.beginPath();
+        context.moveTo(padding.left, padding.top);
+        context.lineTo(padding.left, height - padding.bottom);
+        context.lineTo(width - padding.right, height - padding.bottom);
+        context.stroke();
+
+        context.textAlign = 'right';
+        context.fillText(String(maximum), padding.left - 4, padding.top + 4);
+        context.fillText('0', padding.left - 4, height - padding.bottom + 4);
+
+        context.textAlign = 'center';
+        context.fillText('#' + trend.builds[range.from], getX(range.from), height - 6);
+        if (range.to !== range.from) {
+            context.fillText('#' + trend.builds[range.to], getX(range.to), height - 6);
+        }
+
+        if (selection) {
+            context.fillStyle = 'rgba(0, 0, 255, 0.1)';
+            context.fillRect(Math.min(selection.start, selection.end), padding.top,
+                             Math.abs(selection.end - selection.start), height - padding.top - padding.bottom);
+        }
+
+        _.each(chart.series, function (name, seriesIndex) {
+            var values = getValues(chart, name);
+
+            context.strokeStyle = colors[seriesIndex % colors.length];
+            context.lineWidth = 2;
+            context.beginPath();
+
+            for (var i = range.from; i <= range.to; i++) {
+                if (i === range.from) {
+                    context.moveTo(getX(i), getY(values[i] || 0, maximum));
+                } else {
+                    context.lineTo(getX(i), getY(values[i] || 0, maximum));
+                }
+            }
+            context.stroke();
+        });
+
+        if (hover !== undefined) {
+            context.strokeStyle = '#999999';
+            context.lineWidth = 1;
+            context.beginPath();
+            context.moveTo(getX(hover), padding.top);
+            context.lineTo(getX(hover), height - padding.bottom);
+            context.stroke();
+        }
+    }
+
+    function showTooltip (chart, index) {
+        var lines = ['#' + trend.builds[index]];
+
+        _.each(chart.series, function (name) {
+            lines.push(name + ': ' + (getValues(chart, name)[index] || 0));
+        });
+
+        chart.tooltip.html(_.map(lines, _.escape).join('<br />')).show();
+    }
+
+    function drawAll () {
+        _.each(charts, function (chart) {
+            draw(chart);
+        });
+    }
+
+    function bind (chart) {
+        var canvas = $(chart.canvas),
+            selection = null;
+
+        function getPosition (event) {
+            return event.pageX - canvas.offset().left;
+        }
+
+        canvas.on('mousedown', function (event) {
+            selection = { start: getPosition(event), end: getPosition(event) };
+            event.preventDefault();
+        });
+
+        canvas.on('mousemove', function (event) {
+            var index = getIndex(getPosition(event));
+
+            if (selection) {
+                selection.end = getPosition(event);
+            }
+
+            draw(chart, index, selection);
+            showTooltip(chart, index);
+        });
+
+        canvas.on('mouseleave', function () {
+            selection = null;
+            chart.tooltip.hide();
+            draw(chart);
+        });
+
+        // Selecting a range zooms all charts into it
+        canvas.on('mouseup', function (event) {
+            var from, to;
+
+            if (selection && (Math.abs(selection.end - selection.start) > 4)) {
+                from = getIndex(Math.min(selection.start, selection.end));
+                to = getIndex(Math.max(selection.start, selection.end));
+
+                if (to > from) {
+                    range = { from: from, to: to };
+                }
+            }
+
+            selection = null;
+            drawAll();
+        });
+
+        canvas.on('dblclick', function () {
+            range = { from: 0, to: trend.builds.length - 1 };
+            drawAll();
+        });
+    }
+
+    function render (data) {
+        var container = $('#trend_charts');
+
+        trend = data;
+        if (trend.builds.length === 0) {
+            return;
+        }
+        range = { from: 0, to: trend.builds.length - 1 };
+
+        container.empty();
+
+        _.each(charts, function (chart) {
+            var box = $('<div class="trend-chart"></div>'),
+                legend = $('<div class="trend-legend"></div>');
+
+            chart.canvas = $('<canvas></canvas>').attr({ width: width, height: height })[0];
+            chart.tooltip = $('<div class="trend-tooltip"></div>').hide();
+
+            _.each(chart.series, function (name, seriesIndex) {
+                legend.append($('<span></span>').css('color', colors[seriesIndex % colors.length]).text(name));
+            });
+
+            box.append(chart.canvas, legend, chart.tooltip);
+            container.append(box);
+
+            bind(chart);
+        });
+
+        drawAll();
+    }
+
+    // Browsers without canvas get the charts rendered on the server
+    if (document.createElement('canvas').getContext) {
+        $.getJSON(trendUrl, render);
+    } else {
+        $('#trend_charts').append('<img src="buildChart" />', '<img src="buildTimingsChart" />');
+    }
+})();
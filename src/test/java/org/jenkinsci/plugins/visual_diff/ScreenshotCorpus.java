@@ -0,0 +1,341 @@
+package org.jenkinsci.plugins.visual_diff;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates pairs of approved and build screens that look like rendered web pages
+ *
+ * The first screens of the corpus are only approved (missing in the build), the last ones are only in the build
+ * (new). Of the screens in both, a fraction is identical; the others get a changed block and, optionally,
+ * anti-aliasing noise. The same settings always generate the same files.
+ *
+ * @author Marcel Erz
+ */
+public class ScreenshotCorpus {
+
+    /**
+     * Number of screens in approved and build
+     */
+    private int screens = 100;
+
+    /**
+     * Width of screens
+     */
+    private int width = 1024;
+
+    /**
+     * Minimum height of screens
+     */
+    private int minHeight = 768;
+
+    /**
+     * Maximum height of screens
+     */
+    private int maxHeight = 768;
+
+    /**
+     * Fraction of the screens in approved and build that are identical
+     */
+    private float identical = 0.8f;
+
+    /**
+     * Edge length of the changed block of different screens
+     */
+    private int diffSize = 64;
+
+    /**
+     * Fraction of the pixels of different screens that get anti-aliasing noise
+     */
+    private float noise = 0;
+
+    /**
+     * Number of screens only approved
+     */
+    private int missing = 0;
+
+    /**
+     * Number of screens only in the build
+     */
+    private int added = 0;
+
+    /**
+     * Seed of the generated content
+     */
+    private long seed = 1;
+
+
+    /**
+     * Sets the number of screens in approved and build
+     *
+     * @param screens Number of screens
+     * @return This corpus
+     */
+    public ScreenshotCorpus setScreens(int screens) {
+        this.screens = screens;
+        return this;
+    }
+
+    /**
+     * Sets the width of screens
+     *
+     * @param width Width in pixels
+     * @return This corpus
+     */
+    public ScreenshotCorpus setWidth(int width) {
+        this.width = width;
+        return this;
+    }
+
+    /**
+     * Sets the range of the height of screens
+     *
+     * @param minHeight Minimum height in pixels
+     * @param maxHeight Maximum height in pixels
+     * @return This corpus
+     */
+    public ScreenshotCorpus setHeights(int minHeight, int maxHeight) {
+        this.minHeight = minHeight;
+        this.maxHeight = Math.max(minHeight, maxHeight);
+        return this;
+    }
+
+    /**
+     * Sets the fraction of the screens in approved and build that are identical
+     *
+     * @param identical Fraction from 0 to 1
+     * @return This corpus
+     */
+    public ScreenshotCorpus setIdentical(float identical) {
+        this.identical = identical;
+        return this;
+    }
+
+    /**
+     * Sets the edge length of the changed block of different screens
+     *
+     * @param diffSize Edge length in pixels
+     * @return This corpus
+     */
+    public ScreenshotCorpus setDiffSize(int diffSize) {
+        this.diffSize = diffSize;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of the pixels of different screens that get anti-aliasing noise
+     *
+     * @param noise Fraction from 0 to 1
+     * @return This corpus
+     */
+    public ScreenshotCorpus setNoise(float noise) {
+        this.noise = noise;
+        return this;
+    }
+
+    /**
+     * Sets the number of screens only approved
+     *
+     * @param missing Number of screens
+     * @return This corpus
+     */
+    public ScreenshotCorpus setMissing(int missing) {
+        this.missing = missing;
+        return this;
+    }
+
+    /**
+     * Sets the number of screens only in the build
+     *
+     * @param added Number of screens
+     * @return This corpus
+     */
+    public ScreenshotCorpus setAdded(int added) {
+        this.added = added;
+        return this;
+    }
+
+    /**
+     * Sets the seed of the generated content
+     *
+     * @param seed Seed
+     * @return This corpus
+     */
+    public ScreenshotCorpus setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Gets the number of screens in approved and build
+     *
+     * @return Number of screens
+     */
+    public int getCompared() {
+        return Math.max(0, screens - missing);
+    }
+
+    /**
+     * Gets the number of identical screens
+     *
+     * @return Number of screens
+     */
+    public int getIdentical() {
+        return Math.round(getCompared() * identical);
+    }
+
+    /**
+     * Gets the number of different screens
+     *
+     * @return Number of screens
+     */
+    public int getDifferent() {
+        return getCompared() - getIdentical();
+    }
+
+    /**
+     * Gets the number of screens only approved
+     *
+     * @return Number of screens
+     */
+    public int getMissing() {
+        return Math.min(missing, screens);
+    }
+
+    /**
+     * Gets the number of screens only in the build
+     *
+     * @return Number of screens
+     */
+    public int getAdded() {
+        return added;
+    }
+
+
+    /**
+     * Writes all screens of the corpus
+     *
+     * @param approvedFolder Folder for the approved screens
+     * @param buildFolder Folder for the build screens
+     * @throws IOException
+     */
+    public void generate(File approvedFolder, File buildFolder) throws IOException {
+        approvedFolder.mkdirs();
+        buildFolder.mkdirs();
+
+        for(int i = 0; i < screens + added; i++) {
+            String name = getName(i);
+            BufferedImage page = createPage(i);
+
+            if (i < getMissing()) {
+                ImageIO.write(page, "png", new File(approvedFolder, name));
+
+            } else if (i >= screens) {
+                ImageIO.write(page, "png", new File(buildFolder, name));
+
+            } else {
+                ImageIO.write(page, "png", new File(approvedFolder, name));
+
+                if (i - getMissing() >= getIdentical()) {
+                    change(page, i);
+                }
+                ImageIO.write(page, "png", new File(buildFolder, name));
+            }
+        }
+    }
+
+    /**
+     * Gets the file name of a screen
+     *
+     * @param index Index of screen
+     * @return File name
+     */
+    public String getName(int index) {
+        return String.format("screen-%06d.png", index);
+    }
+
+    /**
+     * Draws the page of a screen
+     *
+     * @param index Index of screen
+     * @return Page
+     */
+    public BufferedImage createPage(int index) {
+        Random random = new Random(seed * 31 + index);
+        int height = minHeight + ((maxHeight > minHeight) ? random.nextInt(maxHeight - minHeight + 1) : 0);
+
+        BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = page.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+
+            // Header
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            graphics.fillRect(0, 0, width, 64);
+
+            // Blocks of text with an occasional image
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 14));
+            for(int y = 96; y < height - 32; y += 24) {
+                if (random.nextInt(12) == 0) {
+                    graphics.setColor(new Color(random.nextInt(0xffffff)));
+                    graphics.fillRect(32, y, random.nextInt(width / 2) + 32, 96);
+                    y += 96;
+
+                } else {
+                    graphics.setColor(Color.DARK_GRAY);
+                    graphics.drawString("Screen " + index + " line " + y + " " + Long.toString(random.nextLong(), 36), 32, y);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        return page;
+    }
+
+    /**
+     * Changes a block of a page and adds anti-aliasing noise
+     *
+     * @param page Page
+     * @param index Index of screen
+     */
+    public void change(BufferedImage page, int index) {
+        Random random = new Random(seed * 17 + index);
+
+        int size = Math.min(diffSize, Math.min(page.getWidth(), page.getHeight()));
+        if (size > 0) {
+            Graphics2D graphics = page.createGraphics();
+            try {
+                graphics.setColor(new Color(random.nextInt(0xffffff)));
+                graphics.fillRect(random.nextInt(page.getWidth() - size + 1), random.nextInt(page.getHeight() - size + 1), size, size);
+            } finally {
+                graphics.dispose();
+            }
+        }
+
+        // Channels change by a level or two, as with different font rasterizers
+        int pixels = (int)(page.getWidth() * (long)page.getHeight() * noise);
+        for(int i = 0; i < pixels; i++) {
+            int x = random.nextInt(page.getWidth());
+            int y = random.nextInt(page.getHeight());
+            int delta = random.nextBoolean() ? 2 : -1;
+            int rgb = page.getRGB(x, y);
+
+            int color = 0xff000000;
+            for(int shift = 0; shift <= 16; shift += 8) {
+                int channel = Math.max(0, Math.min(255, ((rgb >> shift) & 0xff) + delta));
+                color |= channel << shift;
+            }
+            page.setRGB(x, y, color);
+        }
+    }
+}
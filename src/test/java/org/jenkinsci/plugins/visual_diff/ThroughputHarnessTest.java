@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.visual_diff;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.visual_diff.comparison.ComparisonDescribable;
+import org.jenkinsci.plugins.visual_diff.comparison.PerceptualDiff;
+import org.jenkinsci.plugins.visual_diff.comparison.StructuralSimilarity;
+import org.jenkinsci.plugins.visual_diff.data.BuildTimings;
+import org.jenkinsci.plugins.visual_diff.data.ScreenList;
+import org.jenkinsci.plugins.visual_diff.utils.ProjectArtifacts;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the builder on a generated corpus in an embedded Jenkins and reports its throughput
+ *
+ * The corpus is sized with system properties, e.g.
+ * <code>mvn test -Dtest=ThroughputHarnessTest -Dvdiff.harness.screens=2000 -Dvdiff.harness.maxHeight=8000</code>;
+ * <code>vdiff.harness.binary</code> compares with the perceptualdiff binary instead of SSIM.
+ *
+ * @author Marcel Erz
+ */
+public class ThroughputHarnessTest {
+
+    /**
+     * Embedded Jenkins
+     */
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    /**
+     * Folder for the corpus
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Compares a corpus and checks the category of every screen
+     *
+     * @throws Exception
+     */
+    @Test
+    public void comparesCorpus() throws Exception {
+        ScreenshotCorpus corpus = new ScreenshotCorpus()
+                .setScreens(Integer.getInteger("vdiff.harness.screens", 40))
+                .setWidth(Integer.getInteger("vdiff.harness.width", 1024))
+                .setHeights(Integer.getInteger("vdiff.harness.minHeight", 768), Integer.getInteger("vdiff.harness.maxHeight", 1536))
+                .setIdentical(Float.parseFloat(System.getProperty("vdiff.harness.identical", "0.75")))
+                .setDiffSize(Integer.getInteger("vdiff.harness.diffSize", 128))
+                .setNoise(Float.parseFloat(System.getProperty("vdiff.harness.noise", "0.001")))
+                .setMissing(Integer.getInteger("vdiff.harness.missing", 2))
+                .setAdded(Integer.getInteger("vdiff.harness.added", 3));
+
+        final File approvedFolder = folder.newFolder("approved");
+        final File buildFolder = folder.newFolder("build");
+        corpus.generate(approvedFolder, buildFolder);
+
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        _approve(project, approvedFolder);
+
+        // Screens are copied into the workspace as a test step would write them
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                new FilePath(buildFolder).copyRecursiveTo("*.png", build.getWorkspace().child("screens"));
+                return true;
+            }
+        });
+        project.getBuildersList().add(new Builder(Collections.singletonList(_createComparison()), Builder.NOTHING, Integer.MAX_VALUE, "", 0, false));
+
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+        DataAction data = build.getAction(DataAction.class);
+        ScreenList screens = data.getScreenList();
+        BuildTimings timings = data.getTimings();
+
+        System.out.print(timings.toTable());
+        System.out.println(String.format("%d screens, %.1f screens/s, peak heap %d MB",
+                                         timings.getScreens(), timings.getScreensPerSecond(), timings.getPeakHeap() / (1024 * 1024)));
+
+        assertEquals(corpus.getCompared(), screens.getExistingScreens().length);
+        assertEquals(corpus.getIdentical(), screens.getExistingEqualScreens().length);
+        assertEquals(corpus.getDifferent(), screens.getExistingDifferentBelowThresholdScreens().length + screens.getExistingDifferentAboveThresholdScreens().length);
+        assertEquals(corpus.getAdded(), screens.getNewScreens().length);
+        assertEquals(corpus.getCompared() + corpus.getMissing(), screens.getApprovedScreens().length);
+    }
+
+
+    /**
+     * Approves all screens of a folder in a project
+     *
+     * @param project Project
+     * @param approvedFolder Folder with screens
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void _approve(FreeStyleProject project, File approvedFolder) throws InterruptedException, IOException {
+        ProjectArtifacts projectArtifacts = new ProjectArtifacts(project);
+        projectArtifacts.createFolders(new StreamBuildListener(System.out));
+
+        Map<String, FilePath> screens = new HashMap<String, FilePath>();
+        for(FilePath screen : new FilePath(approvedFolder).list("*.png")) {
+            screens.put(screen.getName(), screen);
+        }
+        projectArtifacts.approveScreens(screens);
+    }
+
+    /**
+     * Creates the comparison of the harness
+     *
+     * @return SSIM, or perceptualdiff when a binary is given
+     * @throws Exception
+     */
+    private ComparisonDescribable _createComparison() throws Exception {
+        int threads = Integer.getInteger("vdiff.harness.threads", 0);
+        String binary = System.getProperty("vdiff.harness.binary");
+
+        if (binary == null) {
+            return new StructuralSimilarity("screens/*.png", false, Builder.NOTHING, Integer.MAX_VALUE, false, false, 0, "",
+                                            threads, false, false, "", 8, 0.98f, 0.9f);
+        }
+
+        JSONObject config = new JSONObject();
+        config.put("binaryPath", binary);
+        jenkins.jenkins.getDescriptorByType(PerceptualDiff.DescriptorImpl.class).configure(null, config);
+
+        return new PerceptualDiff("screens/*.png", false, Builder.NOTHING, Integer.MAX_VALUE, false, false, 0, "",
+                                  threads, false, false, "", false, 45f, 100, 2.2f, 100f, false, 1f, 0);
+    }
+}
@@ -0,0 +1,209 @@
+package org.jenkinsci.plugins.visual_diff.comparison;
+
+import hudson.FilePath;
+import hudson.model.StreamBuildListener;
+
+import org.jenkinsci.plugins.visual_diff.Builder;
+import org.jenkinsci.plugins.visual_diff.data.ComparisonResult;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the summed-area windows of SSIM against a direct computation, especially where bands meet
+ *
+ * @author Marcel Erz
+ */
+public class StructuralSimilarityTest {
+
+    /**
+     * Width of the test images
+     */
+    private static final int WIDTH = 20;
+
+    /**
+     * Height of the test images; spans several bands of tile rows
+     */
+    private static final int HEIGHT = 100;
+
+    /**
+     * Window size of the comparison
+     */
+    private static final int WINDOW = 8;
+
+    /**
+     * Folder for images
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Identical images have no different pixels
+     *
+     * @throws Exception
+     */
+    @Test
+    public void identicalImages() throws Exception {
+        BufferedImage image = _noise(1);
+        ComparisonResult result = _compare(image, image, new File(folder.getRoot(), "diff.png"));
+
+        assertFalse(result.isDifferenceFound());
+        assertEquals(0, result.getDifferentPixels());
+    }
+
+    /**
+     * Changes on the last and first rows of bands are found as by a direct computation
+     *
+     * @throws Exception
+     */
+    @Test
+    public void changesAtBandEdges() throws Exception {
+        BufferedImage approved = _noise(2);
+        BufferedImage screen = _noise(2);
+
+        // Bands are whole tile rows; the windows of these rows reach into the neighbouring band
+        int[][] changes = { { 5, 31 }, { 6, 32 }, { 10, 63 }, { 12, 64 }, { 0, 96 }, { 19, 99 } };
+        for(int[] change : changes) {
+            screen.setRGB(change[0], change[1], ~screen.getRGB(change[0], change[1]));
+        }
+
+        File diffFile = new File(folder.getRoot(), "diff.png");
+        ComparisonResult result = _compare(approved, screen, diffFile);
+
+        boolean[][] expected = _differentPixels(approved, screen);
+        BufferedImage diff = ImageIO.read(diffFile);
+
+        long count = 0;
+        for(int y = 0; y < HEIGHT; y++) {
+            for(int x = 0; x < WIDTH; x++) {
+                assertEquals("Pixel " + x + "," + y, expected[y][x], (diff.getRGB(x, y) & 0xffffff) != 0);
+                if (expected[y][x]) count++;
+            }
+        }
+
+        assertTrue(count > 0);
+        assertEquals(count, result.getDifferentPixels());
+    }
+
+
+    /**
+     * Compares two images with SSIM
+     *
+     * @param approved Approved image
+     * @param screen Build image
+     * @param diffFile File for the difference image
+     * @return Result of comparison
+     * @throws Exception
+     */
+    private ComparisonResult _compare(BufferedImage approved, BufferedImage screen, File diffFile) throws Exception {
+        StructuralSimilarity comparison = new StructuralSimilarity("*.png", false, Builder.NOTHING, 1, false, false, 0, "",
+                                                                   1, false, false, "", WINDOW, 0.98f, 0.9f);
+
+        return comparison.compareScreens(null, null, new StreamBuildListener(System.out),
+                                         _write(screen, "screen.png"), _write(approved, "approved.png"), new FilePath(diffFile));
+    }
+
+    /**
+     * Computes for each pixel whether its window is below the pixel similarity, without summed-area tables
+     *
+     * @param approved Approved image
+     * @param screen Build image
+     * @return Different pixels by row and column
+     */
+    private boolean[][] _differentPixels(BufferedImage approved, BufferedImage screen) {
+        boolean[][] different = new boolean[HEIGHT][WIDTH];
+        int radius = WINDOW / 2;
+        double c1 = (0.01 * 255) * (0.01 * 255);
+        double c2 = (0.03 * 255) * (0.03 * 255);
+
+        for(int y = 0; y < HEIGHT; y++) {
+            for(int x = 0; x < WIDTH; x++) {
+                long sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+                int pixels = 0;
+
+                for(int j = Math.max(0, y - radius); j < Math.min(HEIGHT, y - radius + WINDOW); j++) {
+                    for(int i = Math.max(0, x - radius); i < Math.min(WIDTH, x - radius + WINDOW); i++) {
+                        long a = _luma(approved.getRGB(i, j));
+                        long b = _luma(screen.getRGB(i, j));
+
+                        sumX += a;
+                        sumY += b;
+                        sumXX += a * a;
+                        sumYY += b * b;
+                        sumXY += a * b;
+                        pixels++;
+                    }
+                }
+
+                double n = pixels;
+                double meanX = sumX / n;
+                double meanY = sumY / n;
+                double varianceX = sumXX / n - meanX * meanX;
+                double varianceY = sumYY / n - meanY * meanY;
+                double covariance = sumXY / n - meanX * meanY;
+
+                double similarity = ((2 * meanX * meanY + c1) * (2 * covariance + c2)) /
+                                    ((meanX * meanX + meanY * meanY + c1) * (varianceX + varianceY + c2));
+
+                different[y][x] = (similarity < StructuralSimilarity.PIXEL_SIMILARITY);
+            }
+        }
+
+        return different;
+    }
+
+    /**
+     * Creates an image of random pixels
+     *
+     * @param seed Seed of the pixels
+     * @return Image
+     */
+    private BufferedImage _noise(long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+        for(int y = 0; y < HEIGHT; y++) {
+            for(int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Writes an image into the temporary folder
+     *
+     * @param image Image
+     * @param name Name of file
+     * @return Path to file
+     * @throws IOException
+     */
+    private FilePath _write(BufferedImage image, String name) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        ImageIO.write(image, "png", file);
+        return new FilePath(file);
+    }
+
+    /**
+     * Luma of a pixel as used by the comparison
+     *
+     * @param pixel RGB value
+     * @return Luma
+     */
+    private static int _luma(int pixel) {
+        return ((((pixel >> 16) & 0xff) * 77) + (((pixel >> 8) & 0xff) * 150) + ((pixel & 0xff) * 29)) >> 8;
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests deriving, overlaying and storing baseline manifests
+ *
+ * @author Marcel Erz
+ */
+public class BaselineManifestTest {
+
+    /**
+     * Folder for written manifests
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Next generation adds and replaces approved screens and drops deleted screens
+     */
+    @Test
+    public void deriveRemovesDeletedScreens() {
+        BaselineManifest manifest = _manifest(1, "a.png", "1", "b.png", "2", "c.png", "3");
+
+        Map<String, String> approved = new HashMap<String, String>();
+        approved.put("b.png", "4");
+        approved.put("d.png", "5");
+
+        BaselineManifest next = manifest.derive(approved, Arrays.asList("c.png"), false);
+
+        assertEquals(2, next.getGeneration());
+        assertEquals(_manifest(2, "a.png", "1", "b.png", "4", "d.png", "5").getScreens(), next.getScreens());
+        assertFalse(next.hasScreen("c.png"));
+
+        // Generations are immutable
+        assertEquals("3", manifest.getDigest("c.png"));
+    }
+
+    /**
+     * Screens deleted on a branch are marked, but not listed as screens
+     */
+    @Test
+    public void deriveMarksDeletedScreensOfBranch() {
+        BaselineManifest next = _manifest(1, "a.png", "1").derive(Collections.<String, String>emptyMap(),
+                                                                  Arrays.asList("a.png", "p.png"), true);
+
+        assertTrue(next.getNames().isEmpty());
+        assertNull(next.getDigest("a.png"));
+
+        // Marked screens must not shine through from the parent baseline
+        BaselineManifest merged = next.overlay(_manifest(7, "p.png", "9", "q.png", "8"));
+        assertEquals(Collections.singleton("q.png"), merged.getNames());
+    }
+
+    /**
+     * Screens of the parent baseline shine through, unless the branch approved or deleted them
+     */
+    @Test
+    public void overlayTakesScreensFromParent() {
+        BaselineManifest parent = _manifest(3, "a.png", "1", "b.png", "2", "c.png", "3");
+        BaselineManifest branch = _manifest(5, "b.png", "4", "c.png", BaselineManifest.DELETED, "d.png", "5");
+
+        BaselineManifest merged = branch.overlay(parent);
+
+        assertEquals(5, merged.getGeneration());
+        assertEquals(_manifest(5, "a.png", "1", "b.png", "4", "d.png", "5").getScreens(), merged.getScreens());
+
+        assertTrue(merged.isInherited("a.png"));
+        assertFalse(merged.isInherited("b.png"));
+        assertFalse(merged.isInherited("c.png"));
+        assertFalse(merged.isInherited("d.png"));
+    }
+
+    /**
+     * Manifests read back as written, including screens marked as deleted
+     *
+     * @throws Exception
+     */
+    @Test
+    public void writeAndRead() throws Exception {
+        BaselineManifest manifest = _manifest(4, "a b.png", "1", "c.png", BaselineManifest.DELETED);
+        FilePath path = new FilePath(folder.newFile("4"));
+
+        manifest.write(path);
+        BaselineManifest read = BaselineManifest.read(path, 4);
+
+        assertEquals(4, read.getGeneration());
+        assertEquals(manifest.getScreens(), read.getScreens());
+
+        // Deleted mark hides the parent screen after reading as well
+        assertFalse(read.overlay(_manifest(1, "c.png", "2")).hasScreen("c.png"));
+
+        assertNull(BaselineManifest.read(new FilePath(folder.getRoot()).child("missing"), 5));
+    }
+
+
+    /**
+     * Creates a manifest
+     *
+     * @param generation Generation of the manifest
+     * @param entries Pairs of name and digest
+     * @return Manifest
+     */
+    private BaselineManifest _manifest(long generation, String... entries) {
+        Map<String, String> screens = new HashMap<String, String>();
+        for(int i = 0; i < entries.length; i += 2) {
+            screens.put(entries[i], entries[i + 1]);
+        }
+        return new BaselineManifest(generation, screens);
+    }
+}
@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests garbage collection of baseline generations and their images
+ *
+ * @author Marcel Erz
+ */
+public class BaselineWriterTest {
+
+    /**
+     * Embedded Jenkins
+     */
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    /**
+     * Folder for screens to approve
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Artifacts of the test project
+     */
+    private ProjectArtifacts projectArtifacts;
+
+    /**
+     * Screen of generation 1 replaced in generation 2
+     */
+    private FilePath replaced;
+
+    /**
+     * Screen of both generations
+     */
+    private FilePath kept;
+
+    /**
+     * Screen of generation 2
+     */
+    private FilePath replacement;
+
+
+    /**
+     * Approves two generations; the second one replaces a screen of the first one
+     *
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        projectArtifacts = new ProjectArtifacts(project);
+        projectArtifacts.createFolders(new StreamBuildListener(System.out));
+
+        replaced = _screen("replaced.png", 0xff0000);
+        kept = _screen("kept.png", 0x00ff00);
+        replacement = _screen("replacement.png", 0x0000ff);
+
+        Map<String, FilePath> screens = new HashMap<String, FilePath>();
+        screens.put("a.png", replaced);
+        screens.put("b.png", kept);
+        projectArtifacts.approveScreens(screens);
+        assertEquals(1, projectArtifacts.getGeneration());
+
+        projectArtifacts.approveScreen("a.png", replacement);
+        assertEquals(2, projectArtifacts.getGeneration());
+    }
+
+    /**
+     * Old generations and images only they referred to are deleted
+     *
+     * @throws Exception
+     */
+    @Test
+    public void deletesUnreferencedGeneration() throws Exception {
+        _age(replaced);
+
+        assertEquals(1, new BaselineWriter(projectArtifacts).collectGarbage(Collections.<Long>emptySet()));
+
+        assertFalse(projectArtifacts.getManifestPath(1).exists());
+        assertTrue(projectArtifacts.getManifestPath(2).exists());
+
+        assertFalse(_image(replaced).exists());
+        assertTrue(_image(kept).exists());
+        assertTrue(_image(replacement).exists());
+    }
+
+    /**
+     * Generations referenced by builds keep their images
+     *
+     * @throws Exception
+     */
+    @Test
+    public void keepsReferencedGeneration() throws Exception {
+        _age(replaced);
+
+        assertEquals(0, new BaselineWriter(projectArtifacts).collectGarbage(Collections.singleton(1L)));
+
+        assertTrue(projectArtifacts.getManifestPath(1).exists());
+        assertTrue(_image(replaced).exists());
+    }
+
+    /**
+     * Recently stored images are kept, they may belong to a change not committed yet
+     *
+     * @throws Exception
+     */
+    @Test
+    public void keepsRecentImages() throws Exception {
+        assertEquals(0, new BaselineWriter(projectArtifacts).collectGarbage(Collections.<Long>emptySet()));
+
+        assertFalse(projectArtifacts.getManifestPath(1).exists());
+        assertTrue(_image(replaced).exists());
+    }
+
+
+    /**
+     * Creates a screen of a single color
+     *
+     * @param name Name of file
+     * @param color RGB value
+     * @return Path to screen
+     * @throws IOException
+     */
+    private FilePath _screen(String name, int color) throws IOException {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        for(int y = 0; y < image.getHeight(); y++) {
+            for(int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, color);
+            }
+        }
+
+        File file = folder.newFile(name);
+        ImageIO.write(image, "png", file);
+        return new FilePath(file);
+    }
+
+    /**
+     * Gets the stored image of a screen
+     *
+     * @param screen Screen
+     * @return Path to stored image
+     * @throws Exception
+     */
+    private FilePath _image(FilePath screen) throws Exception {
+        return projectArtifacts.getImagePath(ProjectArtifacts.getDigest(screen));
+    }
+
+    /**
+     * Moves the stored image of a screen out of the grace period
+     *
+     * @param screen Screen
+     * @throws Exception
+     */
+    private void _age(FilePath screen) throws Exception {
+        _image(screen).touch(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+    }
+}
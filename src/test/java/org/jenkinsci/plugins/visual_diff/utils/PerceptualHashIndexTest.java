@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests looking up screens by perceptual hash
+ *
+ * @author Marcel Erz
+ */
+public class PerceptualHashIndexTest {
+
+    /**
+     * Closest screen within the distance is found; screens further away are not
+     */
+    @Test
+    public void findNearestWithinDistance() {
+        PerceptualHashIndex index = new PerceptualHashIndex();
+        index.add(0x0L, "zero.png");
+        index.add(0xffL, "eight.png");
+        index.add(0xffffL, "sixteen.png");
+
+        Set<String> none = Collections.emptySet();
+
+        assertEquals(3, index.size());
+        assertEquals("zero.png", index.findNearest(0x1L, 4, none));
+        assertEquals("eight.png", index.findNearest(0x7fL, 4, none));
+        assertEquals("sixteen.png", index.findNearest(0xffffL, 0, none));
+        assertNull(index.findNearest(0xfL, 3, none));
+    }
+
+    /**
+     * Excluded screens are skipped for the next closest one
+     */
+    @Test
+    public void findNearestSkipsExcluded() {
+        PerceptualHashIndex index = new PerceptualHashIndex();
+        index.add(0x0L, "zero.png");
+        index.add(0x3L, "two.png");
+
+        assertEquals("two.png", index.findNearest(0x0L, 4, Collections.singleton("zero.png")));
+
+        Set<String> both = new HashSet<String>();
+        both.add("zero.png");
+        both.add("two.png");
+        assertNull(index.findNearest(0x0L, 4, both));
+    }
+
+    /**
+     * Empty index finds nothing
+     */
+    @Test
+    public void findNearestInEmptyIndex() {
+        assertNull(new PerceptualHashIndex().findNearest(0x0L, 64, Collections.<String>emptySet()));
+    }
+
+    /**
+     * Tree search finds a screen as close as a linear search does
+     */
+    @Test
+    public void findNearestMatchesLinearSearch() {
+        Random random = new Random(42);
+        long[] hashes = new long[500];
+
+        PerceptualHashIndex index = new PerceptualHashIndex();
+        for(int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+            index.add(hashes[i], String.valueOf(i));
+        }
+
+        for(int i = 0; i < 200; i++) {
+            // Flip a few bits of a known hash, or query a random one
+            long hash = (i % 2 == 0) ? hashes[random.nextInt(hashes.length)] ^ (1L << random.nextInt(64)) : random.nextLong();
+            int maxDistance = random.nextInt(30);
+
+            int expected = Integer.MAX_VALUE;
+            for(long candidate : hashes) {
+                expected = Math.min(expected, PerceptualHash.distance(candidate, hash));
+            }
+
+            String name = index.findNearest(hash, maxDistance, Collections.<String>emptySet());
+            if (expected > maxDistance) {
+                assertNull(name);
+            } else {
+                assertEquals(expected, PerceptualHash.distance(hashes[Integer.parseInt(name)], hash));
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.visual_diff.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests limiting the rate of background operations
+ *
+ * @author Marcel Erz
+ */
+public class RateLimiterTest {
+
+    /**
+     * First operation is not delayed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void firstAcquireDoesNotWait() throws Exception {
+        long start = System.currentTimeMillis();
+        new RateLimiter(1).acquire();
+
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    /**
+     * Operations are spaced by the interval of the rate
+     *
+     * @throws Exception
+     */
+    @Test
+    public void acquireKeepsRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(50);
+
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 11; i++) {
+            limiter.acquire();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // Ten intervals of 20ms between eleven operations
+        assertTrue("Took " + elapsed + "ms", elapsed >= 195);
+    }
+
+    /**
+     * Time spent between operations counts towards the interval
+     *
+     * @throws Exception
+     */
+    @Test
+    public void idleTimeIsNotMadeUp() throws Exception {
+        RateLimiter limiter = new RateLimiter(5);
+        limiter.acquire();
+        Thread.sleep(250);
+
+        long start = System.currentTimeMillis();
+        limiter.acquire();
+
+        assertTrue(System.currentTimeMillis() - start < 100);
+    }
+}